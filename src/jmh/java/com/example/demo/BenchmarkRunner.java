@@ -0,0 +1,24 @@
+package com.example.demo;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// GCプロファイラ(アロケーション量)を付けてベンチマークを実行し，結果をtarget/jmh-result.jsonに保存する
+// 実行: mvn -Pbenchmark compile exec:exec -Dbenchmark=StageBenchmarks
+// 引数はベンチマーク名の正規表現(省略時は全て)
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : ".*")
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-result.json")
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// 提出一つを模範解答と比べる時間(正規形の作成・フィンガープリント・構造の違い)を測るベンチマーク
+// plantUML記述を作って描画する場合と比べて，採点や重複の除去に使えるかを確かめる
+// 実行: mvn -Pbenchmark compile exec:exec -Dbenchmark=CanonicalBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CanonicalBenchmark {
+    @Param({"light", "printer", "study_system", "200xVALID", "1000xVALID"})
+    public String workspace;
+
+    private JsonNode data;
+    private CanonicalMachine reference;
+
+    @Setup
+    public void setUp() {
+        data = WorkspaceGenerator.fromParam(workspace);
+        reference = CanonicalMachine.of(StateMachine.compile(data));
+    }
+
+    @Benchmark
+    public CanonicalMachine.Diff compare() {
+        return CanonicalMachine.of(StateMachine.compile(data)).diff(reference);
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+// POST / の処理全体(ストリーミングでのパース・変換・描画スレッドでの描画・Base64のJSON)を測るベンチマーク
+// cache=false のときは毎回描画し，cache=true のときは描画キャッシュに当たったときの速さを測る
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControllerBenchmark {
+    @Param({"light", "printer", "study_system", "100xVALID"})
+    public String workspace;
+
+    @Param({"false", "true"})
+    public boolean cache;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private byte[] payload;
+    private DiagramRenderService renderService;
+    private EditSessionService sessionService;
+    private HomeController controller;
+
+    @Setup
+    public void setUp() throws Exception {
+        payload = mapper.writeValueAsBytes(WorkspaceGenerator.fromParam(workspace));
+        RenderCache renderCache = new RenderCache(cache ? 64L * 1024 * 1024 : 0L);
+        DiskRenderCache diskCache = new DiskRenderCache("", 0); // ディスクキャッシュは使わない
+        GraphvizWatchdog graphvizWatchdog = new GraphvizWatchdog(false, 10000, "dot", 30);
+        DiagramMetrics metrics = new DiagramMetrics(new SimpleMeterRegistry());
+        SvgMinifier svgMinifier = new SvgMinifier(true, 1);
+        ErrorDiagrams errorDiagrams = new ErrorDiagrams(graphvizWatchdog, svgMinifier, "graphviz");
+        errorDiagrams.prerender();
+        RenderAdmission admission = new RenderAdmission(true, 2, 10, 2, 10, 4, false, "", 10000, 600000);
+        renderService = new DiagramRenderService(renderCache, diskCache, new PartitionedRenderer(graphvizWatchdog, 0), metrics,
+                svgMinifier, errorDiagrams, admission, 4, 64, 1, true);
+        sessionService = new EditSessionService(renderService, "graphviz", 200, 150, 1800000, 600000);
+        controller = new HomeController(renderCache, diskCache, renderService, new TaskCatalog("./json"), graphvizWatchdog,
+                new WorkspaceDecoder(10000, 50000, 200), metrics, sessionService,
+                new DiagramDeltaService(4, 64L * 1024 * 1024, 1800000), admission,
+                new TrafficCapture(false, "./capture", 67108864, 10, 10000), "graphviz", 200, 4096); // 記録はしない
+    }
+
+    @TearDown
+    public void tearDown() {
+        sessionService.shutdown();
+        renderService.shutdown();
+    }
+
+    @Benchmark
+    public ResponseEntity<?> postModelData() throws Exception {
+        return controller.postModelData(new ByteArrayInputStream(payload), "application/json", null, null, null, null).get();
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// DiskRenderCacheのファイルを壊してから開き直し，壊れた記録は捨てて(違うSVGは返さずに)残りを使えるかを確かめる
+// ・セグメントの末尾が書き込みの途中で切れた ・記録の中身が壊れた ・索引が壊れた/消えた
+// ・読み込みのみのインスタンスが，書き込むインスタンスより先に起動した(後から開けるか，書き込みを引き継げるか)
+// 一つでも違えば終了コード1で終わる ディスクキャッシュの形式を変えたときに実行する
+// 実行: mvn -Pbenchmark compile exec:exec -Dbenchmark.main=com.example.demo.DiskCacheRecoveryCheck
+public class DiskCacheRecoveryCheck {
+    private static final int RECORDS = 20;
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    private static int failed = 0;
+
+    public static void main(String[] args) throws Exception {
+        Path root = Files.createTempDirectory("disk-cache-check");
+        try {
+            truncatedTail(root.resolve("truncated"));
+            corruptRecord(root.resolve("corrupt"));
+            corruptIndex(root.resolve("index"));
+            missingIndex(root.resolve("missing-index"));
+            readerFirst(root.resolve("reader-first"));
+        } finally {
+            delete(root);
+        }
+        System.out.printf("%d件の確認が失敗しました%n", failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    // 最後の記録が書き込みの途中で切れたとき: 切れた記録だけがなくなり，続けて書き込める
+    private static void truncatedTail(Path dir) throws IOException {
+        write(dir, 0, RECORDS);
+        try (FileChannel segment = FileChannel.open(segment(dir), StandardOpenOption.WRITE)) {
+            segment.truncate(segment.size() - 10);
+        }
+        DiskRenderCache cache = open(dir);
+        expect("末尾が切れた", cache, 0, RECORDS - 1, true);
+        expect("末尾が切れた", cache, RECORDS - 1, RECORDS, false);
+        cache.put(key(RECORDS), svg(RECORDS));
+        cache.close();
+        cache = open(dir);
+        expect("末尾が切れた後に書き込んだ", cache, RECORDS, RECORDS + 1, true);
+        cache.close();
+    }
+
+    // 記録の中身の1バイトが壊れたとき: その記録だけを捨てる(CRCが合わない)
+    private static void corruptRecord(Path dir) throws IOException {
+        write(dir, 0, RECORDS);
+        int broken = 5;
+        try (FileChannel segment = FileChannel.open(segment(dir), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // broken番目の記録の位置 (記録は書いた順に並ぶ 見出しはmagic・ハッシュ・長さ・CRC32の44バイト)
+            long offset = 0;
+            for (int i = 0; i < broken; i++) {
+                offset += 44 + svg(i).length;
+            }
+            ByteBuffer b = ByteBuffer.allocate(1);
+            segment.read(b, offset + 44);
+            b.put(0, (byte) (b.get(0) ^ 0xFF));
+            b.rewind();
+            segment.write(b, offset + 44);
+        }
+        DiskRenderCache cache = open(dir);
+        expect("中身が壊れた", cache, broken, broken + 1, false);
+        expect("中身が壊れた", cache, 0, broken, true);
+        expect("中身が壊れた", cache, broken + 1, RECORDS, true);
+        if (((Number) cache.stats().get("corrupt")).longValue() == 0) {
+            fail("中身が壊れた: corruptが数えられていません");
+        }
+        cache.close();
+    }
+
+    // 索引の見出しが壊れたとき: セグメントから索引を作り直す
+    private static void corruptIndex(Path dir) throws IOException {
+        write(dir, 0, RECORDS);
+        try (FileChannel index = FileChannel.open(index(dir), StandardOpenOption.WRITE)) {
+            index.write(ByteBuffer.wrap("broken!!".getBytes(StandardCharsets.US_ASCII)), 0);
+        }
+        DiskRenderCache cache = open(dir);
+        expect("索引が壊れた", cache, 0, RECORDS, true);
+        cache.close();
+    }
+
+    // 索引のファイルが消えたとき: セグメントから索引を作り直す
+    private static void missingIndex(Path dir) throws IOException {
+        write(dir, 0, RECORDS);
+        Files.delete(index(dir));
+        DiskRenderCache cache = open(dir);
+        expect("索引が消えた", cache, 0, RECORDS, true);
+        cache.close();
+    }
+
+    // 読み込みのみのインスタンスがファイルのできる前に起動したとき:
+    // 書き込むインスタンスがファイルを作ったら開き直し，書き込むインスタンスが終了したら書き込みを引き継ぐ
+    private static void readerFirst(Path dir) throws Exception {
+        Files.createDirectories(dir);
+        DiskRenderCache reader;
+        try (FileChannel channel = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock held = channel.lock()) { // 他のインスタンスが書き込み用のロックを持っている状態にする
+            reader = open(dir);
+        }
+        if (reader.isEnabled()) {
+            fail("先に起動: ファイルがないのに開けています");
+        }
+        DiskRenderCache writer = open(dir);
+        for (int i = 0; i < RECORDS; i++) {
+            writer.put(key(i), svg(i));
+        }
+        waitWritten(writer, RECORDS - 1);
+        reader.refresh();
+        expect("先に起動した読み込みのみ", reader, 0, RECORDS, true);
+        writer.close();
+        reader.refresh();
+        if (!Boolean.TRUE.equals(reader.stats().get("writable"))) {
+            fail("先に起動: 書き込みを引き継いでいません");
+        }
+        reader.put(key(RECORDS), svg(RECORDS));
+        reader.close();
+        DiskRenderCache reopened = open(dir);
+        expect("引き継いで書き込んだ", reopened, 0, RECORDS + 1, true);
+        reopened.close();
+    }
+
+    // [from, to)の記録を書き込んで閉じる
+    private static void write(Path dir, int from, int to) {
+        DiskRenderCache cache = open(dir);
+        for (int i = from; i < to; i++) {
+            cache.put(key(i), svg(i));
+        }
+        cache.close(); // 書き込み待ちのSVGを書き終えてから閉じる
+    }
+
+    private static DiskRenderCache open(Path dir) {
+        DiskRenderCache cache = new DiskRenderCache(dir.toString(), MAX_BYTES);
+        cache.open();
+        return cache;
+    }
+
+    private static void waitWritten(DiskRenderCache cache, int i) throws InterruptedException {
+        for (int n = 0; n < 500 && cache.get(key(i)) == null; n++) {
+            Thread.sleep(10);
+        }
+    }
+
+    // [from, to)の記録が，presentなら書いたとおりに読めること，そうでなければ読めないことを確かめる
+    private static void expect(String label, DiskRenderCache cache, int from, int to, boolean present) {
+        for (int i = from; i < to; i++) {
+            byte[] actual = cache.get(key(i));
+            if (actual != null && !Arrays.equals(actual, svg(i))) {
+                fail(label + ": " + i + "番目が違う内容で読めました");
+            } else if (present && actual == null) {
+                fail(label + ": " + i + "番目が読めません");
+            } else if (!present && actual != null) {
+                fail(label + ": " + i + "番目が読めてしまいます");
+            }
+        }
+    }
+
+    private static void fail(String message) {
+        failed++;
+        System.out.println("NG " + message);
+    }
+
+    private static String key(int i) {
+        return RenderCache.key("disk-cache-check-" + i);
+    }
+
+    private static byte[] svg(int i) {
+        StringBuilder svg = new StringBuilder("<svg>");
+        for (int j = 0; j <= i; j++) {
+            svg.append("<rect x=\"").append(j).append("\"/>");
+        }
+        return svg.append("</svg>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Path segment(Path dir) {
+        return dir.resolve("renders-000001.seg");
+    }
+
+    private static Path index(Path dir) {
+        return dir.resolve("renders-000001.idx");
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+                for (Path child : children) {
+                    delete(child);
+                }
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+}
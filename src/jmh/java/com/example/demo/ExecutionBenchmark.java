@@ -0,0 +1,69 @@
+package com.example.demo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// サーバーでの実行(MachineEngine)の時間を測るベンチマーク
+// compileはワークスペースからグラフを作る時間，analyzeは解析，simulateは長いイベント列(events個)を受け取る時間
+// 実行: mvn -Pbenchmark compile exec:exec -Dbenchmark=ExecutionBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionBenchmark {
+    @Param({"printer", "1000xVALID", "2000xVALID"})
+    public String workspace;
+
+    @Param({"100000"})
+    public int events;
+
+    private StateMachine machine;
+    private MachineEngine engine;
+    private boolean[] guardValues;
+    private int[] eventIds;
+    private int start;
+
+    @Setup
+    public void setUp() {
+        machine = StateMachine.compile(WorkspaceGenerator.fromParam(workspace));
+        engine = MachineEngine.compile(machine);
+        guardValues = engine.guardValues(null);
+        start = engine.start(guardValues, null, null);
+        // ワークスペースにあるイベントからでたらめに選んだイベント列(種を固定している)
+        Random random = new Random(events);
+        int eventCount = Math.max(1, engine.analyze().events);
+        eventIds = new int[events];
+        for (int i = 0; i < events; i++) {
+            eventIds[i] = random.nextInt(eventCount);
+        }
+    }
+
+    @Benchmark
+    public MachineEngine compile() {
+        return MachineEngine.compile(machine);
+    }
+
+    @Benchmark
+    public MachineEngine.Report analyze() {
+        return engine.analyze();
+    }
+
+    @Benchmark
+    public MachineEngine.Simulation simulate() {
+        return engine.simulate(start, eventIds, guardValues, false);
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// 課題のワークスペースの各状態に，クリック(遷移・状態名・動作など)と現在の状態を付けた図を実際に描画し，
+// 構造だけの図をHighlightRewriterで書き換えた結果が，色付きの記述をそのまま描画した図と同じ見た目になるかを確かめる
+// (図形・文字の要素ごとにfill・stroke・stroke-widthを比べる SvgMinifierで小さくしたSVGでも書き換えられるかも確かめる)
+// 一つでも違えば終了コード1で終わる plantUMLの版を上げたときやrender.highlight-rewrite.enabledを有効にする前に実行する
+// 実行: mvn -Pbenchmark compile exec:exec -Dbenchmark.main=com.example.demo.HighlightRewriteCheck -Dbenchmark=smetana
+// (引数はレイアウトエンジン graphvizはdotコマンドが必要 省略したときは両方)
+public class HighlightRewriteCheck {
+    private static final String[] CLICK_TYPES = {"switchIfType", "changeStateType", "stateDefinitionType", "stateActionType"};
+    private static final Pattern LEAF = Pattern.compile("<(rect|ellipse|polygon|path|line|text)\\b[^>]*>");
+    private static final Pattern ATTRIBUTE = Pattern.compile("\\s([\\w:.-]+)=\"([^\"]*)\"");
+    private static final String[] PROPERTIES = {"fill", "stroke", "stroke-width"};
+
+    public static void main(String[] args) throws IOException {
+        List<LayoutMode> layouts = new ArrayList<>();
+        for (LayoutMode layout : LayoutMode.values()) {
+            if (args.length == 0 || args[0].equals(".*") || args[0].equalsIgnoreCase(layout.name())) {
+                layouts.add(layout);
+            }
+        }
+        SvgMinifier minifier = new SvgMinifier(true, 1);
+        int checked = 0;
+        int failed = 0;
+        for (LayoutMode layout : layouts) {
+            StmGenerator generator = new StmGenerator(layout);
+            for (String name : Workspaces.NAMES) {
+                JsonNode workspace = Workspaces.load(name);
+                for (JsonNode block : workspace) {
+                    String state = block.path("state").asText();
+                    if (state.isEmpty() || StateMachine.INITIAL_STATE.equals(state)) {
+                        continue;
+                    }
+                    for (String clickType : CLICK_TYPES) {
+                        StateMachine machine = StateMachine.compile(variant(workspace, state, clickType));
+                        DiagramHighlights highlights = generator.highlights(machine);
+                        if (highlights.isEmpty() || !highlights.isRewritable()) {
+                            continue;
+                        }
+                        byte[] structural = generator.convertPumlToPngBytes(generator.toStructuralPlantUML(machine));
+                        byte[] expected = generator.convertPumlToPngBytes(generator.toPlantUML(machine));
+                        String problem = compare(HighlightRewriter.apply(structural, highlights), expected);
+                        if (problem == null && HighlightRewriter.apply(minifier.minify(structural), highlights) == null) {
+                            problem = "小さくしたSVGを書き換えられません";
+                        }
+                        checked++;
+                        if (problem != null) {
+                            failed++;
+                            System.out.printf("NG %-9s %-14s %s %s: %s%n", layout, name, state, clickType, problem);
+                        }
+                    }
+                }
+            }
+        }
+        System.out.printf("%d件中%d件が一致しませんでした%n", checked, failed);
+        if (failed > 0 || checked == 0) {
+            System.exit(1);
+        }
+    }
+
+    // stateの状態のブロックをclickTypeでクリックし，その状態を現在の状態(#FF5555)にしたワークスペース
+    private static JsonNode variant(JsonNode workspace, String state, String clickType) {
+        JsonNode copy = workspace.deepCopy();
+        for (JsonNode block : copy) {
+            ObjectNode item = (ObjectNode) block;
+            item.remove("click");
+            if (state.equals(item.path("state").asText())) {
+                item.putObject("click").put("type", clickType);
+            }
+            for (JsonNode transition : item.path("transition")) {
+                String next = StateMachine.stripMarker(transition.path("nextState").asText());
+                if (state.equals(next)) {
+                    ((ObjectNode) transition).put("nextState", next + StateMachine.CURRENT_MARKER);
+                }
+            }
+        }
+        return copy;
+    }
+
+    // 図形・文字の要素を順に比べ，最初に違った所を返す(同じならnull)
+    private static String compare(byte[] rewritten, byte[] expected) {
+        if (rewritten == null) {
+            return "書き換えられません";
+        }
+        List<String> actual = leaves(rewritten);
+        List<String> wanted = leaves(expected);
+        if (actual.size() != wanted.size()) {
+            return "要素の数が違います " + actual.size() + " " + wanted.size();
+        }
+        for (int i = 0; i < actual.size(); i++) {
+            if (!actual.get(i).equals(wanted.get(i))) {
+                return actual.get(i) + " != " + wanted.get(i);
+            }
+        }
+        return null;
+    }
+
+    // 要素ごとの「名前 fill stroke stroke-width」(style属性の値を属性より優先する)
+    private static List<String> leaves(byte[] svg) {
+        List<String> result = new ArrayList<>();
+        Matcher leaf = LEAF.matcher(new String(svg, StandardCharsets.UTF_8));
+        while (leaf.find()) {
+            String fill = null;
+            String stroke = null;
+            String width = null;
+            String style = "";
+            Matcher attribute = ATTRIBUTE.matcher(leaf.group());
+            while (attribute.find()) {
+                switch (attribute.group(1)) {
+                    case "fill": fill = attribute.group(2); break;
+                    case "stroke": stroke = attribute.group(2); break;
+                    case "stroke-width": width = attribute.group(2); break;
+                    case "style": style = attribute.group(2); break;
+                    default: break;
+                }
+            }
+            String[] values = {fill, stroke, width};
+            for (String declaration : style.split(";")) {
+                int colon = declaration.indexOf(':');
+                for (int i = 0; i < PROPERTIES.length && colon > 0; i++) {
+                    if (declaration.substring(0, colon).trim().equals(PROPERTIES[i])) {
+                        values[i] = declaration.substring(colon + 1).trim();
+                    }
+                }
+            }
+            if (values[2] != null) {
+                values[2] = String.valueOf(Double.parseDouble(values[2])); // 2と2.0を同じにする
+            }
+            result.add(leaf.group(1) + " " + values[0] + " " + values[1] + " " + values[2]);
+        }
+        return result;
+    }
+}
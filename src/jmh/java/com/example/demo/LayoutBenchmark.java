@@ -0,0 +1,46 @@
+package com.example.demo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Graphviz(dotのプロセス)とsmetana(Java内蔵)でのレイアウトの速さを比べるベンチマーク
+// 実行: mvn -Pbenchmark compile exec:exec -Dbenchmark=LayoutBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LayoutBenchmark {
+    @Param({"light", "printer", "study_system"})
+    public String workspace;
+
+    @Param({"GRAPHVIZ", "SMETANA"})
+    public LayoutMode layout;
+
+    private StmGenerator generator;
+    private String plantUML;
+
+    @Setup
+    public void setUp() {
+        generator = new StmGenerator(layout);
+        plantUML = generator.jsonToPlantUML(Workspaces.load(workspace));
+    }
+
+    @Benchmark
+    public byte[] render() throws IOException {
+        return generator.convertPumlToPngBytes(plantUML);
+    }
+}
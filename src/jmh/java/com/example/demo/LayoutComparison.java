@@ -0,0 +1,44 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// GraphvizとsmetanaのSVGを並べて，出力の違い(サイズ・状態や遷移の数・全ての状態名が描かれているか)を表示する
+// 実行: mvn -Pbenchmark compile exec:exec -Dbenchmark.main=com.example.demo.LayoutComparison
+public class LayoutComparison {
+
+    public static void main(String[] args) throws IOException {
+        System.out.printf("%-14s %-9s %8s %7s %6s %s%n", "workspace", "layout", "bytes", "states", "links", "missing");
+        for (String name : Workspaces.NAMES) {
+            for (LayoutMode layout : LayoutMode.values()) {
+                StmGenerator generator = new StmGenerator(layout);
+                String plantUML = generator.jsonToPlantUML(Workspaces.load(name));
+                String svg = new String(generator.convertPumlToPngBytes(plantUML), StandardCharsets.UTF_8);
+                System.out.printf("%-14s %-9s %8d %7d %6d %s%n", name, layout, svg.length(),
+                        count(svg, "class=\"entity\""), count(svg, "class=\"link\""), missingStates(plantUML, svg));
+            }
+        }
+    }
+
+    // plantUMLで定義した状態名のうち，SVGに描かれていないものを返す
+    private static String missingStates(String plantUML, String svg) {
+        StringBuilder missing = new StringBuilder();
+        for (String line : plantUML.split("\n")) {
+            if (line.startsWith("state ")) {
+                String name = line.substring("state ".length()).split("[ #;]")[0];
+                if (!svg.contains(">" + name + "<")) {
+                    missing.append(name).append(' ');
+                }
+            }
+        }
+        return missing.length() == 0 ? "-" : missing.toString().trim();
+    }
+
+    private static int count(String text, String token) {
+        int count = 0;
+        for (int i = text.indexOf(token); i >= 0; i = text.indexOf(token, i + token.length())) {
+            count++;
+        }
+        return count;
+    }
+}
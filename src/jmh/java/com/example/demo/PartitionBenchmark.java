@@ -0,0 +1,56 @@
+package com.example.demo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// 大きな図を一度にレイアウトする場合(partition=false)と，つながっていない部分ごとに分けて
+// 並列にレイアウトしてまとめる場合(partition=true)の描画時間を比べるベンチマーク
+// VALIDは全体がほぼ一つにつながった図(分けられないので差が出ないことの確認)，CLUSTEREDは25状態ずつの部分に分かれた図
+// 実行: mvn -Pbenchmark compile exec:exec -Dbenchmark=PartitionBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class PartitionBenchmark {
+    @Param({"200xCLUSTERED", "500xCLUSTERED", "200xVALID"})
+    public String workspace;
+
+    @Param({"false", "true"})
+    public boolean partition;
+
+    private PartitionedRenderer renderer;
+    private String plantUML;
+
+    @Setup
+    public void setUp() {
+        StmGenerator generator = new StmGenerator(LayoutMode.GRAPHVIZ, partition ? 100 : 0);
+        StateMachine machine = StateMachine.compile(WorkspaceGenerator.fromParam(workspace));
+        plantUML = generator.toRenderPlantUML(machine, generator.toPlantUML(machine)); // 描画に使う(部分ごとに分けた)記述
+        renderer = new PartitionedRenderer(new GraphvizWatchdog(false, 10000, "dot", 30), 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        renderer.shutdown();
+    }
+
+    @Benchmark
+    public byte[] render() throws IOException {
+        return renderer.render(plantUML);
+    }
+}
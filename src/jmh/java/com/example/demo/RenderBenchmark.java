@@ -0,0 +1,43 @@
+package com.example.demo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// convertPumlToPngBytes(plantUML + Graphviz によるSVGの描画)を測るベンチマーク
+// エラーのワークスペースはノートだけの図になるので，その描画時間も測る
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+    @Param({"light", "printer", "study_system", "10xVALID", "100xVALID", "100xDUPLICATE", "100xNO_INITIAL"})
+    public String workspace;
+
+    private StmGenerator generator;
+    private String plantUML;
+
+    @Setup
+    public void setUp() {
+        generator = new StmGenerator();
+        plantUML = generator.jsonToPlantUML(WorkspaceGenerator.fromParam(workspace));
+    }
+
+    @Benchmark
+    public byte[] convertPumlToPngBytes() throws IOException {
+        return generator.convertPumlToPngBytes(plantUML);
+    }
+}
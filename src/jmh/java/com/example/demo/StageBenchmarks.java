@@ -0,0 +1,70 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+// POST / の各段階(jsonのパース・plantUMLへの変換・Base64への変換)を別々に測るベンチマーク
+// 描画を含まないので，5,000状態の大きなワークスペースまで測る
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmarks {
+    @Param({"light", "printer", "study_system",
+            "10xVALID", "100xVALID", "1000xVALID", "5000xVALID",
+            "1000xDUPLICATE", "1000xINVALID_NAME", "1000xNO_INITIAL"})
+    public String workspace;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final WorkspaceDecoder decoder = new WorkspaceDecoder(10000, 50000, 200);
+    private byte[] payload;     // クライアントから届くリクエストの本文
+    private JsonNode data;      // パース済みのワークスペース
+    private byte[] svg;         // Base64に変換するSVG(課題の図を一つ描画したもの)
+
+    @Setup
+    public void setUp() throws IOException {
+        data = WorkspaceGenerator.fromParam(workspace);
+        payload = mapper.writeValueAsBytes(data);
+        StmGenerator generator = new StmGenerator();
+        svg = generator.convertPumlToPngBytes(generator.jsonToPlantUML(Workspaces.load("printer")));
+    }
+
+    @Benchmark
+    public JsonNode parse() throws IOException {
+        return mapper.readTree(payload);
+    }
+
+    // JsonNodeの木を作らずに直接中間表現へ読み込む(POST / が使う方法)
+    @Benchmark
+    public StateMachine decode() throws IOException {
+        return decoder.decode(new ByteArrayInputStream(payload));
+    }
+
+    @Benchmark
+    public String jsonToPlantUML() {
+        return new StmGenerator().jsonToPlantUML(data);
+    }
+
+    @Benchmark
+    public String base64() {
+        return Base64.getEncoder().encodeToString(svg);
+    }
+}
@@ -0,0 +1,313 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.SynchronizedHistogram;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+// TrafficCaptureで記録した要求を，手元で起動したサーバーに同じ順番で送り直す負荷試験ツール
+// 送る時刻は記録した間隔どおり(speedで倍速)か，一定の間隔(mode=open rate=一秒あたりの数)で，応答を待たずに決める(オープンループ)
+// 応答時間は送るはずだった時刻から測る(サーバーが詰まって送るのが遅れた分も含める)ので，遅れが隠れない
+// 結果としてスループット・ステータスごとの数・応答時間の分布(HdrHistogram)と，
+// 再生の間にサーバーで各段階(DiagramMetrics.Stage)にかかった平均時間(/actuator/prometheusの差分)を表示する
+// 実行: mvn -Pbenchmark compile exec:exec -Dbenchmark.main=com.example.demo.TrafficReplay -Dbenchmark="capture=./capture speed=2"
+// 指定できる値(すべて省略可):
+//   url=http://localhost:8888  capture=記録したファイルかディレクトリ  mode=recorded|open  speed=1  rate=10
+//   concurrency=64(同時に送る数)  limit=0(送る要求の数 0のときはすべて)  timeout-millis=30000
+//   histogram=target/replay-latency.hgrm(応答時間の分布を書き出すファイル)
+// 記録したクライアントはX-Forwarded-Forで送る サーバーをrender.fair.trust-forwarded-for=trueで起動すると，
+// 記録したときと同じようにクライアントごとに描画の割り当てが分かれる(falseのときは全ての要求が一つのクライアントになる)
+public class TrafficReplay {
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final Pattern STAGE_LINE =
+            Pattern.compile("^diagram_stage_seconds_(count|sum)\\{.*stage=\"([^\"]+)\".*\\}\\s+(\\S+)$");
+
+    private final String url;
+    private final int timeoutMillis;
+    private final Histogram latency = new SynchronizedHistogram(MAX_LATENCY_MICROS, 3); // 送るはずだった時刻から
+    private final Histogram service = new SynchronizedHistogram(MAX_LATENCY_MICROS, 3); // 実際に送った時刻から
+    private final Map<String, LongAdder> statuses = new ConcurrentHashMap<>();
+
+    // 記録した要求一つ分
+    static final class Request {
+        final long timeMicros;
+        final String accept;
+        final String client;
+        final byte[] body;
+
+        Request(long timeMicros, String accept, String client, byte[] body) {
+            this.timeMicros = timeMicros;
+            this.accept = accept;
+            this.client = client;
+            this.body = body;
+        }
+    }
+
+    TrafficReplay(String url, int timeoutMillis) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        String url = options.getOrDefault("url", "http://localhost:8888");
+        String mode = options.getOrDefault("mode", "recorded");
+        double speed = Double.parseDouble(options.getOrDefault("speed", "1"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "10"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "64"));
+        int limit = Integer.parseInt(options.getOrDefault("limit", "0"));
+        int timeoutMillis = Integer.parseInt(options.getOrDefault("timeout-millis", "30000"));
+        Path histogramFile = Paths.get(options.getOrDefault("histogram", "target/replay-latency.hgrm"));
+        if (!mode.equals("recorded") && !mode.equals("open")) {
+            throw new IllegalArgumentException("modeはrecordedかopenです: " + mode);
+        }
+
+        List<Request> requests = load(Paths.get(options.getOrDefault("capture", "./capture")), limit);
+        if (requests.isEmpty()) {
+            System.out.println("記録した要求がありません(capture.enabled=trueで起動したサーバーで記録してください)");
+            return;
+        }
+        long[] offsets = mode.equals("open") ? openLoop(requests.size(), rate) : recorded(requests, speed);
+        System.setProperty("http.maxConnections", String.valueOf(concurrency)); // 接続を使い回す数
+
+        TrafficReplay replay = new TrafficReplay(url, timeoutMillis);
+        Map<String, double[]> before = replay.stageTimes();
+        long elapsed = replay.run(requests, offsets, concurrency);
+        Map<String, double[]> after = replay.stageTimes();
+        System.out.printf("mode=%s speed=%s rate=%s concurrency=%d url=%s%n", mode, speed, rate, concurrency, url);
+        replay.report(requests.size(), offsets[offsets.length - 1], elapsed, before, after, System.out);
+
+        Files.createDirectories(histogramFile.toAbsolutePath().getParent());
+        try (PrintStream out = new PrintStream(Files.newOutputStream(histogramFile), false, "UTF-8")) {
+            replay.latency.outputPercentileDistribution(out, 1000.0); // ミリ秒で書き出す
+        }
+        System.out.println("応答時間の分布: " + histogramFile);
+    }
+
+    // 「key=value」の並び(exec:execからは空白で区切った一つの引数として渡される) 「=」のないものは無視する
+    static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            for (String token : arg.trim().split("\\s+")) {
+                int eq = token.indexOf('=');
+                if (eq > 0) {
+                    options.put(token.substring(0, eq), token.substring(eq + 1));
+                }
+            }
+        }
+        return options;
+    }
+
+    // ファイル，またはディレクトリにある記録を古い順にすべて読み込む
+    // 記録中のファイルは最後の行が途中までしかないことがあるので，読めたところまでを使う
+    static List<Request> load(Path capture, int limit) throws IOException {
+        if (!Files.exists(capture)) {
+            return Collections.emptyList();
+        }
+        List<Path> files = Files.isDirectory(capture) ? TrafficCapture.files(capture) : Collections.singletonList(capture);
+        ObjectMapper mapper = new ObjectMapper();
+        List<Request> requests = new ArrayList<>();
+        for (Path file : files) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (limit > 0 && requests.size() >= limit) {
+                        return requests;
+                    }
+                    JsonNode node;
+                    try {
+                        node = mapper.readTree(line);
+                    } catch (IOException e) {
+                        continue; // 途中までしか書かれていない行
+                    }
+                    JsonNode body = node.get("body");
+                    if (body == null) {
+                        continue;
+                    }
+                    requests.add(new Request(node.path("t").asLong(), node.path("accept").textValue(),
+                            node.path("client").textValue(), mapper.writeValueAsBytes(body)));
+                }
+            } catch (EOFException e) {
+                // 記録中のファイルの終わり
+            }
+        }
+        return requests;
+    }
+
+    // 記録した間隔をspeed倍に縮めた，最初の要求からの時刻(ナノ秒)
+    static long[] recorded(List<Request> requests, double speed) {
+        long[] offsets = new long[requests.size()];
+        long first = requests.get(0).timeMicros;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = (long) (Math.max(0, requests.get(i).timeMicros - first) * 1000 / speed);
+        }
+        return offsets;
+    }
+
+    // 一秒あたりrate個の一定の間隔
+    static long[] openLoop(int count, double rate) {
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = (long) (i * 1e9 / rate);
+        }
+        return offsets;
+    }
+
+    // 決めた時刻に要求を送り，すべての応答を受け取るまでの時間(ナノ秒)を返す
+    // 送る時刻になったら応答を待たずにスレッドプールに渡す(プールが埋まっていても送るはずだった時刻は変わらない)
+    long run(List<Request> requests, long[] offsets, int concurrency) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        for (int i = 0; i < offsets.length; i++) {
+            long intended = start + offsets[i];
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Request request = requests.get(i);
+            pool.execute(() -> send(request, intended));
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        return System.nanoTime() - start;
+    }
+
+    private void send(Request request, long intended) {
+        long sent = System.nanoTime();
+        String status;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + "/").openConnection();
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(request.body.length);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Accept", request.accept != null ? request.accept : "application/json");
+            if (request.client != null) {
+                connection.setRequestProperty("X-Forwarded-For", request.client); // 記録したクライアントごとに割り当てを分ける
+            }
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(request.body);
+            }
+            int code = connection.getResponseCode();
+            drain(code < 400 ? connection.getInputStream() : connection.getErrorStream());
+            status = String.valueOf(code);
+        } catch (IOException e) {
+            status = e.getClass().getSimpleName();
+        }
+        long now = System.nanoTime();
+        latency.recordValue(Math.min(MAX_LATENCY_MICROS, (now - intended) / 1000));
+        service.recordValue(Math.min(MAX_LATENCY_MICROS, (now - sent) / 1000));
+        statuses.computeIfAbsent(status, key -> new LongAdder()).increment();
+    }
+
+    // 接続を使い回すために応答を最後まで読む
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try (InputStream body = in) {
+            byte[] buffer = new byte[8192];
+            while (body.read(buffer) >= 0) {
+                // 読み捨てる
+            }
+        }
+    }
+
+    // サーバーの段階ごとの{回数, 合計秒数}(/actuator/prometheusのdiagram_stage_seconds) 取れないときは空
+    Map<String, double[]> stageTimes() {
+        Map<String, double[]> stages = new TreeMap<>();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + "/actuator/prometheus").openConnection();
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Matcher matcher = STAGE_LINE.matcher(line);
+                    if (matcher.matches()) {
+                        double[] values = stages.computeIfAbsent(matcher.group(2), stage -> new double[2]);
+                        values[matcher.group(1).equals("count") ? 0 : 1] = Double.parseDouble(matcher.group(3));
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            stages.clear();
+        }
+        return stages;
+    }
+
+    void report(int count, long dispatchNanos, long elapsedNanos, Map<String, double[]> before,
+                Map<String, double[]> after, PrintStream out) {
+        long errors = 0;
+        Map<String, Long> sorted = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : statuses.entrySet()) {
+            long n = entry.getValue().sum();
+            sorted.put(entry.getKey(), n);
+            if (!entry.getKey().startsWith("2")) {
+                errors += n;
+            }
+        }
+        out.printf("requests   %d (送った間隔 %.1f 要求/秒)%n", count,
+                dispatchNanos == 0 ? 0.0 : (count - 1) * 1e9 / dispatchNanos);
+        out.printf("throughput %.1f 要求/秒 (%.2f 秒)%n", count * 1e9 / elapsedNanos, elapsedNanos / 1e9);
+        out.printf("errors     %d (%.2f%%) %s%n", errors, errors * 100.0 / count, sorted);
+
+        out.printf("%n%-22s %9s %9s %9s %9s %9s %9s%n", "latency(ms)", "p50", "p90", "p99", "p99.9", "max", "mean");
+        printLatency(out, "intended", latency); // 送るはずだった時刻から
+        printLatency(out, "service", service);   // 実際に送った時刻から
+
+        if (after.isEmpty()) {
+            out.printf("%n/actuator/prometheusから段階ごとの時間を取れませんでした%n");
+            return;
+        }
+        out.printf("%n%-10s %9s %12s%n", "stage", "count", "mean(ms)");
+        for (Map.Entry<String, double[]> entry : after.entrySet()) {
+            double[] previous = before.getOrDefault(entry.getKey(), new double[2]);
+            double n = entry.getValue()[0] - previous[0];
+            double seconds = entry.getValue()[1] - previous[1];
+            if (n > 0) {
+                out.printf("%-10s %9.0f %12.3f%n", entry.getKey(), n, seconds * 1000 / n);
+            }
+        }
+    }
+
+    private static void printLatency(PrintStream out, String name, Histogram histogram) {
+        out.printf("%-22s %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0, histogram.getMean() / 1000.0);
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Random;
+
+// ベンチマーク用に，任意の大きさのワークスペースを作るクラス
+// 同じ引数からは常に同じワークスペースができる(乱数の種を固定している)
+public final class WorkspaceGenerator {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int CLUSTER_SIZE = 25;
+
+    // 作るワークスペースの種類
+    public enum Kind {
+        VALID,          // 正しい状態マシン
+        DUPLICATE,      // 同じ状態を二回定義している(DuplicateStateDefinitionError)
+        INVALID_NAME,   // 状態名に使えない文字がある(stateNameNamingError)
+        NO_INITIAL,     // 「初めは初期状態とする」ブロックがない(InitialStateDefinitionError)
+        CLUSTERED       // 正しい状態マシンだが，遷移はCLUSTER_SIZE個ずつの状態の中だけでつながっている(つながっていない部分が多い大きな図)
+    }
+
+    private WorkspaceGenerator() {
+    }
+
+    // states個の状態を持ち，各状態からtransitionsPerState本の遷移が出ているワークスペースを作る
+    public static ArrayNode generate(int states, int transitionsPerState, Kind kind) {
+        Random random = new Random(states * 31L + transitionsPerState);
+        ArrayNode workspace = MAPPER.createArrayNode();
+
+        ObjectNode initial = workspace.addObject();
+        initial.put("state", "初期状態");
+        initial.putObject("myself").put("condition", kind != Kind.NO_INITIAL);
+        initial.putArray("transition").addObject().put("nextState", stateName(1));
+        initial.putObject("behavior");
+
+        int current = 1 + random.nextInt(states); // 現在の状態(#FF5555)
+        int clicked = 1 + random.nextInt(states); // クリックされているブロックを持つ状態
+        for (int i = 1; i <= states; i++) {
+            ObjectNode item = workspace.addObject();
+            String name = stateName(i);
+            if (kind == Kind.INVALID_NAME && i == states) {
+                name = "状態 " + i; // 空白は使えない
+            }
+            item.put("state", name);
+
+            ArrayNode transitions = item.putArray("transition");
+            for (int t = 0; t < transitionsPerState; t++) {
+                ObjectNode transition = transitions.addObject();
+                transition.put("event", "イベント" + random.nextInt(20));
+                if (random.nextInt(4) == 0) {
+                    transition.put("guard", "count < " + random.nextInt(10));
+                }
+                if (random.nextInt(3) == 0) {
+                    transition.put("effect", "count++");
+                }
+                int next;
+                if (kind == Kind.CLUSTERED) {
+                    int base = (i - 1) / CLUSTER_SIZE * CLUSTER_SIZE + 1;
+                    next = base + random.nextInt(Math.min(CLUSTER_SIZE, states - base + 1));
+                } else {
+                    next = 1 + random.nextInt(states);
+                }
+                String nextName = i == states && t == 0 ? "終了状態" : stateName(next);
+                transition.put("nextState", next == current ? nextName + "#FF5555" : nextName);
+            }
+
+            ObjectNode behavior = item.putObject("behavior");
+            if (random.nextBoolean()) {
+                behavior.put("entry", "ランプを点灯する");
+            }
+            if (random.nextInt(3) == 0) {
+                behavior.put("do", "命令を監視する");
+            }
+            if (random.nextInt(3) == 0) {
+                behavior.put("exit", "ランプを消灯する");
+            }
+            if (i == clicked) {
+                item.putObject("click").put("type", "switchIfType");
+            }
+        }
+
+        if (kind == Kind.DUPLICATE) {
+            ObjectNode duplicate = workspace.addObject();
+            duplicate.put("state", stateName(1));
+            duplicate.putArray("transition");
+            duplicate.putObject("behavior");
+            duplicate.putObject("invalid").put("condition", "true");
+        }
+        return workspace;
+    }
+
+    // ベンチマークの@Paramの値からワークスペースを作る
+    // 課題のワークスペース名(light など)か，"状態数xKind"(例: 1000xVALID)を受け付ける
+    public static JsonNode fromParam(String param) {
+        int separator = param.indexOf('x');
+        if (separator > 0 && Character.isDigit(param.charAt(0))) {
+            int states = Integer.parseInt(param.substring(0, separator));
+            return generate(states, 3, Kind.valueOf(param.substring(separator + 1)));
+        }
+        return Workspaces.load(param);
+    }
+
+    private static String stateName(int i) {
+        return "状態" + i;
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+// ベンチマークで使うワークスペース(src/jmh/resources/workspaces)を読み込むクラス
+// 各課題(json/)のブロックを使って組み立てた，フロントエンドが送ってくる形のデータ
+public final class Workspaces {
+    public static final String[] NAMES = {"light", "printer", "study_system"};
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private Workspaces() {
+    }
+
+    public static JsonNode load(String name) {
+        try (InputStream in = Workspaces.class.getResourceAsStream("/workspaces/" + name + ".json")) {
+            if (in == null) {
+                throw new IllegalArgumentException("ワークスペースが見つかりません: " + name);
+            }
+            return MAPPER.readTree(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
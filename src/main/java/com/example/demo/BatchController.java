@@ -0,0 +1,49 @@
+package com.example.demo;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServletRequest;
+
+// 提出された全てのワークスペースの図をまとめて作るためのコントローラー
+@RestController
+@CrossOrigin(origins = "*")  // すべてのオリジンを許可
+public class BatchController {
+    private final BatchRenderService batchRenderService;
+    private final RenderAdmission admission;
+    private final long timeoutMillis;
+
+    public BatchController(BatchRenderService batchRenderService, RenderAdmission admission,
+                           @Value("${batch.timeout-millis:600000}") long timeoutMillis) {
+        this.batchRenderService = batchRenderService;
+        this.admission = admission;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // ワークスペースのjson配列，またはNDJSON(一行に一つのワークスペース)を受け取り，
+    // 描画が終わった順に結果(plantUML・SVG・チェック結果)をNDJSONで返す
+    // 同時に実行できるバッチの数(batch.max-concurrent)を超えたときは503を返す
+    @PostMapping(value = "/batch", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public ResponseEntity<ResponseBodyEmitter> batch(HttpServletRequest request,
+                                                     @RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType) throws IOException {
+        boolean ndjson = MediaType.APPLICATION_NDJSON.includes(MediaType.parseMediaType(contentType));
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(timeoutMillis);
+        try {
+            batchRenderService.start(request.getInputStream(), ndjson, emitter, admission.clientOf(request));
+        } catch (RenderRejectedException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .build();
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(emitter);
+    }
+}
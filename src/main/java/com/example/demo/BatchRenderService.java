@@ -0,0 +1,252 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 複数のワークスペースをまとめて描画し，終わった順にNDJSON(一行に一つのjson)で返すサービス
+// 同時に描画する数と，読み込んだが結果を返していないワークスペースの数を制限するので，
+// ワークスペースがいくつあってもメモリの使用量は一定に保たれる
+// 描画はDiagramRenderServiceに依頼する(キャッシュ・描画中の図への相乗り・Graphvizの監視・クライアントごとの公平な割り当てを共有する)
+// バッチの描画は"batch:"をつけたクライアントとして割り当てるので，同じクライアントの対話的な描画とは別に数えられ，
+// (アドレスの上限は共有する)他のクライアントの描画より先に進むこともない 断られたときは指定された秒数だけ待ってから依頼し直す
+@Service
+public class BatchRenderService {
+    private static final Logger log = LoggerFactory.getLogger(BatchRenderService.class);
+
+    private static final String CLIENT_PREFIX = "batch:";
+
+    private final WorkspaceDecoder workspaceDecoder;
+    private final DiagramRenderService renderService;
+    private final LayoutMode layout;
+    private final int partitionMinStates; // この数以上の状態がある図は部分ごとに分けて描画する
+    private final int window; // 一つのバッチで，結果を返していないワークスペースの上限
+    private final ForkJoinPool workers; // 描画を行うスレッド(全てのバッチで共有する)
+    private final ThreadPoolExecutor readers; // 本文を読み込むスレッド(一つのバッチに一つ 数を超えたバッチは断る)
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public BatchRenderService(WorkspaceDecoder workspaceDecoder, DiagramRenderService renderService,
+                              @Value("${render.layout:graphviz}") String layout,
+                              @Value("${render.partition.min-states:200}") int partitionMinStates,
+                              @Value("${batch.parallelism:0}") int parallelism,
+                              @Value("${batch.max-concurrent:4}") int maxConcurrent) {
+        this.workspaceDecoder = workspaceDecoder;
+        this.renderService = renderService;
+        this.layout = LayoutMode.from(layout);
+        this.partitionMinStates = partitionMinStates;
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors(); // 0のときはCPUのコア数
+        this.workers = new ForkJoinPool(threads);
+        this.window = threads * 2;
+        this.readers = new ThreadPoolExecutor(0, maxConcurrent, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "batch-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // リクエストの本文を別のスレッドで読み込みながら描画を始める(結果はemitterに書き込む)
+    // ndjsonがtrueのときは一行に一つのワークスペース，falseのときはワークスペースのjson配列
+    // clientIdは送ってきたクライアント(RenderAdmission.clientOf) 同時に実行できるバッチの数を超えたときはRenderRejectedException
+    public void start(InputStream in, boolean ndjson, ResponseBodyEmitter emitter, String clientId) {
+        try {
+            readers.execute(() -> run(in, ndjson, emitter, CLIENT_PREFIX + clientId));
+        } catch (RejectedExecutionException e) {
+            throw new RenderRejectedException("同時に実行できるバッチの数を超えています", 1);
+        }
+    }
+
+    private void run(InputStream in, boolean ndjson, ResponseBodyEmitter emitter, String clientId) {
+        Semaphore inFlight = new Semaphore(window);
+        AtomicBoolean aborted = new AtomicBoolean(); // クライアントが切断したときなど
+        int index = 0;
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            JsonToken token = parser.nextToken();
+            if (!ndjson) {
+                if (token != JsonToken.START_ARRAY) {
+                    throw new IOException("ワークスペースのjson配列を送ってください");
+                }
+                token = parser.nextToken();
+            }
+            while (token != null && token != JsonToken.END_ARRAY && !aborted.get()) {
+                int workspaceIndex = index++;
+                StateMachine machine = null;
+                String outcome = null;
+                String failure = null;
+                try {
+                    machine = readWorkspace(parser);
+                } catch (WorkspaceTooLargeException e) {
+                    outcome = "WorkspaceTooLarge"; // このワークスペースだけ飛ばして次を読む
+                    failure = e.getMessage();
+                } catch (RuntimeException e) {
+                    outcome = "InvalidWorkspace"; // 中間表現にできない値(数字でないclick.numberなど)があった
+                    failure = String.valueOf(e.getMessage());
+                }
+                inFlight.acquire();
+                if (failure != null) {
+                    send(emitter, result(workspaceIndex, outcome, null, null, failure), aborted);
+                    inFlight.release();
+                } else {
+                    StateMachine workspace = machine;
+                    workers.execute(() -> {
+                        try {
+                            send(emitter, render(workspaceIndex, workspace, clientId, aborted), aborted);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+                token = parser.nextToken();
+            }
+            inFlight.acquire(window); // 全ての描画が終わるのを待つ
+            emitter.complete();
+        } catch (IOException e) {
+            // 読み込めなかった位置までの結果は返してあるので，エラーを一行追加して終わる
+            inFlight.acquireUninterruptibly(window);
+            send(emitter, result(index, "InvalidJson", null, null, e.getMessage()), aborted);
+            emitter.complete();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            emitter.completeWithError(e);
+        } catch (RuntimeException e) {
+            // 想定していない失敗でも，描画中の結果を返してから接続を閉じる(タイムアウトまで待たせない)
+            log.warn("バッチの処理を続けられませんでした", e);
+            inFlight.acquireUninterruptibly(window);
+            emitter.completeWithError(e);
+        }
+    }
+
+    // ワークスペースを一つ読み込むメソッド
+    // 上限を超えていたときや中間表現にできなかったときは，そのワークスペースの残りを読み飛ばしてから例外を投げる
+    private StateMachine readWorkspace(JsonParser parser) throws IOException {
+        int depth = depth(parser.getParsingContext());
+        try {
+            return workspaceDecoder.decode(parser);
+        } catch (RuntimeException e) {
+            while (depth(parser.getParsingContext()) >= depth) {
+                parser.nextToken();
+            }
+            throw e;
+        }
+    }
+
+    private static int depth(JsonStreamContext context) {
+        int depth = 0;
+        for (JsonStreamContext c = context; c != null; c = c.getParent()) {
+            depth++;
+        }
+        return depth;
+    }
+
+    // ワークスペースを一つ描画し，結果の一行を作るメソッド
+    private Map<String, Object> render(int index, StateMachine machine, String clientId, AtomicBoolean aborted) {
+        StmGenerator generator = new StmGenerator(layout, partitionMinStates);
+        DiagramError error = machine.error();
+        String outcome = error == null ? "ok" : error.code();
+        String plantUMLValue = null;
+        try {
+            plantUMLValue = generator.toPlantUML(machine);
+            DiagramHighlights highlights = generator.highlights(machine);
+            String renderValue = generator.toRenderPlantUML(machine, plantUMLValue); // 描画とキャッシュのキーに使う記述
+            String structural = highlights.isEmpty() || !renderService.isHighlightRewriteEnabled()
+                    ? renderValue : generator.toStructuralPlantUML(machine);
+            RenderedSvg rendered = renderRetrying(renderValue, structural, highlights, clientId, aborted);
+            return result(index, outcome, plantUMLValue, new String(rendered.svg, StandardCharsets.UTF_8), null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return result(index, "RenderError", plantUMLValue, null, "描画を待っている間に中断されました");
+        } catch (ExecutionException e) {
+            return result(index, "RenderError", plantUMLValue, null, e.getCause().getMessage());
+        } catch (RuntimeException e) {
+            return result(index, "RenderError", plantUMLValue, null, e.getMessage());
+        }
+    }
+
+    // 描画待ちのキューやクライアントの割り当てがいっぱいで断られたときは，指定された秒数だけ待ってから依頼し直す
+    private RenderedSvg renderRetrying(String renderValue, String structural, DiagramHighlights highlights,
+                                       String clientId, AtomicBoolean aborted)
+            throws InterruptedException, ExecutionException {
+        while (true) {
+            RenderRejectedException rejection;
+            try {
+                return renderService.render(renderValue, structural, highlights, clientId).get();
+            } catch (RenderRejectedException e) {
+                rejection = e;
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof RenderRejectedException)) {
+                    throw e;
+                }
+                rejection = (RenderRejectedException) e.getCause(); // 相乗りしていた描画が断られた
+            }
+            if (aborted.get()) {
+                throw rejection;
+            }
+            TimeUnit.SECONDS.sleep(rejection.getRetryAfterSeconds());
+        }
+    }
+
+    private static Map<String, Object> result(int index, String outcome, String plantUMLValue, String svg, String message) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("index", index); // 送られてきた順番(0から)
+        result.put("outcome", outcome);
+        if (plantUMLValue != null) {
+            result.put("plantUMLValue", plantUMLValue);
+        }
+        if (svg != null) {
+            result.put("svg", svg);
+        }
+        if (message != null) {
+            result.put("message", message);
+        }
+        return result;
+    }
+
+    // 結果を一行書き込むメソッド 書き込めなかったら(クライアントが切断したら)残りは描画しない
+    private void send(ResponseBodyEmitter emitter, Map<String, Object> result, AtomicBoolean aborted) {
+        if (aborted.get()) {
+            return;
+        }
+        try {
+            byte[] line = objectMapper.writeValueAsBytes(result);
+            synchronized (emitter) {
+                emitter.send(line, MediaType.APPLICATION_OCTET_STREAM);
+                emitter.send(NEWLINE, MediaType.APPLICATION_OCTET_STREAM);
+            }
+        } catch (IOException | IllegalStateException e) {
+            if (aborted.compareAndSet(false, true)) {
+                log.info("バッチの結果を書き込めないため中断します: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static final byte[] NEWLINE = {'\n'};
+
+    @PreDestroy
+    public void shutdown() {
+        readers.shutdownNow();
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+
+// jsonToPlantUMLが図にする内容(状態・遷移・振る舞い)だけを取り出して並べ替えた，状態マシンの正規形
+// ブロックの順番・クリックの情報・現在の状態の印(#FF5555)が違うだけのワークスペースは同じ正規形になる
+// 図として表示できないワークスペースはエラーのノートだけの図になるので，エラーの種類だけを持つ
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public final class CanonicalMachine {
+    public static final String PSEUDO_STATE = "[*]"; // 初期状態からの遷移の遷移元・終了状態への遷移の遷移先
+
+    // 遷移 値がないもの(と完了イベント)はnull
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static final class Transition implements Comparable<Transition> {
+        public final String from;
+        public final String to;
+        public final String event;
+        public final String guard;
+        public final String effect;
+
+        Transition(String from, String to, String event, String guard, String effect) {
+            this.from = from;
+            this.to = to;
+            this.event = event;
+            this.guard = guard;
+            this.effect = effect;
+        }
+
+        @Override
+        public int compareTo(Transition other) {
+            int c = from.compareTo(other.from);
+            if (c == 0) c = to.compareTo(other.to);
+            if (c == 0) c = compareNullable(event, other.event);
+            if (c == 0) c = compareNullable(guard, other.guard);
+            if (c == 0) c = compareNullable(effect, other.effect);
+            return c;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Transition && compareTo((Transition) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(from, to, event, guard, effect);
+        }
+    }
+
+    // 振る舞い(kindはentry・do・exit)
+    public static final class Behavior implements Comparable<Behavior> {
+        public final String state;
+        public final String kind;
+        public final String action;
+
+        Behavior(String state, String kind, String action) {
+            this.state = state;
+            this.kind = kind;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Behavior other) {
+            int c = state.compareTo(other.state);
+            if (c == 0) c = kind.compareTo(other.kind);
+            if (c == 0) c = action.compareTo(other.action);
+            return c;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Behavior && compareTo((Behavior) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(state, kind, action);
+        }
+    }
+
+    public final String error; // エラーのコード(図として表示できるときはnull)
+    public final List<String> states;
+    public final List<Transition> transitions;
+    public final List<Behavior> behaviors;
+    private String fingerprint;
+
+    private CanonicalMachine(String error, List<String> states, List<Transition> transitions, List<Behavior> behaviors) {
+        this.error = error;
+        this.states = states;
+        this.transitions = transitions;
+        this.behaviors = behaviors;
+    }
+
+    public static CanonicalMachine of(StateMachine machine) {
+        DiagramError error = machine.error();
+        if (error != null) {
+            return new CanonicalMachine(error.code(), Collections.<String>emptyList(),
+                    Collections.<Transition>emptyList(), Collections.<Behavior>emptyList());
+        }
+        TreeSet<String> states = new TreeSet<>();
+        for (String state : machine.states()) {
+            if (!state.equals(StateMachine.INITIAL_STATE) && !state.equals(StateMachine.FINAL_STATE)) {
+                states.add(state);
+            }
+        }
+        List<Transition> transitions = new ArrayList<>();
+        List<Behavior> behaviors = new ArrayList<>();
+        for (StateMachine.Block block : machine.blocks()) {
+            if (block.isInitial()) {
+                // 図に描かれるのは初期状態の最初の遷移だけ
+                StateMachine.Transition first = block.transitions.length > 0 ? block.transitions[0] : null;
+                if (first != null && first.nextState != null) {
+                    transitions.add(transition(PSEUDO_STATE, first));
+                }
+                continue;
+            }
+            String state = name(block.state);
+            if (state.isEmpty()) {
+                continue;
+            }
+            for (StateMachine.Transition transition : block.transitions) {
+                if (transition.nextState != null) {
+                    transitions.add(transition(state, transition));
+                }
+            }
+            addBehavior(behaviors, state, "entry", block.entry);
+            addBehavior(behaviors, state, "do", block.doActivity);
+            addBehavior(behaviors, state, "exit", block.exit);
+        }
+        Collections.sort(transitions);
+        Collections.sort(behaviors);
+        return new CanonicalMachine(null, new ArrayList<>(states), transitions, behaviors);
+    }
+
+    // 正規形のSHA-256(16進数) 同じ図になるワークスペースは同じ値になる
+    @JsonIgnore
+    public String fingerprint() {
+        if (fingerprint == null) {
+            StringBuilder text = new StringBuilder();
+            field(text, error).append('\n');
+            for (String state : states) {
+                field(text, state).append('\n');
+            }
+            text.append('\n');
+            for (Transition t : transitions) {
+                field(field(field(field(field(text, t.from), t.to), t.event), t.guard), t.effect).append('\n');
+            }
+            text.append('\n');
+            for (Behavior b : behaviors) {
+                field(field(field(text, b.state), b.kind), b.action).append('\n');
+            }
+            fingerprint = RenderCache.key(text.toString());
+        }
+        return fingerprint;
+    }
+
+    // referenceとの構造の違い(referenceにあってこちらにないものがmissing，こちらにだけあるものがextra)
+    // 同じ遷移・振る舞いが複数あるときは，その数の違いも数える
+    public Diff diff(CanonicalMachine reference) {
+        Diff diff = new Diff();
+        diff.equal = fingerprint().equals(reference.fingerprint());
+        if (error != null || reference.error != null) {
+            // どちらかが図として表示できないときは，構造ではなくエラーの違いだけを返す
+            if (!diff.equal) {
+                diff.error = error;
+                diff.referenceError = reference.error;
+            }
+            return diff;
+        }
+        compare(reference.states, states, diff.missingStates, diff.extraStates);
+        compare(reference.transitions, transitions, diff.missingTransitions, diff.extraTransitions);
+        compare(reference.behaviors, behaviors, diff.missingBehaviors, diff.extraBehaviors);
+        return diff;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public static final class Diff {
+        @JsonInclude(JsonInclude.Include.ALWAYS)
+        public boolean equal;
+        public String error;          // どちらかにエラーがあり，エラーが違うときだけ
+        public String referenceError;
+        public final List<String> missingStates = new ArrayList<>();
+        public final List<String> extraStates = new ArrayList<>();
+        public final List<Transition> missingTransitions = new ArrayList<>();
+        public final List<Transition> extraTransitions = new ArrayList<>();
+        public final List<Behavior> missingBehaviors = new ArrayList<>();
+        public final List<Behavior> extraBehaviors = new ArrayList<>();
+    }
+
+    // 並べ替え済みの二つのリストを先頭から順に比べる
+    private static <T extends Comparable<? super T>> void compare(List<T> expected, List<T> actual, List<T> missing, List<T> extra) {
+        int i = 0;
+        int j = 0;
+        while (i < expected.size() || j < actual.size()) {
+            int c = i == expected.size() ? 1 : j == actual.size() ? -1 : expected.get(i).compareTo(actual.get(j));
+            if (c < 0) {
+                missing.add(expected.get(i++));
+            } else if (c > 0) {
+                extra.add(actual.get(j++));
+            } else {
+                i++;
+                j++;
+            }
+        }
+    }
+
+    // 値の区切りが曖昧にならないように，長さをつけて書く(nullは-)
+    private static StringBuilder field(StringBuilder text, String value) {
+        return value == null ? text.append("-;") : text.append(value.length()).append(':').append(value).append(';');
+    }
+
+    private static Transition transition(String from, StateMachine.Transition transition) {
+        String event = "completeEvent".equals(transition.event) ? null : text(transition.event); // 完了イベントは図に書かれない
+        String to = name(transition.nextState);
+        return new Transition(from, StateMachine.FINAL_STATE.equals(to) ? PSEUDO_STATE : to,
+                event, text(transition.guard), text(transition.effect));
+    }
+
+    private static void addBehavior(List<Behavior> behaviors, String state, String kind, String action) {
+        String text = text(action);
+        if (text != null) {
+            behaviors.add(new Behavior(state, kind, text));
+        }
+    }
+
+    // 状態名から#FF5555と前後の空白を除く
+    private static String name(String stateName) {
+        return StateMachine.stripMarker(stateName).trim();
+    }
+
+    // 前後の空白を除き，空のときはnullにする
+    private static String text(String value) {
+        if (value == null) {
+            return null;
+        }
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    private static int compareNullable(String a, String b) {
+        if (a == null) {
+            return b == null ? 0 : -1;
+        }
+        return b == null ? 1 : a.compareTo(b);
+    }
+}
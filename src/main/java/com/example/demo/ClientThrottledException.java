@@ -0,0 +1,9 @@
+package com.example.demo;
+
+// 一つのクライアントが描画の割り当て(トークンバケット・クライアントごとのキューの長さ)を使い切ったときに投げる例外
+// 全体のキューがいっぱいのとき(503)と区別して429を返す
+public class ClientThrottledException extends RenderRejectedException {
+    public ClientThrottledException(String message, int retryAfterSeconds) {
+        super(message, retryAfterSeconds);
+    }
+}
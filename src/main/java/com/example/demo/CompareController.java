@@ -0,0 +1,129 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 描画せずにワークスペースの正規形(CanonicalMachine)を作り，同じ図になるかを調べるコントローラー
+// 提出されたワークスペースの重複を除いたり，模範解答と比べて採点したりするときに使う
+@RestController
+@CrossOrigin(origins = "*")  // すべてのオリジンを許可
+public class CompareController {
+    private final WorkspaceDecoder workspaceDecoder;
+    private final DiagramMetrics metrics;
+    private final int maxWorkspaces;
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    public CompareController(WorkspaceDecoder workspaceDecoder, DiagramMetrics metrics,
+                             @Value("${compare.max-workspaces:10000}") int maxWorkspaces) {
+        this.workspaceDecoder = workspaceDecoder;
+        this.metrics = metrics;
+        this.maxWorkspaces = maxWorkspaces;
+    }
+
+    // POST /と同じワークスペースを受け取り，正規形とそのフィンガープリントを返す
+    @PostMapping("/fingerprint")
+    public Map<String, Object> fingerprint(InputStream body) throws IOException {
+        long start = System.nanoTime();
+        CanonicalMachine canonical = CanonicalMachine.of(workspaceDecoder.decode(body));
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("fingerprint", canonical.fingerprint());
+        response.put("canonical", canonical);
+        metrics.record(DiagramMetrics.Stage.COMPARE, start);
+        return response;
+    }
+
+    // {"reference":[模範解答], "workspace":[提出]} を受け取り，模範解答との構造の違いを返す
+    // 多くの提出をまとめて比べるときは "workspace" の代わりに "workspaces":[[提出], ...] とする(結果は "results" に同じ順で入る)
+    @PostMapping("/compare")
+    public Map<String, Object> compare(InputStream body) throws IOException {
+        long start = System.nanoTime();
+        CanonicalMachine reference = null;
+        CanonicalMachine single = null;
+        List<CanonicalMachine> submissions = null;
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "比べるワークスペースはjsonのオブジェクトで送る必要があります");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "reference":
+                        reference = CanonicalMachine.of(workspaceDecoder.decode(parser));
+                        break;
+                    case "workspace":
+                        single = CanonicalMachine.of(workspaceDecoder.decode(parser));
+                        break;
+                    case "workspaces":
+                        submissions = readWorkspaces(parser);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (reference == null || (single == null) == (submissions == null)) {
+                throw new JsonParseException(parser, "\"reference\" と，\"workspace\" か \"workspaces\" のどちらか一方が必要です");
+            }
+        }
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("referenceFingerprint", reference.fingerprint());
+        if (single != null) {
+            response.put("fingerprint", single.fingerprint());
+            response.put("diff", single.diff(reference));
+        } else {
+            List<Map<String, Object>> results = new ArrayList<>(submissions.size());
+            int equal = 0;
+            for (CanonicalMachine submission : submissions) {
+                CanonicalMachine.Diff diff = submission.diff(reference);
+                if (diff.equal) {
+                    equal++;
+                }
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("fingerprint", submission.fingerprint());
+                result.put("diff", diff);
+                results.add(result);
+            }
+            response.put("equal", equal);
+            response.put("results", results);
+        }
+        metrics.record(DiagramMetrics.Stage.COMPARE, start);
+        return response;
+    }
+
+    private List<CanonicalMachine> readWorkspaces(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new JsonParseException(parser, "\"workspaces\" はワークスペースの配列である必要があります");
+        }
+        List<CanonicalMachine> submissions = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (submissions.size() >= maxWorkspaces) {
+                throw new WorkspaceTooLargeException("ワークスペースの数が上限(" + maxWorkspaces + ")を超えています");
+            }
+            submissions.add(CanonicalMachine.of(workspaceDecoder.decode(parser)));
+        }
+        return submissions;
+    }
+
+    // jsonとして読み込めないリクエストには400を返す
+    @ExceptionHandler(JsonProcessingException.class)
+    public ResponseEntity<Void> invalidJson(JsonProcessingException e) {
+        return ResponseEntity.badRequest().build();
+    }
+}
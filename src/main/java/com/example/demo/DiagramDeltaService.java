@@ -0,0 +1,156 @@
+package com.example.demo;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// クライアントごとに最近送ったSVGを版(plantUML記述のSHA-256)ごとに保持し，
+// クライアントが持っている版との差分(SvgDelta)を返すサービス
+// 基の版が分からないときや，差分のほうが元のSVGより大きくなるときはSVGをそのまま返す
+// 保持するSVGはキャッシュから追い出された後も残るので，全クライアントの合計バイト数で上限を決める
+@Service
+public class DiagramDeltaService implements MeterBinder {
+    private static final int MAX_CLIENT_ID_LENGTH = 64;
+
+    private final Cache<String, History> clients;
+    private final int historySize;
+    private final LongAdder patches = new LongAdder(); // 差分を返した数
+    private final LongAdder unknownBase = new LongAdder(); // 基の版を保持していなかったのでそのまま返した数
+    private final LongAdder tooLarge = new LongAdder(); // 差分のほうが大きかったのでそのまま返した数
+    private final LongAdder savedBytes = new LongAdder(); // 差分にしたことで減ったバイト数(SVGの大きさとの差)
+
+    // 差分を返すときはpatch，そのまま返すときはnull
+    public static final class Delta {
+        public final List<Object> patch;
+
+        Delta(List<Object> patch) {
+            this.patch = patch;
+        }
+    }
+
+    // 一つのクライアントの最近の版(古いものから消す)
+    private static final class History {
+        private final Map<String, byte[]> versions;
+        private int bytes; // 保持している版(SVGと版の文字列)の合計バイト数
+
+        History(int size) {
+            this.versions = new LinkedHashMap<String, byte[]>(size + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    if (size() > size) {
+                        bytes -= weight(eldest.getKey(), eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized byte[] get(String version) {
+            return versions.get(version);
+        }
+
+        synchronized void put(String version, byte[] svg) {
+            byte[] previous = versions.put(version, svg);
+            if (previous != null) {
+                bytes -= weight(version, previous);
+            }
+            bytes += weight(version, svg);
+        }
+
+        synchronized int bytes() {
+            return bytes;
+        }
+
+        private static int weight(String version, byte[] svg) {
+            return version.length() + svg.length;
+        }
+    }
+
+    public DiagramDeltaService(@Value("${delta.history-size:4}") int historySize,
+                               @Value("${delta.max-bytes:67108864}") long maxBytes,
+                               @Value("${delta.idle-timeout-millis:1800000}") long idleTimeoutMillis) {
+        this.historySize = historySize;
+        this.clients = Caffeine.newBuilder()
+                .maximumWeight(maxBytes) // 全クライアントが保持するSVGの合計バイト数の上限
+                .weigher((String clientId, History history) -> clientId.length() + history.bytes())
+                .expireAfterAccess(idleTimeoutMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    // クライアントの識別子として使える値か(長すぎるものは保持しない)
+    public static boolean isValidClientId(String clientId) {
+        return clientId != null && !clientId.isEmpty() && clientId.length() <= MAX_CLIENT_ID_LENGTH;
+    }
+
+    // versionのSVGをクライアントの履歴に加え，クライアントが持っているbaseVersionとの差分を返す
+    // SVGのバイト配列はキャッシュと同じものを参照するので，履歴のために複製はしない
+    public Delta delta(String clientId, String baseVersion, String version, byte[] svg) {
+        History history = clients.get(clientId, id -> new History(historySize));
+        byte[] base = baseVersion == null ? null : history.get(baseVersion);
+        history.put(version, svg);
+        clients.put(clientId, history); // 入れ直して，増えた分の重さを数え直してもらう
+        if (base == null) {
+            if (baseVersion != null) {
+                unknownBase.increment();
+            }
+            return new Delta(null);
+        }
+        if (version.equals(baseVersion)) {
+            patches.increment();
+            savedBytes.add(svg.length);
+            return new Delta(Collections.emptyList()); // 図は変わっていない
+        }
+        List<Object> patch = SvgDelta.diff(SvgDelta.tokenize(new String(base, StandardCharsets.UTF_8)),
+                SvgDelta.tokenize(new String(svg, StandardCharsets.UTF_8)));
+        int length = SvgDelta.jsonLength(patch);
+        if (length >= svg.length) {
+            tooLarge.increment();
+            return new Delta(null);
+        }
+        patches.increment();
+        savedBytes.add(svg.length - length);
+        return new Delta(patch);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("clients", clients.estimatedSize());
+        result.put("patches", patches.sum());
+        result.put("unknownBase", unknownBase.sum());
+        result.put("tooLarge", tooLarge.sum());
+        result.put("savedBytes", savedBytes.sum());
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("diagram.delta.patches", patches, LongAdder::sum)
+                .description("差分で返した図の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.delta.full", unknownBase, LongAdder::sum)
+                .tag("reason", "unknown-base")
+                .description("差分を求められたがSVGをそのまま返した図の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.delta.full", tooLarge, LongAdder::sum)
+                .tag("reason", "too-large")
+                .description("差分を求められたがSVGをそのまま返した図の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.delta.saved", savedBytes, LongAdder::sum)
+                .baseUnit("bytes")
+                .description("差分にしたことで減ったバイト数")
+                .register(registry);
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.demo;
+
+// ワークスペースを状態マシン図として表示できないときのエラー
+// 図の代わりにノートだけを表示する
+public enum DiagramError {
+    // 「初めは初期状態とする」ブロックがない
+    INITIAL_STATE_DEFINITION("InitialStateDefinitionError",
+            " <b><color:red>\"初めは「初期状態」としてください\"\n"),
+    // 状態名に数字・日本語・アルファベット以外が使われている
+    STATE_NAME_NAMING("stateNameNamingError",
+            " <b><color:red>\"「状態名」には数字・日本語・アルファベットのみ使用できます\"\n"),
+    // 初期状態からの遷移が複数ある
+    INVALID_STATE_TRANSITION("InvalidStateTransitionError",
+            " <b><color:red>\"「初期状態」から到達できるのは一つの状態だけです\"\n<b><color:red>\"「初期状態」には「イベント」を設定できません\"\n"),
+    // 同じ状態が複数回定義されている
+    DUPLICATE_STATE_DEFINITION("DuplicateStateDefinitionError",
+            " <b><color:red>\"同じ状態は複数回定義できません\"\n"),
+    // 初期状態の次の状態が決まっていない
+    INITIAL_STATE_TRANSITION("InitialStateTransitionError",
+            " <b><color:red>\"「初期状態」の次の状態を決めてください\"\n");
+
+    private final String code;
+    private final String message;
+
+    DiagramError(String code, String message) {
+        this.code = code;
+        this.message = message;
+    }
+
+    // plantUMLのノート名にも使うエラーコード
+    public String code() {
+        return code;
+    }
+
+    // エラーをplantUMLのノートとして追加するメソッド
+    public StringBuilder appendNote(StringBuilder result) {
+        return result.append("note as ").append(code).append('\n').append(message).append(" end note\n");
+    }
+}
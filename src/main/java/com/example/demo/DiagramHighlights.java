@@ -0,0 +1,130 @@
+package com.example.demo;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+// 一つの図の色付け(クリックされたブロック・現在の状態)
+// 構造だけの図のSVGに，HighlightRewriterでこの色付けを書き込む
+public final class DiagramHighlights {
+    public static final String START_ENTITY = "*start*"; // plantUMLが初期状態([*])に付ける名前
+    private static final String CURRENT_FILL = "#FF5555";
+
+    private final String color; // クリック時の色(SVGの16進数表記) 変換できない色のときはnull
+    private final Map<String, Integer> edges = new LinkedHashMap<>(); // 色付けする遷移の元の状態と，その遷移の数
+    private final Set<String> filled = new LinkedHashSet<>(); // 現在の状態として塗りつぶす状態
+    private final Set<String> lined = new LinkedHashSet<>(); // 枠線を太くして色付けする状態
+    private final Set<String> texted = new LinkedHashSet<>(); // 状態名に色付けする状態
+    private boolean rewritable = true; // SVGの書き換えで再現できる色付けか
+
+    DiagramHighlights(String color) {
+        this.color = toHex(color);
+        if (this.color == null) {
+            rewritable = false;
+        }
+    }
+
+    // 状態から出る遷移を全て色付けする(遷移の数はSVGを書き換えるときの確認に使う)
+    void edgesFrom(String state, int count) {
+        edges.merge(state, count, Integer::sum);
+    }
+
+    // plantUMLに書き出した状態名に#FF5555がついていれば，その状態を塗りつぶす
+    void marked(String stateName) {
+        int markerAt = stateName.indexOf(StateMachine.CURRENT_MARKER);
+        if (markerAt < 0) {
+            return;
+        }
+        // 状態名の途中に#FF5555があるときは，plantUMLでの解釈が分からないので書き換えない
+        if (markerAt == 0 || markerAt != stateName.length() - StateMachine.CURRENT_MARKER.length()) {
+            rewritable = false;
+            return;
+        }
+        filled.add(stateName.substring(0, markerAt));
+    }
+
+    void fill(String stateName) {
+        String name = target(stateName);
+        if (name != null) {
+            filled.add(name);
+        }
+    }
+
+    void line(String stateName) {
+        String name = target(stateName);
+        if (name != null) {
+            lined.add(name);
+        }
+    }
+
+    void text(String stateName) {
+        String name = target(stateName);
+        if (name != null) {
+            texted.add(name);
+        }
+    }
+
+    // updateStateColorが"state 状態名"を書き出す状態 初期状態などに書き出すと状態が増えてしまうので書き換えない
+    private String target(String stateName) {
+        marked(stateName);
+        String name = StateMachine.stripMarker(stateName);
+        if (name.isEmpty() || !name.equals(name.trim()) || StateMachine.INITIAL_STATE.equals(name)) {
+            rewritable = false;
+            return null;
+        }
+        return name;
+    }
+
+    // SVGの書き換えでは再現できない色付け
+    void notRewritable() {
+        rewritable = false;
+    }
+
+    // 色付けが一つもないか(構造だけの記述とtoPlantUMLの記述が同じになる)
+    public boolean isEmpty() {
+        return edges.isEmpty() && filled.isEmpty() && lined.isEmpty() && texted.isEmpty();
+    }
+
+    public boolean isRewritable() {
+        return rewritable;
+    }
+
+    public String color() {
+        return color;
+    }
+
+    public String currentFill() {
+        return CURRENT_FILL;
+    }
+
+    public Map<String, Integer> edges() {
+        return edges;
+    }
+
+    public Set<String> filled() {
+        return filled;
+    }
+
+    public Set<String> lined() {
+        return lined;
+    }
+
+    public Set<String> texted() {
+        return texted;
+    }
+
+    // plantUMLの色名をSVGの16進数表記にするメソッド(StmGeneratorで使う色のみ)
+    private static String toHex(String color) {
+        if (color.matches("#?[0-9A-Fa-f]{6}")) {
+            return color.startsWith("#") ? color.toUpperCase() : "#" + color.toUpperCase();
+        }
+        switch (color.toLowerCase()) {
+            case "orange": return "#FFA500";
+            case "red":    return "#FF0000";
+            case "blue":   return "#0000FF";
+            case "green":  return "#008000";
+            default:       return null;
+        }
+    }
+}
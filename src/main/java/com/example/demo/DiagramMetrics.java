@@ -0,0 +1,86 @@
+package com.example.demo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// 図を作る各段階の処理時間や，ワークスペース・SVGの大きさを記録するクラス
+// /actuator/prometheus からPrometheus形式で取得できる
+@Component
+public class DiagramMetrics {
+    // 計測する段階
+    public enum Stage {
+        PARSE,     // リクエストの本文の読み込み(状態名などのチェックもここで行う)
+        GENERATE,  // plantUML記述の作成
+        RENDER,    // plantUML + Graphviz によるSVGの描画
+        ENCODE,    // レスポンスの作成(Base64への変換など)
+        WAIT,      // 描画スレッドプールのキューで待った時間
+        HIGHLIGHT, // 構造だけの図のSVGへの色付けの書き込み
+        MINIFY,    // SVGを小さくしてgzip圧縮版を作る時間
+        LINT,      // POST /lint の読み込みとチェック(描画はしない)
+        PREVIEW,   // 描画を待つ間に送る簡易版の図(PreviewRenderer)の作成
+        COMPARE,   // POST /fingerprint・/compare の読み込みと正規形の作成・比較(描画はしない)
+        EXECUTE    // POST /step・/simulate・/analyze の読み込みと実行・解析(描画はしない)
+    }
+
+    private final Map<Stage, Timer> timers = new EnumMap<>(Stage.class);
+    private final Map<DiagramError, Counter> errorCounters = new EnumMap<>(DiagramError.class);
+    private final Counter validCounter;
+    private final DistributionSummary payloadSize;
+    private final DistributionSummary svgSize;
+
+    public DiagramMetrics(MeterRegistry registry) {
+        for (Stage stage : Stage.values()) {
+            timers.put(stage, Timer.builder("diagram.stage")
+                    .description("図を作る各段階の処理時間")
+                    .tag("stage", stage.name().toLowerCase())
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+        for (DiagramError error : DiagramError.values()) {
+            errorCounters.put(error, validationCounter(registry, error.code()));
+        }
+        validCounter = validationCounter(registry, "ok");
+        payloadSize = DistributionSummary.builder("diagram.payload.size")
+                .description("受け取ったワークスペースの大きさ")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(registry);
+        svgSize = DistributionSummary.builder("diagram.svg.size")
+                .description("返したSVGの大きさ")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private static Counter validationCounter(MeterRegistry registry, String outcome) {
+        return Counter.builder("diagram.validation")
+                .description("ワークスペースのチェック結果ごとの件数")
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    // startNanos(System.nanoTime())からの経過時間を記録するメソッド
+    public void record(Stage stage, long startNanos) {
+        timers.get(stage).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // チェック結果を記録するメソッド(errorがnullのときは図として表示できるワークスペース)
+    public void validation(DiagramError error) {
+        (error == null ? validCounter : errorCounters.get(error)).increment();
+    }
+
+    public void payload(long bytes) {
+        payloadSize.record(bytes);
+    }
+
+    public void svg(int bytes) {
+        svgSize.record(bytes);
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.demo;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// plantUML記述をSVGに描画するサービス
+// Tomcatのスレッドではなく，スレッド数とキューの長さを制限した専用のスレッドプールで描画する
+// キューから取り出す順番はクライアントごとに公平にする(RenderAdmission)
+@Service
+public class DiagramRenderService implements MeterBinder {
+    private final RenderCache renderCache;
+    private final DiskRenderCache diskCache; // メモリのキャッシュになかったときに見る二段目のキャッシュ
+    private final PartitionedRenderer renderer; // 大きな図は部分ごとに並列に描画する
+    private final DiagramMetrics metrics;
+    private final SvgMinifier svgMinifier;
+    private final ErrorDiagrams errorDiagrams; // 起動時に描画しておいたエラーの図
+    private final RenderAdmission admission;
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final int retryAfterSeconds;
+    private final boolean highlightRewrite; // 色付けをSVGの書き換えで行うか
+    // 描画中の図(キーはplantUML記述のハッシュ) 同じ図の描画要求は一つにまとめる
+    private final ConcurrentHashMap<String, CompletableFuture<RenderedSvg>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder rejected = new LongAdder(); // キューがいっぱいで断った回数
+    private final LongAdder coalesced = new LongAdder(); // 描画中の図に相乗りした回数
+    private final LongAdder rendered = new LongAdder(); // 実際に描画した回数
+    private final LongAdder highlighted = new LongAdder(); // 色付けをSVGの書き換えで行った回数
+    private final LongAdder highlightFallbacks = new LongAdder(); // 書き換えられずに色付きの図を描画した回数
+    private final LongAdder totalWaitNanos = new LongAdder(); // キューで待った時間の合計
+    private final AtomicLong maxWaitNanos = new AtomicLong(); // キューで待った時間の最大値
+
+    public DiagramRenderService(RenderCache renderCache, DiskRenderCache diskCache, PartitionedRenderer renderer, DiagramMetrics metrics,
+                                SvgMinifier svgMinifier, ErrorDiagrams errorDiagrams, RenderAdmission admission,
+                                @Value("${render.executor.threads:4}") int threads,
+                                @Value("${render.executor.queue-capacity:64}") int queueCapacity,
+                                @Value("${render.executor.retry-after-seconds:1}") int retryAfterSeconds,
+                                @Value("${render.highlight-rewrite.enabled:false}") boolean highlightRewrite) {
+        this.renderCache = renderCache;
+        this.diskCache = diskCache;
+        this.renderer = renderer;
+        this.metrics = metrics;
+        this.svgMinifier = svgMinifier;
+        this.errorDiagrams = errorDiagrams;
+        this.admission = admission;
+        this.queueCapacity = queueCapacity;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.highlightRewrite = highlightRewrite;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                // RenderAdmissionが決めた順番で取り出す(キューの長さはrenderで制限する)
+                new PriorityBlockingQueue<>(queueCapacity, (a, b) -> ((FairTask) a).ticket.compareTo(((FairTask) b).ticket)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "render-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // キューに入れる描画 RenderAdmissionのTicketの順に並べる
+    private static final class FairTask implements Runnable {
+        final RenderAdmission.Ticket ticket;
+        final Runnable task;
+
+        FairTask(RenderAdmission.Ticket ticket, Runnable task) {
+            this.ticket = ticket;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    // plantUML記述をSVGに描画する(クライアントを区別しない描画 起動時の温めなど)
+    public CompletableFuture<RenderedSvg> render(String plantUMLStr) {
+        return renderFor(plantUMLStr, null);
+    }
+
+    // plantUML記述をSVGに描画する
+    // エラーの図とキャッシュ(メモリ・ディスク)にあればすぐに，同じ図を描画中であればその結果を返す
+    // 実際に描画するときだけ，clientIdのクライアントの割り当てを使う(超えていればClientThrottledException)
+    private CompletableFuture<RenderedSvg> renderFor(String plantUMLStr, String clientId) {
+        RenderedSvg fixed = errorDiagrams.get(plantUMLStr); // ハッシュを計算する前に見る
+        if (fixed != null) {
+            return CompletableFuture.completedFuture(fixed);
+        }
+        String key = RenderCache.key(plantUMLStr);
+        RenderedSvg cached = renderCache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        byte[] stored = diskCache.get(key); // 再起動前などに描画した図(小さくしたSVG)
+        if (stored != null) {
+            RenderedSvg rendered = RenderedSvg.of(stored);
+            renderCache.put(key, rendered);
+            return CompletableFuture.completedFuture(rendered);
+        }
+
+        CompletableFuture<RenderedSvg> future = new CompletableFuture<>();
+        CompletableFuture<RenderedSvg> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+
+        RenderAdmission.Ticket ticket;
+        try {
+            ticket = admission.admit(clientId, plantUMLStr);
+        } catch (ClientThrottledException e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+        long enqueuedAt = System.nanoTime();
+        try {
+            if (executor.getQueue().size() >= queueCapacity) {
+                throw new RejectedExecutionException(); // キューの長さを制限する(いっぱいのときは待たせずに断る)
+            }
+            executor.execute(new FairTask(ticket, () -> {
+                admission.started(ticket);
+                recordWait(System.nanoTime() - enqueuedAt);
+                metrics.record(DiagramMetrics.Stage.WAIT, enqueuedAt);
+                long renderStart = System.nanoTime();
+                try {
+                    byte[] svg = renderer.render(plantUMLStr);
+                    metrics.record(DiagramMetrics.Stage.RENDER, renderStart);
+                    long minifyStart = System.nanoTime();
+                    RenderedSvg result = RenderedSvg.of(svgMinifier.minify(svg)); // 小さくしてgzip圧縮版も作る
+                    metrics.record(DiagramMetrics.Stage.MINIFY, minifyStart);
+                    renderCache.put(key, result);
+                    diskCache.put(key, result.svg);
+                    rendered.increment();
+                    future.complete(result);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(key, future);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            admission.cancelled(ticket);
+            inFlight.remove(key, future);
+            rejected.increment();
+            RenderRejectedException rejection = new RenderRejectedException("描画待ちのキューがいっぱいです", retryAfterSeconds);
+            future.completeExceptionally(rejection); // 相乗りしていた要求にも断ったことを伝える
+            throw rejection;
+        }
+        return future;
+    }
+
+    // クリック・現在の状態の色付けだけが違う図はレイアウトが同じなので，
+    // 構造だけの記述(structuralStr)で描画・キャッシュしたSVGに色付けを書き込んで返す(Graphvizを使わない)
+    // 書き換えられないときは，色付きの記述(plantUMLStr)をそのまま描画する
+    public CompletableFuture<RenderedSvg> render(String plantUMLStr, String structuralStr, DiagramHighlights highlights) {
+        return render(plantUMLStr, structuralStr, highlights, null);
+    }
+
+    // 色付けをSVGの書き換えで行うか(falseのときは構造だけの記述を使わないので，呼び出し側で作らなくてよい)
+    public boolean isHighlightRewriteEnabled() {
+        return highlightRewrite;
+    }
+
+    // clientIdのクライアントからの要求として描画する(RenderAdmission.clientOfで決めた値)
+    public CompletableFuture<RenderedSvg> render(String plantUMLStr, String structuralStr, DiagramHighlights highlights,
+                                                 String clientId) {
+        if (!highlightRewrite || highlights.isEmpty() || !highlights.isRewritable()) {
+            return renderFor(plantUMLStr, clientId);
+        }
+        String key = RenderCache.key(plantUMLStr);
+        RenderedSvg cached = renderCache.get(key); // 以前に書き換えた(または書き換えられずに描画した)図
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return renderFor(structuralStr, clientId).thenCompose(structural -> {
+            long start = System.nanoTime();
+            byte[] rewritten = HighlightRewriter.apply(structural.svg, highlights);
+            if (rewritten != null) {
+                RenderedSvg result = RenderedSvg.of(rewritten);
+                metrics.record(DiagramMetrics.Stage.HIGHLIGHT, start);
+                renderCache.put(key, result); // 同じ色付けの要求では圧縮し直さない(書き換えは速いのでディスクには書かない)
+                highlighted.increment();
+                return CompletableFuture.completedFuture(result);
+            }
+            highlightFallbacks.increment();
+            return renderFor(plantUMLStr, clientId);
+        });
+    }
+
+    // キューで待った時間を記録するメソッド
+    private void recordWait(long waitNanos) {
+        totalWaitNanos.add(waitNanos);
+        long max;
+        do {
+            max = maxWaitNanos.get();
+        } while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos));
+    }
+
+    // スレッドプールの統計情報(キューの長さ・待ち時間・断った回数など)を返す
+    public Map<String, Object> stats() {
+        long started = executor.getCompletedTaskCount() + executor.getActiveCount();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("queueDepth", executor.getQueue().size());
+        result.put("activeThreads", executor.getActiveCount());
+        result.put("inFlight", inFlight.size());
+        result.put("rendered", rendered.sum());
+        result.put("coalesced", coalesced.sum());
+        result.put("rejected", rejected.sum());
+        result.put("highlighted", highlighted.sum());
+        result.put("highlightFallbacks", highlightFallbacks.sum());
+        result.put("errorDiagrams", errorDiagrams.stats());
+        result.put("fairShare", admission.stats());
+        result.put("partitioned", renderer.partitionedCount());
+        result.put("partitionedParts", renderer.partCount());
+        result.put("avgWaitMillis", started == 0 ? 0.0 : totalWaitNanos.sum() / 1_000_000.0 / started);
+        result.put("maxWaitMillis", maxWaitNanos.get() / 1_000_000.0);
+        return result;
+    }
+
+    // 描画中の図の数・キューの長さ・断った回数をメトリクスとして公開する
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("diagram.render.inflight", inFlight, Map::size)
+                .description("描画中の図の数")
+                .register(registry);
+        Gauge.builder("diagram.render.queue", executor, e -> e.getQueue().size())
+                .description("描画待ちのキューの長さ")
+                .register(registry);
+        Gauge.builder("diagram.render.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("描画中のスレッド数")
+                .register(registry);
+        FunctionCounter.builder("diagram.render.rejected", rejected, LongAdder::sum)
+                .description("キューがいっぱいで断った描画の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.render.coalesced", coalesced, LongAdder::sum)
+                .description("描画中の図に相乗りした数")
+                .register(registry);
+        FunctionCounter.builder("diagram.render.highlighted", highlighted, LongAdder::sum)
+                .description("色付けをSVGの書き換えで行った図の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.render.highlight.fallback", highlightFallbacks, LongAdder::sum)
+                .description("SVGを書き換えられずに色付きの記述で描画した図の数")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
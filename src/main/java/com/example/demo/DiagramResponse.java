@@ -1,11 +1,23 @@
-package com.example.demo;
-
-public class DiagramResponse {
-    public String plantUMLValue;
-    public String base64Image;
-
-    public DiagramResponse(String plantUMLValue, String base64Image) {
-        this.plantUMLValue = plantUMLValue;
-        this.base64Image = base64Image;
-    }
-}
+package com.example.demo;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+public class DiagramResponse {
+    public String plantUMLValue;
+    public String base64Image;
+    // 差分で返すとき(X-Diagram-Clientを送ったクライアント)だけ使う
+    // versionはこの図の版，baseは差分の基にした版 差分を返すときはbase64Imageの代わりにpatch(SvgDelta)を入れる
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String version;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String base;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<Object> patch;
+
+    public DiagramResponse(String plantUMLValue, String base64Image) {
+        this.plantUMLValue = plantUMLValue;
+        this.base64Image = base64Image;
+    }
+}
@@ -0,0 +1,758 @@
+package com.example.demo;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+// 描画済みのSVGをディスクに保持する二段目のキャッシュ(再起動・スケールアウト直後もGraphvizを使わずに済むようにする)
+// renders-世代.seg : SVGを追記していくだけのファイル 一件は [magic][SHA-256(32バイト)][長さ][CRC32][SVG]
+// renders-世代.idx : メモリにマップする索引(オープンアドレス法のハッシュ表) 一枠は [SHA-256][位置][長さ][最終参照(分)]
+// CURRENT          : 使用中の世代の番号
+// 大きくなりすぎたら，最近使われたSVGだけを新しい世代にコピーして切り替える(コンパクション)
+// 同じディレクトリを複数のインスタンスで共有したときは，ロックを取れたインスタンスだけが書き込む
+// 読み込みのみのインスタンスは定期的にロックを取り直し，書き込んでいたインスタンスが終了したら書き込みを引き継ぐ
+@Component
+public class DiskRenderCache implements MeterBinder {
+    private static final Logger log = LoggerFactory.getLogger(DiskRenderCache.class);
+
+    private static final int RECORD_MAGIC = 0x53564731; // "SVG1"
+    private static final int INDEX_MAGIC = 0x53564958;  // "SVIX"
+    private static final int INDEX_VERSION = 1;
+    private static final int HASH_BYTES = 32;
+    private static final int RECORD_HEADER = 4 + HASH_BYTES + 4 + 4; // magic・ハッシュ・長さ・CRC32
+    private static final int INDEX_HEADER = 64; // magic・版・枠数・件数・世代・索引に反映済みのsegの長さ
+    private static final int SLOT = HASH_BYTES + 8 + 4 + 4; // ハッシュ・位置・長さ・最終参照
+    private static final int EMPTY = 0;     // 枠の長さが0なら空き
+    private static final int DELETED = -1;  // 壊れていた記録を消した枠(探索は続ける)
+    private static final int MIN_SLOTS = 1024;
+    private static final long OLD_GENERATION_GRACE_SECONDS = 60; // 切り替え前の世代を読んでいる要求を待つ時間
+    private static final long REFRESH_SECONDS = 30; // 読み込みのみのとき，世代の切り替えとロックを確かめる間隔
+
+    private final Path dir; // 設定がなければnull(ディスクキャッシュを使わない)
+    private final long maxBytes;
+    private volatile Generation generation;
+    private volatile boolean writable; // 書き込み用のロックを取れたか
+    private FileChannel lockChannel;
+    private FileLock lock;
+    // 書き込み・コンパクションは一つのスレッドで順番に行う(描画スレッドを待たせない)
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "render-disk-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder corrupt = new LongAdder(); // CRCなどが合わずに捨てた記録の数
+    private final LongAdder compactions = new LongAdder();
+
+    public DiskRenderCache(@Value("${render.disk-cache.dir:}") String dir,
+                           @Value("${render.disk-cache.max-bytes:536870912}") long maxBytes) {
+        this.dir = dir.trim().isEmpty() ? null : Paths.get(dir.trim());
+        this.maxBytes = maxBytes;
+    }
+
+    // 一つの世代のファイル
+    private static final class Generation {
+        final long number;
+        final Path segmentPath;
+        final Path indexPath;
+        final FileChannel segment;
+        final FileChannel indexChannel;
+        final MappedByteBuffer index;
+        final int slots;
+        final boolean writable;
+        final Set<Long> verified = ConcurrentHashMap.newKeySet(); // CRCを確認済みの記録の位置(ゼロコピーで送る前に一度だけ確認する)
+        long end;    // 次に追記する位置(書き込みスレッドのみ)
+        int entries; // 使用中の枠の数
+
+        Generation(long number, Path segmentPath, Path indexPath, FileChannel segment, FileChannel indexChannel,
+                   MappedByteBuffer index, int slots, boolean writable) {
+            this.number = number;
+            this.segmentPath = segmentPath;
+            this.indexPath = indexPath;
+            this.segment = segment;
+            this.indexChannel = indexChannel;
+            this.index = index;
+            this.slots = slots;
+            this.writable = writable;
+        }
+
+        void close() {
+            try {
+                segment.close();
+                indexChannel.close();
+            } catch (IOException e) {
+                log.debug("ディスクキャッシュのファイルを閉じられませんでした", e);
+            }
+        }
+    }
+
+    // ディスク上のSVGの位置 ゼロコピーでレスポンスに送るときに使う
+    public static final class Region {
+        public final Path file;
+        public final FileChannel channel;
+        public final long start;
+        public final int length;
+
+        Region(Path file, FileChannel channel, long start, int length) {
+            this.file = file;
+            this.channel = channel;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    @PostConstruct
+    public void open() {
+        if (dir == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(dir);
+            writable = tryLock();
+            generation = openGeneration(currentGeneration(), writable);
+            if (writable) {
+                writeCurrent(generation.number);
+                deleteOtherGenerations(generation.number); // 前回の終了時に消せなかった古い世代
+            }
+            log.info("ディスクキャッシュを開きました: {} (世代 {}, {}件, {})", dir, generation.number, generation.entries,
+                    writable ? "読み書き" : "読み込みのみ");
+        } catch (IOException e) {
+            generation = null;
+            if (writable) {
+                log.warn("ディスクキャッシュを開けないため使用しません: {}", dir, e);
+            } else {
+                // 書き込むインスタンスがまだファイルを作っていない(同時に起動したときなど)ので，後で開き直す
+                log.info("ディスクキャッシュをまだ開けません。{}秒ごとに開き直します: {} ({})", REFRESH_SECONDS, dir, e.toString());
+            }
+        }
+        if (!writable) {
+            // 他のインスタンスが書き込んでいるので読むだけにし，世代が切り替わったら開き直す(開けなかったときも同じ)
+            worker.scheduleWithFixedDelay(this::refresh, REFRESH_SECONDS, REFRESH_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    // 書き込み用のロックを取るメソッド(取れたらtrue 一度取ったロックはそのまま使う)
+    private boolean tryLock() throws IOException {
+        if (lock != null) {
+            return true;
+        }
+        if (lockChannel == null) {
+            lockChannel = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null; // 同じJVMの中で既にロックしている
+        }
+        return lock != null;
+    }
+
+    public boolean isEnabled() {
+        return generation != null;
+    }
+
+    // キャッシュにあればそのSVGを，なければnullを返す(CRCが合わない記録は捨ててnullを返す)
+    public byte[] get(String key) {
+        Generation g = generation;
+        if (g == null) {
+            return null;
+        }
+        byte[] hash = hash(key);
+        long offset;
+        int length;
+        synchronized (g) {
+            int slot = find(g, hash);
+            if (slot < 0) {
+                misses.increment();
+                return null;
+            }
+            offset = slotOffset(g, slot);
+            length = slotLength(g, slot);
+            touch(g, slot);
+        }
+        try {
+            byte[] svg = read(g, offset, length, hash);
+            if (svg == null) {
+                discard(g, hash);
+                return null;
+            }
+            g.verified.add(offset);
+            hits.increment();
+            return svg;
+        } catch (ClosedChannelException e) {
+            return null; // コンパクションで古い世代を閉じた後だった
+        } catch (IOException e) {
+            log.warn("ディスクキャッシュを読み込めませんでした", e);
+            return null;
+        }
+    }
+
+    // SVGのファイル上の位置を返す(なければnull) 初めて送る記録はCRCを確認してから返す
+    public Region locate(String key) {
+        Generation g = generation;
+        if (g == null) {
+            return null;
+        }
+        byte[] hash = hash(key);
+        long offset;
+        int length;
+        synchronized (g) {
+            int slot = find(g, hash);
+            if (slot < 0) {
+                misses.increment();
+                return null;
+            }
+            offset = slotOffset(g, slot);
+            length = slotLength(g, slot);
+            touch(g, slot);
+        }
+        try {
+            if (!g.verified.contains(offset)) {
+                if (read(g, offset, length, hash) == null) {
+                    discard(g, hash);
+                    return null;
+                }
+                g.verified.add(offset);
+            }
+            hits.increment();
+            return new Region(g.segmentPath, g.segment, offset + RECORD_HEADER, length);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // SVGを書き込む(書き込みスレッドで後から行う) 読み込みのみのときは何もしない
+    public void put(String key, byte[] svg) {
+        if (generation == null || !writable || svg.length == 0) {
+            return;
+        }
+        try {
+            worker.execute(() -> append(key, svg));
+        } catch (RejectedExecutionException e) {
+            // 終了処理中
+        }
+    }
+
+    private void append(String key, byte[] svg) {
+        Generation g = generation;
+        byte[] hash = hash(key);
+        try {
+            synchronized (g) {
+                if (find(g, hash) >= 0) {
+                    return; // 他の要求が先に書き込んだ
+                }
+                long offset = g.end;
+                g.end = writeRecord(g, offset, hash, svg);
+                insert(g, hash, offset, svg.length, now());
+                writeHeader(g);
+            }
+            writes.increment();
+            if (g.end > maxBytes) {
+                compact(maxBytes / 4 * 3); // 最近使われたものだけで上限の3/4に収める
+            } else if (g.entries > g.slots / 10 * 7) {
+                compact(Long.MAX_VALUE); // 索引がいっぱいなので，全て残したまま索引を大きくする
+            }
+        } catch (IOException e) {
+            log.warn("ディスクキャッシュに書き込めませんでした", e);
+        }
+    }
+
+    // 最近使われた順に，合計がtargetBytesに収まるだけのSVGを新しい世代にコピーして切り替える
+    private void compact(long targetBytes) throws IOException {
+        Generation old = generation;
+        List<long[]> live = new ArrayList<>(); // 位置・長さ・最終参照
+        List<byte[]> hashes = new ArrayList<>();
+        synchronized (old) {
+            for (int slot = 0; slot < old.slots; slot++) {
+                int length = slotLength(old, slot);
+                if (length > 0) {
+                    live.add(new long[]{slotOffset(old, slot), length, old.index.getInt(slotBase(slot) + HASH_BYTES + 12), hashes.size()});
+                    hashes.add(slotHash(old, slot));
+                }
+            }
+        }
+        // 最終参照は分単位なので，同じときは後から書き込んだものを優先する
+        live.sort((a, b) -> a[2] != b[2] ? Long.compare(b[2], a[2]) : Long.compare(b[0], a[0]));
+
+        long number = old.number + 1;
+        Files.deleteIfExists(segmentPath(number)); // 前回のコンパクションが途中で止まったときの残り
+        Files.deleteIfExists(indexPath(number));
+        Generation next = openGeneration(number, true, slotsFor(live.size() * 2));
+        int kept = 0;
+        for (long[] entry : live) {
+            if (next.end + RECORD_HEADER + entry[1] > targetBytes) {
+                break;
+            }
+            byte[] hash = hashes.get((int) entry[3]);
+            byte[] svg = read(old, entry[0], (int) entry[1], hash);
+            if (svg == null) {
+                corrupt.increment();
+                continue; // 壊れている記録はコピーしない
+            }
+            long offset = next.end;
+            next.end = writeRecord(next, offset, hash, svg);
+            insert(next, hash, offset, svg.length, (int) entry[2]);
+            kept++;
+        }
+        writeHeader(next);
+        next.segment.force(true);
+        next.index.force();
+        writeCurrent(number); // ここで切り替わる(途中で止まっても古い世代が使われる)
+        generation = next;
+        compactions.increment();
+        log.info("ディスクキャッシュをコンパクションしました: 世代 {} → {} ({}件中{}件, {}バイト)",
+                old.number, number, live.size(), kept, next.end);
+        worker.schedule(() -> {
+            old.close();
+            try {
+                Files.deleteIfExists(old.segmentPath);
+                Files.deleteIfExists(old.indexPath);
+            } catch (IOException e) {
+                log.debug("古い世代を削除できませんでした", e);
+            }
+        }, OLD_GENERATION_GRACE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void deleteOtherGenerations(long number) throws IOException {
+        String current = String.format("renders-%06d.", number);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "renders-*.{seg,idx}")) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().startsWith(current)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    // 読み込みのみのとき，書き込むインスタンスが世代を切り替えていたら開き直す(書き込みスレッドで定期的に呼ぶ)
+    // ロックを取れたとき(書き込んでいたインスタンスが終了したとき)は，読み書きできるように開き直して書き込みを引き継ぐ
+    void refresh() {
+        if (writable) {
+            return;
+        }
+        try {
+            Files.createDirectories(dir);
+            long number = currentGeneration();
+            Generation old = generation;
+            if (tryLock()) {
+                Generation next = openGeneration(number, true);
+                writeCurrent(next.number);
+                generation = next;
+                writable = true;
+                log.info("ディスクキャッシュの書き込みを引き継ぎました: {} (世代 {}, {}件)", dir, next.number, next.entries);
+            } else if (old == null || old.number != number) {
+                generation = openGeneration(number, false);
+            } else {
+                return;
+            }
+            if (old != null) {
+                worker.schedule(old::close, OLD_GENERATION_GRACE_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (IOException e) {
+            log.debug("ディスクキャッシュを開き直せませんでした", e);
+        }
+    }
+
+    private Generation openGeneration(long number, boolean writable) throws IOException {
+        return openGeneration(number, writable, slotsFor(maxBytes / 4096)); // SVG一つを4KB以上と見積もる
+    }
+
+    // 世代のファイルを開くメソッド 索引が壊れていれば作り直し，索引に反映されていない末尾の記録を読み直す
+    private Generation openGeneration(long number, boolean writable, int newSlots) throws IOException {
+        Path segmentPath = segmentPath(number);
+        Path indexPath = indexPath(number);
+        FileChannel segment = writable
+                ? FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(segmentPath, StandardOpenOption.READ);
+        FileChannel indexChannel = writable
+                ? FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(indexPath, StandardOpenOption.READ);
+
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+        int slots = -1;
+        long indexedLength = 0;
+        if (indexChannel.size() >= INDEX_HEADER) {
+            readFully(indexChannel, header, 0);
+            header.flip();
+            int magic = header.getInt(0);
+            int version = header.getInt(4);
+            int headerSlots = header.getInt(8);
+            long headerGeneration = header.getLong(16);
+            long headerLength = header.getLong(24);
+            if (magic == INDEX_MAGIC && version == INDEX_VERSION && headerSlots >= MIN_SLOTS
+                    && headerGeneration == number && headerLength <= segment.size()
+                    && indexChannel.size() == INDEX_HEADER + (long) headerSlots * SLOT) {
+                slots = headerSlots;
+                indexedLength = headerLength;
+            }
+        }
+        if (slots < 0) {
+            if (!writable) {
+                segment.close();
+                indexChannel.close();
+                throw new IOException("ディスクキャッシュの索引がまだ作られていません: " + indexPath);
+            }
+            if (indexChannel.size() > 0) {
+                log.warn("ディスクキャッシュの索引が壊れているため作り直します: {}", indexPath);
+            }
+            slots = newSlots;
+            indexChannel.truncate(0);
+            indexedLength = 0;
+        }
+        MappedByteBuffer index = indexChannel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                0, INDEX_HEADER + (long) slots * SLOT);
+        Generation g = new Generation(number, segmentPath, indexPath, segment, indexChannel, index, slots, writable);
+        g.entries = index.getInt(12);
+        g.end = indexedLength;
+        if (writable) {
+            if (indexedLength == 0) {
+                g.entries = 0; // 作り直した索引
+            }
+            recover(g);
+            writeHeader(g);
+        }
+        return g;
+    }
+
+    // 索引に反映されていない末尾の記録をCRCを確認しながら読み直すメソッド
+    // 中身が壊れている記録は読み飛ばし，書き込みの途中で止まった記録(magicや長さが合わない)があれば，そこから後ろを切り捨てる
+    private void recover(Generation g) throws IOException {
+        long size = g.segment.size();
+        long position = g.end;
+        int recovered = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        while (position < size) {
+            header.clear();
+            if (size - position < RECORD_HEADER) {
+                break;
+            }
+            readFully(g.segment, header, position);
+            int magic = header.getInt(0);
+            int length = header.getInt(4 + HASH_BYTES);
+            if (magic != RECORD_MAGIC || length <= 0 || length > size - position - RECORD_HEADER) {
+                break;
+            }
+            byte[] hash = new byte[HASH_BYTES];
+            header.position(4);
+            header.get(hash);
+            if (read(g, position, length, hash) == null) {
+                corrupt.increment(); // 中身だけが壊れている記録は索引に入れずに読み飛ばす
+            } else if (find(g, hash) < 0) {
+                insert(g, hash, position, length, now());
+                recovered++;
+            }
+            position += RECORD_HEADER + length;
+        }
+        if (position < size) {
+            log.warn("ディスクキャッシュの末尾が壊れているため切り捨てます: {} ({}バイト目以降)", g.segmentPath, position);
+            g.segment.truncate(position);
+            corrupt.increment();
+        }
+        if (recovered > 0) {
+            log.info("ディスクキャッシュの索引に{}件を追加しました: {}", recovered, g.segmentPath);
+        }
+        g.end = position;
+    }
+
+    // 記録を読み込み，magic・ハッシュ・長さ・CRCが全て合えばSVGを返す(合わなければnull)
+    private byte[] read(Generation g, long offset, int length, byte[] hash) throws IOException {
+        if (length <= 0 || offset < 0 || offset + RECORD_HEADER + length > g.segment.size()) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + length);
+        readFully(g.segment, buffer, offset);
+        if (buffer.getInt(0) != RECORD_MAGIC || buffer.getInt(4 + HASH_BYTES) != length) {
+            return null;
+        }
+        for (int i = 0; i < HASH_BYTES; i++) {
+            if (buffer.get(4 + i) != hash[i]) {
+                return null;
+            }
+        }
+        byte[] svg = new byte[length];
+        buffer.position(RECORD_HEADER);
+        buffer.get(svg);
+        CRC32 crc = new CRC32();
+        crc.update(svg, 0, length);
+        if ((int) crc.getValue() != buffer.getInt(4 + HASH_BYTES + 4)) {
+            return null;
+        }
+        return svg;
+    }
+
+    // 記録を一つ書き込み，次の記録の位置を返す
+    private static long writeRecord(Generation g, long offset, byte[] hash, byte[] svg) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(svg, 0, svg.length);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        header.putInt(RECORD_MAGIC).put(hash).putInt(svg.length).putInt((int) crc.getValue());
+        header.flip();
+        ByteBuffer body = ByteBuffer.wrap(svg);
+        long position = offset;
+        while (header.hasRemaining()) {
+            position += g.segment.write(header, position);
+        }
+        while (body.hasRemaining()) {
+            position += g.segment.write(body, position);
+        }
+        return position;
+    }
+
+    // CRCが合わなかった記録を索引から消す
+    private void discard(Generation g, byte[] hash) {
+        corrupt.increment();
+        if (!g.writable) {
+            return;
+        }
+        synchronized (g) {
+            int slot = find(g, hash);
+            if (slot >= 0) {
+                g.index.putInt(slotBase(slot) + HASH_BYTES + 8, DELETED);
+                g.entries--;
+                writeHeader(g);
+            }
+        }
+    }
+
+    // ハッシュの枠を探すメソッド 見つからないときは，入れられる空きの枠をslotとして -(slot + 1) を返す
+    private static int find(Generation g, byte[] hash) {
+        int start = (((hash[0] & 0xFF) << 24 | (hash[1] & 0xFF) << 16 | (hash[2] & 0xFF) << 8 | (hash[3] & 0xFF)) & 0x7FFFFFFF) % g.slots;
+        for (int i = 0; i < g.slots; i++) {
+            int slot = (start + i) % g.slots;
+            int base = slotBase(slot);
+            int length = g.index.getInt(base + HASH_BYTES + 8);
+            if (length == EMPTY) {
+                return -(slot + 1);
+            }
+            if (length != DELETED && hashEquals(g.index, base, hash)) {
+                return slot;
+            }
+        }
+        return Integer.MIN_VALUE; // 空きがない(コンパクションで索引を大きくするので通常は起きない)
+    }
+
+    private static void insert(Generation g, byte[] hash, long offset, int length, int lastAccess) {
+        int found = find(g, hash);
+        if (found >= 0 || found == Integer.MIN_VALUE) {
+            return;
+        }
+        int base = slotBase(-found - 1);
+        for (int i = 0; i < HASH_BYTES; i++) {
+            g.index.put(base + i, hash[i]);
+        }
+        g.index.putLong(base + HASH_BYTES, offset);
+        g.index.putInt(base + HASH_BYTES + 12, lastAccess);
+        g.index.putInt(base + HASH_BYTES + 8, length); // 長さを最後に書く(0のままなら空きの枠とみなされる)
+        g.entries++;
+    }
+
+    private static void touch(Generation g, int slot) {
+        if (g.writable) {
+            g.index.putInt(slotBase(slot) + HASH_BYTES + 12, now());
+        }
+    }
+
+    private static void writeHeader(Generation g) {
+        g.index.putInt(0, INDEX_MAGIC);
+        g.index.putInt(4, INDEX_VERSION);
+        g.index.putInt(8, g.slots);
+        g.index.putInt(12, g.entries);
+        g.index.putLong(16, g.number);
+        g.index.putLong(24, g.end);
+    }
+
+    private static int slotBase(int slot) {
+        return INDEX_HEADER + slot * SLOT;
+    }
+
+    private static long slotOffset(Generation g, int slot) {
+        return g.index.getLong(slotBase(slot) + HASH_BYTES);
+    }
+
+    private static int slotLength(Generation g, int slot) {
+        return g.index.getInt(slotBase(slot) + HASH_BYTES + 8);
+    }
+
+    private static byte[] slotHash(Generation g, int slot) {
+        byte[] hash = new byte[HASH_BYTES];
+        int base = slotBase(slot);
+        for (int i = 0; i < HASH_BYTES; i++) {
+            hash[i] = g.index.get(base + i);
+        }
+        return hash;
+    }
+
+    private static boolean hashEquals(ByteBuffer index, int base, byte[] hash) {
+        for (int i = 0; i < HASH_BYTES; i++) {
+            if (index.get(base + i) != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 件数の2倍以上の2のべき乗(索引の使用率を半分以下にする)
+    private static int slotsFor(long entries) {
+        long slots = MIN_SLOTS;
+        while (slots < entries * 2 && slots < (Integer.MAX_VALUE - INDEX_HEADER) / SLOT / 2) {
+            slots *= 2;
+        }
+        return (int) slots;
+    }
+
+    private static int now() {
+        return (int) TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+
+    // RenderCacheのキー(SHA-256の16進数)を32バイトに戻す
+    private static byte[] hash(String key) {
+        byte[] hash = new byte[HASH_BYTES];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            hash[i] = (byte) Integer.parseInt(key.substring(i * 2, i * 2 + 2), 16);
+        }
+        return hash;
+    }
+
+    private Path segmentPath(long number) {
+        return dir.resolve(String.format("renders-%06d.seg", number));
+    }
+
+    private Path indexPath(long number) {
+        return dir.resolve(String.format("renders-%06d.idx", number));
+    }
+
+    private long currentGeneration() throws IOException {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(dir.resolve("CURRENT")), StandardCharsets.US_ASCII).trim());
+        } catch (NoSuchFileException | NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    // CURRENTは一時ファイルに書いてから置き換える(途中で止まっても壊れない)
+    private void writeCurrent(long number) throws IOException {
+        Path temporary = dir.resolve("CURRENT.tmp");
+        Files.write(temporary, Long.toString(number).getBytes(StandardCharsets.US_ASCII));
+        Files.move(temporary, dir.resolve("CURRENT"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    // ディスクキャッシュの統計情報(ヒット数・件数・ファイルの大きさなど)を返す
+    public Map<String, Object> stats() {
+        Generation g = generation;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", g != null);
+        result.put("writable", g != null && writable);
+        result.put("hits", hits.sum());
+        result.put("misses", misses.sum());
+        result.put("writes", writes.sum());
+        result.put("corrupt", corrupt.sum());
+        result.put("compactions", compactions.sum());
+        result.put("generation", g == null ? 0 : g.number);
+        result.put("entries", g == null ? 0 : g.entries);
+        result.put("bytes", g == null ? 0 : g.end);
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("diagram.diskcache.hits", hits, LongAdder::sum)
+                .description("ディスクキャッシュのヒット数")
+                .register(registry);
+        FunctionCounter.builder("diagram.diskcache.misses", misses, LongAdder::sum)
+                .description("ディスクキャッシュのミス数")
+                .register(registry);
+        FunctionCounter.builder("diagram.diskcache.corrupt", corrupt, LongAdder::sum)
+                .description("CRCなどが合わずに捨てた記録の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.diskcache.compactions", compactions, LongAdder::sum)
+                .description("コンパクションの回数")
+                .register(registry);
+        Gauge.builder("diagram.diskcache.bytes", this, cache -> {
+                    Generation g = cache.generation;
+                    return g == null ? 0 : g.end;
+                })
+                .description("ディスクキャッシュのファイルの大きさ")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void close() {
+        worker.shutdown();
+        try {
+            worker.awaitTermination(5, TimeUnit.SECONDS); // 書き込み待ちのSVGを書き終える
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Generation g = generation;
+        generation = null;
+        if (g != null) {
+            if (g.writable) {
+                try {
+                    g.segment.force(true);
+                    g.index.force();
+                } catch (IOException e) {
+                    log.warn("ディスクキャッシュを書き出せませんでした", e);
+                }
+            }
+            g.close();
+        }
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        } catch (IOException e) {
+            log.debug("ディスクキャッシュのロックを解放できませんでした", e);
+        }
+    }
+}
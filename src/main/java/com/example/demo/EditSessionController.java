@@ -0,0 +1,59 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import javax.servlet.http.HttpServletRequest;
+
+// ブロックを編集するたびにPOST /を送る代わりに使う，編集セッション用のコントローラー
+// クライアントはGET /session/{id}で図を購読し，編集するたびに版番号をつけてワークスペースを送る
+@RestController
+@CrossOrigin(origins = "*")  // すべてのオリジンを許可
+public class EditSessionController {
+    private final EditSessionService sessionService;
+    private final WorkspaceDecoder workspaceDecoder;
+    private final RenderAdmission admission;
+
+    public EditSessionController(EditSessionService sessionService, WorkspaceDecoder workspaceDecoder,
+                                 RenderAdmission admission) {
+        this.sessionService = sessionService;
+        this.workspaceDecoder = workspaceDecoder;
+        this.admission = admission;
+    }
+
+    // 最新の版の図を"diagram"イベント(version・plantUMLValue・base64Image)として受け取る
+    // 描画に時間がかかるときは，その前に簡易版の図が"preview"イベント(version・base64Image)として届く
+    @GetMapping(value = "/session/{id}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribe(@PathVariable("id") String id) {
+        return sessionService.subscribe(id);
+    }
+
+    // ワークスペースの新しい版を送る 受け付けたら202，より新しい版を受け取り済みなら409を返す
+    @PostMapping("/session/{id}")
+    public ResponseEntity<Void> submit(@PathVariable("id") String id, @RequestParam("version") long version,
+                                       InputStream body, HttpServletRequest request) throws IOException {
+        StateMachine machine = workspaceDecoder.decode(body);
+        if (!sessionService.submit(id, version, machine, admission.clientOf(request))) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        return ResponseEntity.accepted().build();
+    }
+
+    // jsonとして読み込めないワークスペースには400を返す
+    @ExceptionHandler(JsonProcessingException.class)
+    public ResponseEntity<Void> invalidJson(JsonProcessingException e) {
+        return ResponseEntity.badRequest().build();
+    }
+}
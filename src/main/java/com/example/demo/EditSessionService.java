@@ -0,0 +1,333 @@
+package com.example.demo;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// 編集中のワークスペースを版番号つきで受け取り，最新の版の図だけをSSEで送り返すサービス
+// 短い間に続けて届いた版はまとめ，一つのセッションで同時に描画するのは一つの版だけにする
+// 描画中に新しい版が届いたら，古い版の結果は送らずに捨てて新しい版を描画する
+@Service
+public class EditSessionService implements MeterBinder {
+    private final DiagramRenderService renderService;
+    private final LayoutMode layout;
+    private final int partitionMinStates; // この数以上の状態がある図は部分ごとに分けて描画する
+    private final long debounceMillis; // 最後の更新からこの時間だけ待ってから描画する
+    private final long emitterTimeoutMillis;
+    private final long idleTimeoutMillis; // 購読も更新もないセッションを消すまでの時間
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "edit-session");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // plantUML記述の生成・描画の依頼・簡易版の描画を行うスレッド(schedulerは版をまとめるだけにして，重い処理で他のセッションを待たせない)
+    // 一つのセッションで同時に描画するのは一つの版だけなので，キューに入るのはセッションの数まで
+    private final ExecutorService workers;
+
+    private final LongAdder received = new LongAdder(); // 受け取った版の数
+    private final LongAdder superseded = new LongAdder(); // 描画せずに(または描画後に)捨てた版の数
+    private final LongAdder delivered = new LongAdder(); // クライアントに送った図の数
+    private final LongAdder previews = new LongAdder(); // 描画を待つ間に送った簡易版の図の数
+
+    public EditSessionService(DiagramRenderService renderService,
+                              @Value("${render.layout:graphviz}") String layout,
+                              @Value("${render.partition.min-states:200}") int partitionMinStates,
+                              @Value("${session.debounce-millis:150}") long debounceMillis,
+                              @Value("${session.emitter-timeout-millis:1800000}") long emitterTimeoutMillis,
+                              @Value("${session.idle-timeout-millis:600000}") long idleTimeoutMillis) {
+        this.renderService = renderService;
+        this.layout = LayoutMode.from(layout);
+        this.partitionMinStates = partitionMinStates;
+        this.debounceMillis = debounceMillis;
+        this.emitterTimeoutMillis = emitterTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "edit-session-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweep = Math.max(1000, idleTimeoutMillis / 2);
+        scheduler.scheduleWithFixedDelay(this::evictIdle, sweep, sweep, TimeUnit.MILLISECONDS);
+    }
+
+    // セッションの図を購読するメソッド すでに描画した図があればすぐに送る
+    // 同じセッションを購読し直したときは，前の接続を閉じる
+    public SseEmitter subscribe(String sessionId) {
+        Session session = session(sessionId);
+        SseEmitter emitter = new SseEmitter(emitterTimeoutMillis);
+        emitter.onCompletion(() -> session.detach(emitter));
+        emitter.onTimeout(() -> session.detach(emitter));
+        emitter.onError(e -> session.detach(emitter));
+        session.attach(emitter);
+        return emitter;
+    }
+
+    // 新しい版のワークスペースを受け取るメソッド clientIdは送ってきたクライアント(RenderAdmission.clientOf)
+    // すでに受け取った版以下の番号(順番が入れ替わって届いた古い版)はfalseを返して無視する
+    public boolean submit(String sessionId, long version, StateMachine machine, String clientId) {
+        received.increment();
+        return session(sessionId).submit(version, machine, clientId);
+    }
+
+    private Session session(String sessionId) {
+        Session session = sessions.computeIfAbsent(sessionId, Session::new);
+        session.touch();
+        return session;
+    }
+
+    // 購読されておらず，しばらく更新もないセッションを消す
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> session.isIdle(now - idleTimeoutMillis));
+    }
+
+    // 一人のクライアントの編集セッション 状態はこのオブジェクトで同期する
+    private final class Session {
+        private final String id;
+        private SseEmitter emitter;
+        private long latestVersion = -1; // 受け取った中で最新の版
+        private StateMachine pending; // まだ描画していない最新の版
+        private long pendingVersion;
+        private String client; // 最後に版を送ってきたクライアント(描画の割り当てに使う)
+        private ScheduledFuture<?> debounce;
+        private boolean rendering; // 描画中の版があるか
+        private Map<String, Object> lastDiagram; // 最後に送った図(購読し直したときに送る)
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        Session(String id) {
+            this.id = id;
+        }
+
+        void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+
+        synchronized boolean isIdle(long threshold) {
+            return emitter == null && !rendering && pending == null && lastAccess < threshold;
+        }
+
+        void attach(SseEmitter newEmitter) {
+            SseEmitter previous;
+            Map<String, Object> diagram;
+            synchronized (this) {
+                previous = emitter;
+                emitter = newEmitter;
+                diagram = lastDiagram;
+            }
+            if (previous != null) {
+                previous.complete();
+            }
+            if (diagram != null) {
+                send(newEmitter, "diagram", diagram);
+            }
+        }
+
+        synchronized void detach(SseEmitter closed) {
+            if (emitter == closed) {
+                emitter = null;
+            }
+        }
+
+        synchronized boolean submit(long version, StateMachine machine, String clientId) {
+            if (version <= latestVersion) {
+                superseded.increment();
+                return false;
+            }
+            if (pending != null) {
+                superseded.increment(); // 描画する前に新しい版が届いた
+            }
+            latestVersion = version;
+            client = clientId;
+            pending = machine;
+            pendingVersion = version;
+            if (debounce != null) {
+                debounce.cancel(false);
+            }
+            debounce = scheduler.schedule(this::flush, debounceMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        // 描画中の版がなければ，最新の版の描画をworkersで始める
+        private void flush() {
+            StateMachine machine;
+            long version;
+            String clientId;
+            synchronized (this) {
+                if (rendering || pending == null) {
+                    return; // 描画が終わったときにもう一度呼ばれる
+                }
+                machine = pending;
+                version = pendingVersion;
+                clientId = client;
+                pending = null;
+                rendering = true;
+            }
+            workers.execute(() -> startRender(machine, version, clientId));
+        }
+
+        private void startRender(StateMachine machine, long version, String clientId) {
+            String plantUMLValue = null;
+            CompletableFuture<RenderedSvg> future;
+            try {
+                StmGenerator generator = new StmGenerator(layout, partitionMinStates);
+                plantUMLValue = generator.toPlantUML(machine);
+                DiagramHighlights highlights = generator.highlights(machine);
+                String renderValue = generator.toRenderPlantUML(machine, plantUMLValue); // 描画とキャッシュのキーに使う記述
+                String structural = highlights.isEmpty() || !renderService.isHighlightRewriteEnabled()
+                        ? renderValue : generator.toStructuralPlantUML(machine);
+                future = renderService.render(renderValue, structural, highlights, clientId);
+            } catch (RenderRejectedException e) {
+                // 描画待ちのキューがいっぱいなので，新しい版が届いていなければ少し待ってから描画し直す
+                synchronized (this) {
+                    rendering = false;
+                    if (pending == null) {
+                        pending = machine;
+                        pendingVersion = version;
+                    }
+                    debounce = scheduler.schedule(this::flush, e.getRetryAfterSeconds(), TimeUnit.SECONDS);
+                }
+                return;
+            } catch (RuntimeException e) {
+                // 描画を始められなかった版はエラーとして送り，次の版の描画に進む
+                finished(version, plantUMLValue, null, e);
+                return;
+            }
+            if (!future.isDone() && machine.error() == null) {
+                try {
+                    preview(version, machine); // 描画に時間がかかるときは，先に簡易版の図を送る
+                } catch (RuntimeException e) {
+                    // 簡易版の図を送れなくても，本来の図はそのまま送る
+                }
+            }
+            String value = plantUMLValue;
+            future.whenComplete((rendered, error) -> finished(version, value, rendered, error));
+        }
+
+        // 簡易版の図を"preview"イベント(version・base64Image)として送る 新しい版が届いていれば送らない
+        private void preview(long version, StateMachine machine) {
+            SseEmitter target;
+            synchronized (this) {
+                target = version == latestVersion ? emitter : null;
+            }
+            if (target == null) {
+                return;
+            }
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("version", version);
+            event.put("base64Image", Base64.getEncoder().encodeToString(PreviewRenderer.render(machine)));
+            previews.increment();
+            send(target, "preview", event);
+        }
+
+        private void finished(long version, String plantUMLValue, RenderedSvg rendered, Throwable error) {
+            SseEmitter target;
+            boolean stale;
+            boolean next;
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("version", version);
+            synchronized (this) {
+                rendering = false;
+                stale = version < latestVersion; // 描画中に新しい版が届いた
+                next = pending != null && (debounce == null || debounce.isDone());
+                target = emitter;
+                if (!stale && error == null) {
+                    event.put("plantUMLValue", plantUMLValue);
+                    event.put("base64Image", Base64.getEncoder().encodeToString(rendered.svg));
+                    lastDiagram = event;
+                }
+            }
+            if (stale) {
+                superseded.increment();
+            } else if (target != null) {
+                if (error == null) {
+                    delivered.increment();
+                    send(target, "diagram", event);
+                } else {
+                    event.put("message", String.valueOf(error.getMessage()));
+                    send(target, "error", event);
+                }
+            }
+            if (next) {
+                scheduler.execute(this::flush);
+            }
+        }
+
+        private void send(SseEmitter target, String name, Map<String, Object> data) {
+            try {
+                target.send(SseEmitter.event()
+                        .id(String.valueOf(data.get("version")))
+                        .name(name)
+                        .data(data, MediaType.APPLICATION_JSON));
+            } catch (IOException | IllegalStateException e) {
+                detach(target); // 切断されている
+            }
+        }
+    }
+
+    // セッション数・捨てた版の数などを返す
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("sessions", sessions.size());
+        result.put("received", received.sum());
+        result.put("superseded", superseded.sum());
+        result.put("delivered", delivered.sum());
+        result.put("previews", previews.sum());
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("diagram.session.active", sessions, Map::size)
+                .description("編集セッションの数")
+                .register(registry);
+        FunctionCounter.builder("diagram.session.received", received, LongAdder::sum)
+                .description("受け取ったワークスペースの版の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.session.superseded", superseded, LongAdder::sum)
+                .description("新しい版が届いたため描画しなかった・送らなかった版の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.session.delivered", delivered, LongAdder::sum)
+                .description("クライアントに送った図の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.session.previews", previews, LongAdder::sum)
+                .description("描画を待つ間に送った簡易版の図の数")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+        for (Session session : sessions.values()) {
+            SseEmitter emitter;
+            synchronized (session) {
+                emitter = session.emitter;
+            }
+            if (emitter != null) {
+                emitter.complete();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.demo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// ワークスペースにエラーがあるときの図(ノートだけの図)を起動時に全て描画しておき，メモリから返すクラス
+// エラーの図はエラーの種類だけで決まり，学生はエラーのままの状態で長く編集しているので，
+// キャッシュから追い出されて描画し直すことがないように別に持っておく
+@Component
+public class ErrorDiagrams {
+    private static final Logger log = LoggerFactory.getLogger(ErrorDiagrams.class);
+
+    private final GraphvizWatchdog graphvizWatchdog;
+    private final SvgMinifier svgMinifier;
+    private final LayoutMode layout;
+    private final Map<DiagramError, RenderedSvg> diagrams = new EnumMap<>(DiagramError.class);
+    private final Map<String, RenderedSvg> byPlantUML = new HashMap<>(); // エラーのplantUML記述から図を引く
+    private int maxLength; // エラーのplantUML記述の最大の長さ(これより長い記述はエラーの図ではない)
+    private final LongAdder hits = new LongAdder();
+
+    public ErrorDiagrams(GraphvizWatchdog graphvizWatchdog, SvgMinifier svgMinifier,
+                         @Value("${render.layout:graphviz}") String layout) {
+        this.graphvizWatchdog = graphvizWatchdog;
+        this.svgMinifier = svgMinifier;
+        this.layout = LayoutMode.from(layout);
+    }
+
+    // 起動時に全てのエラーの図を描画する(描画できなかったものは通常どおり要求のたびに描画される)
+    @PostConstruct
+    public void prerender() {
+        long start = System.nanoTime();
+        StmGenerator generator = new StmGenerator(layout);
+        for (DiagramError error : DiagramError.values()) {
+            String plantUMLStr = generator.toErrorPlantUML(error);
+            try {
+                byte[] svg = graphvizWatchdog.isEnabled()
+                        ? graphvizWatchdog.render(plantUMLStr)
+                        : generator.convertPumlToPngBytes(plantUMLStr);
+                RenderedSvg rendered = RenderedSvg.of(svgMinifier.minify(svg));
+                diagrams.put(error, rendered);
+                byPlantUML.put(plantUMLStr, rendered);
+                maxLength = Math.max(maxLength, plantUMLStr.length());
+            } catch (IOException | RuntimeException e) {
+                log.warn("エラーの図({})を起動時に描画できませんでした", error.code(), e);
+            }
+        }
+        log.info("エラーの図を{}件描画しました({}ms)", diagrams.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // plantUML記述がエラーの図であれば描画済みのSVGを，そうでなければnullを返す
+    // 普通の図の記述はエラーの図より長いので，ほとんどの場合は長さを比べるだけで終わる
+    public RenderedSvg get(String plantUMLStr) {
+        if (plantUMLStr.length() > maxLength) {
+            return null;
+        }
+        RenderedSvg rendered = byPlantUML.get(plantUMLStr);
+        if (rendered != null) {
+            hits.increment();
+        }
+        return rendered;
+    }
+
+    public RenderedSvg get(DiagramError error) {
+        return diagrams.get(error);
+    }
+
+    // 描画済みのエラーの図の数と，それを返した回数を返す
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("prerendered", diagrams.size());
+        result.put("hits", hits.sum());
+        return result;
+    }
+}
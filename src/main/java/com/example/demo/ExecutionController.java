@@ -0,0 +1,201 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// ワークスペースの状態マシンをサーバーで実行・解析するコントローラー(MachineEngine)
+// 状態を省略したときは，ワークスペースの現在の状態(#FF5555のついた状態)から始める
+// 図として表示できないワークスペースには {"valid":false,"error":エラーコード} を返す
+@RestController
+@CrossOrigin(origins = "*")  // すべてのオリジンを許可
+public class ExecutionController {
+    private final WorkspaceDecoder workspaceDecoder;
+    private final DiagramMetrics metrics;
+    private final int maxEvents;
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    // リクエストの本文 {"workspace":[...], "state":..., "event":..., "events":[...], "guards":[...], "trace":true}
+    private static final class Request {
+        StateMachine machine;
+        String state;
+        String event;
+        List<String> events;
+        Set<String> guards; // 真になる条件(省略したときはnullで，全ての条件を真とする)
+        boolean trace;
+    }
+
+    public ExecutionController(WorkspaceDecoder workspaceDecoder, DiagramMetrics metrics,
+                               @Value("${execution.max-events:100000}") int maxEvents) {
+        this.workspaceDecoder = workspaceDecoder;
+        this.metrics = metrics;
+        this.maxEvents = maxEvents;
+    }
+
+    // 始める状態でイベントを一つ受け取る(始める状態がないときは，まず初期状態から最初の状態に入る)
+    // 発火した遷移・呼ばれた振る舞いと，次に受け取れるイベントを返す
+    @PostMapping("/step")
+    public Map<String, Object> step(InputStream body) throws IOException {
+        long start = System.nanoTime();
+        Request request = readRequest(body);
+        Map<String, Object> response = new LinkedHashMap<>();
+        if (!valid(request.machine, response)) {
+            return response;
+        }
+        MachineEngine engine = MachineEngine.compile(request.machine);
+        boolean[] guardValues = engine.guardValues(request.guards);
+        List<MachineEngine.Action> actions = new ArrayList<>();
+        List<MachineEngine.Fired> fired = new ArrayList<>();
+        int state = startState(engine, request);
+        if (state == MachineEngine.NO_STATE) {
+            state = engine.start(guardValues, actions, fired);
+        }
+        if (request.event != null) {
+            state = engine.step(state, engine.eventId(request.event), guardValues, actions, fired);
+        }
+        response.put("state", state == MachineEngine.NO_STATE ? null : engine.stateName(state));
+        response.put("terminated", engine.isFinal(state));
+        response.put("ignored", request.event != null && fired.isEmpty());
+        response.put("fired", fired);
+        response.put("actions", actions);
+        response.put("enabledEvents", engine.enabledEvents(state, guardValues));
+        metrics.record(DiagramMetrics.Stage.EXECUTE, start);
+        return response;
+    }
+
+    // イベント列を順に受け取り，最後の状態と発火・無視した数を返す("trace":trueのときはイベントごとの状態も返す)
+    @PostMapping("/simulate")
+    public Map<String, Object> simulate(InputStream body) throws IOException {
+        long start = System.nanoTime();
+        Request request = readRequest(body);
+        Map<String, Object> response = new LinkedHashMap<>();
+        if (!valid(request.machine, response)) {
+            return response;
+        }
+        MachineEngine engine = MachineEngine.compile(request.machine);
+        boolean[] guardValues = engine.guardValues(request.guards);
+        int state = startState(engine, request);
+        if (state == MachineEngine.NO_STATE) {
+            state = engine.start(guardValues, null, null);
+        }
+        List<String> events = request.events == null ? new ArrayList<>() : request.events;
+        int[] eventIds = new int[events.size()];
+        for (int i = 0; i < eventIds.length; i++) {
+            eventIds[i] = engine.eventId(events.get(i));
+        }
+        response.put("simulation", engine.simulate(state, eventIds, guardValues, request.trace));
+        metrics.record(DiagramMetrics.Stage.EXECUTE, start);
+        return response;
+    }
+
+    // POST /と同じワークスペースを受け取り，到達できない状態・行き止まりの状態・発火しないイベントなどを返す
+    @PostMapping("/analyze")
+    public Map<String, Object> analyze(InputStream body) throws IOException {
+        long start = System.nanoTime();
+        StateMachine machine = workspaceDecoder.decode(body);
+        Map<String, Object> response = new LinkedHashMap<>();
+        if (valid(machine, response)) {
+            response.put("report", MachineEngine.compile(machine).analyze());
+        }
+        metrics.record(DiagramMetrics.Stage.EXECUTE, start);
+        return response;
+    }
+
+    private static boolean valid(StateMachine machine, Map<String, Object> response) {
+        DiagramError error = machine.error();
+        response.put("valid", error == null);
+        if (error != null) {
+            response.put("error", error.code());
+        }
+        return error == null;
+    }
+
+    // 指定された状態，なければワークスペースの現在の状態 どちらもなければNO_STATE
+    private static int startState(MachineEngine engine, Request request) {
+        String name = request.state != null ? request.state : request.machine.current();
+        if (name == null) {
+            return MachineEngine.NO_STATE;
+        }
+        int state = engine.stateId(name);
+        if (state == MachineEngine.NO_STATE) {
+            throw new IllegalArgumentException("状態 " + name + " はワークスペースにありません");
+        }
+        return state;
+    }
+
+    private Request readRequest(InputStream body) throws IOException {
+        Request request = new Request();
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "リクエストはjsonのオブジェクトである必要があります");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "workspace":
+                        request.machine = workspaceDecoder.decode(parser);
+                        break;
+                    case "state":
+                        request.state = parser.getValueAsString();
+                        break;
+                    case "event":
+                        request.event = parser.getValueAsString();
+                        break;
+                    case "events":
+                        request.events = readStrings(parser, new ArrayList<>());
+                        break;
+                    case "guards":
+                        request.guards = readStrings(parser, new HashSet<>());
+                        break;
+                    case "trace":
+                        request.trace = parser.getValueAsBoolean();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (request.machine == null) {
+                throw new JsonParseException(parser, "\"workspace\" が必要です");
+            }
+        }
+        return request;
+    }
+
+    private <T extends Collection<String>> T readStrings(JsonParser parser, T values) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new JsonParseException(parser, "文字列の配列である必要があります");
+        }
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (values.size() >= maxEvents) {
+                throw new WorkspaceTooLargeException("イベントの数が上限(" + maxEvents + ")を超えています");
+            }
+            values.add(parser.getValueAsString());
+        }
+        return values;
+    }
+
+    // jsonとして読み込めないリクエストと，ワークスペースにない状態には400を返す
+    @ExceptionHandler({JsonProcessingException.class, IllegalArgumentException.class})
+    public ResponseEntity<Void> invalidRequest(Exception e) {
+        return ResponseEntity.badRequest().build();
+    }
+}
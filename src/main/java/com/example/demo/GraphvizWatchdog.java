@@ -0,0 +1,233 @@
+package com.example.demo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Graphvizを使う描画のタイムアウトと死活監視を行うクラス
+// ・同時に描画する数はDiagramRenderServiceの描画スレッド数(render.executor.threads)で決まる(ここでは別に制限しない)
+// ・描画は呼び出したスレッドで行い，timeoutMillisを超えて動いているdotのプロセスを定期的に強制終了する
+//   (plantUMLはdotの出力を読み終えるまで待つため，応答しないdotを終了させないとスレッドもプロセスも残り続ける)
+// ・定期的にdotが動くかを確認し，動かないときはsmetana(Java内蔵のレイアウト)で描画する
+@Component
+public class GraphvizWatchdog {
+    private static final Logger log = LoggerFactory.getLogger(GraphvizWatchdog.class);
+    private static final Pattern STARTUML = Pattern.compile("@startuml\n(?!" + Pattern.quote(LayoutMode.SMETANA_PRAGMA) + ")");
+    private static final String STARTUML_SMETANA = Matcher.quoteReplacement("@startuml\n" + LayoutMode.SMETANA_PRAGMA + "\n");
+    private static final Path PROC = Paths.get("/proc");
+    private static final int CLOCK_TICKS_PER_SECOND = 100; // /proc/[pid]/statの時刻の単位(LinuxのUSER_HZは100で固定)
+
+    private final boolean enabled;
+    private final long timeoutMillis;
+    private final String dotPath;
+    private final String dotName; // /proc/[pid]/statに出るdotのコマンド名(15文字まで)
+    private final long healthCheckSeconds;
+
+    private ScheduledExecutorService scheduler; // 死活監視と，応答しないdotの終了を行うスレッド
+    private String selfPid; // このJVMのプロセスID(/procが読めないときはnull)
+    private volatile boolean healthy = true; // 最後の確認でdotが動いたかどうか
+
+    private final AtomicInteger running = new AtomicInteger(); // 描画中の数
+    private final LongAdder timeouts = new LongAdder(); // タイムアウトした描画の数
+    private final LongAdder killed = new LongAdder(); // 強制終了したdotのプロセスの数
+    private final LongAdder fallbacks = new LongAdder(); // dotが動かずsmetanaで描画した数
+    private final LongAdder healthCheckFailures = new LongAdder(); // dotの確認に失敗した回数
+
+    public GraphvizWatchdog(@Value("${render.graphviz.watchdog.enabled:false}") boolean enabled,
+                            @Value("${render.graphviz.watchdog.timeout-millis:10000}") long timeoutMillis,
+                            @Value("${render.graphviz.dot:dot}") String dotPath,
+                            @Value("${render.graphviz.watchdog.health-check-seconds:30}") long healthCheckSeconds) {
+        this.enabled = enabled;
+        this.timeoutMillis = timeoutMillis;
+        this.dotPath = dotPath;
+        String name = Paths.get(dotPath).getFileName().toString();
+        this.dotName = name.length() > 15 ? name.substring(0, 15) : name;
+        this.healthCheckSeconds = healthCheckSeconds;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        if (!"dot".equals(dotPath)) {
+            System.setProperty("GRAPHVIZ_DOT", dotPath); // plantUMLが使うdotの場所を指定する
+        }
+        try {
+            selfPid = PROC.resolve("self").toRealPath().getFileName().toString();
+        } catch (IOException e) {
+            log.warn("/procが読めないため，応答しないdotのプロセスを終了できません");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "graphviz-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkHealth, 0, healthCheckSeconds, TimeUnit.SECONDS);
+        if (selfPid != null) {
+            long period = Math.max(100, Math.min(1000, timeoutMillis / 4));
+            scheduler.scheduleWithFixedDelay(this::killHungDot, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // plantUML記述をSVGに描画する(呼び出したスレッドで描画する)
+    // 描画している間にdotを強制終了したときだけタイムアウトとして扱う(時間がかかっても描画できたSVGは返す)
+    public byte[] render(String plantUMLStr) throws IOException {
+        String source = plantUMLStr;
+        if (!healthy) {
+            // dotが動かないときはJava内蔵のレイアウトで描画する(部分ごとに分けた記述では全ての@startumlに付ける)
+            source = STARTUML.matcher(source).replaceAll(STARTUML_SMETANA);
+            if (!source.equals(plantUMLStr)) {
+                fallbacks.increment();
+            }
+        }
+        long start = System.nanoTime();
+        long killedBefore = killed.sum();
+        running.incrementAndGet();
+        try {
+            byte[] svg = new StmGenerator().convertPumlToPngBytes(source);
+            // plantUMLはdotが終了させられてもエラーの図を返すことがあるので，成功したときも確かめる
+            checkTimeout(start, killedBefore);
+            return svg;
+        } catch (IOException | RuntimeException e) {
+            checkTimeout(start, killedBefore); // dotを終了させたために起きた失敗はタイムアウトとして返す
+            throw e;
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    // この描画がtimeoutMillisを超えていて，その間にdotを強制終了していればタイムアウトにする
+    // (終了させたのはtimeoutMillisを超えて動いていたdotだけなので，timeoutMillis以内に終わった描画のものではない)
+    private void checkTimeout(long start, long killedBefore) throws IOException {
+        if (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(timeoutMillis) && killed.sum() > killedBefore) {
+            timeouts.increment();
+            throw new IOException("描画が" + timeoutMillis + "ミリ秒以内に終わりませんでした");
+        }
+    }
+
+    // このJVMから起動したdotのうち，timeoutMillisを超えて動いているものを強制終了するメソッド
+    // (どの描画のdotかは区別できないが，timeoutMillisを超えて動いているdotの描画はどれもタイムアウトしている)
+    void killHungDot() {
+        double uptimeSeconds;
+        List<Path> processes = new ArrayList<>();
+        try {
+            uptimeSeconds = Double.parseDouble(new String(Files.readAllBytes(PROC.resolve("uptime")),
+                    StandardCharsets.US_ASCII).split(" ")[0]);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(PROC, "[0-9]*")) {
+                for (Path process : stream) {
+                    processes.add(process);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return;
+        }
+        for (Path process : processes) {
+            String stat;
+            try {
+                stat = new String(Files.readAllBytes(process.resolve("stat")), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                continue; // 確認している間に終了したプロセス
+            }
+            // 形式: pid (コマンド名) 状態 親のpid ... 22番目が起動した時刻(起動してからのクロック数)
+            int open = stat.indexOf('(');
+            int close = stat.lastIndexOf(')');
+            if (open < 0 || close < open || !dotName.equals(stat.substring(open + 1, close))) {
+                continue;
+            }
+            String[] fields = stat.substring(close + 2).split(" ");
+            if (fields.length < 20 || !selfPid.equals(fields[1])) {
+                continue;
+            }
+            double ageSeconds = uptimeSeconds - Long.parseLong(fields[19]) / (double) CLOCK_TICKS_PER_SECOND;
+            if (ageSeconds * 1000 > timeoutMillis) {
+                kill(process.getFileName().toString());
+            }
+        }
+    }
+
+    private void kill(String pid) {
+        try {
+            Process process = new ProcessBuilder("kill", "-KILL", pid).redirectErrorStream(true).start();
+            if (process.waitFor(5, TimeUnit.SECONDS) && process.exitValue() == 0) {
+                killed.increment();
+                log.warn("{}ミリ秒を超えて動いているdotを終了しました: pid={}", timeoutMillis, pid);
+            } else {
+                process.destroyForcibly();
+            }
+        } catch (IOException e) {
+            log.warn("dotを終了できませんでした: pid={}", pid, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // dot -V を実行してGraphvizが動くかを確認するメソッド
+    void checkHealth() {
+        boolean ok;
+        try {
+            Process process = new ProcessBuilder(dotPath, "-V").redirectErrorStream(true).start();
+            ok = process.waitFor(5, TimeUnit.SECONDS) && process.exitValue() == 0;
+            if (!ok) {
+                process.destroyForcibly();
+            }
+        } catch (IOException e) {
+            ok = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (!ok) {
+            healthCheckFailures.increment();
+        }
+        if (ok != healthy) {
+            log.warn(ok ? "Graphvizが利用できるようになりました" : "Graphvizが利用できません。smetanaで描画します");
+        }
+        healthy = ok;
+    }
+
+    // 統計情報を返す
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("healthy", healthy);
+        result.put("running", running.get());
+        result.put("timeouts", timeouts.sum());
+        result.put("killed", killed.sum());
+        result.put("fallbacks", fallbacks.sum());
+        result.put("healthCheckFailures", healthCheckFailures.sum());
+        return result;
+    }
+}
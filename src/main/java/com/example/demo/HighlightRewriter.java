@@ -0,0 +1,243 @@
+package com.example.demo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// 構造だけの図のSVGに，クリック・現在の状態の色付けを書き込むクラス
+// Graphvizでレイアウトし直さずに，状態(entity)と遷移(link)の要素の色・線の太さだけを書き換える
+// 色はstyle属性に書き込む(fill属性やSvgMinifierがまとめたクラスより優先される)
+// 書き換える要素が見つからない・一つに決まらないときはnullを返す(呼び出し側で色付きの図を描画し直す)
+public final class HighlightRewriter {
+    private static final String BOLD_STROKE_WIDTH = "2"; // line.boldの太さ
+    private static final Pattern STYLE = Pattern.compile("\\sstyle=\"([^\"]*)\"");
+    private static final Pattern GROUP = Pattern.compile("<g((?:\\s[^>]*)?)>");
+    private static final Pattern ATTRIBUTE = Pattern.compile("\\s([\\w:.-]+)=\"([^\"]*)\"");
+    private static final Map<String, String> ENTITIES = new HashMap<>();
+
+    static {
+        ENTITIES.put("amp", "&");
+        ENTITIES.put("lt", "<");
+        ENTITIES.put("gt", ">");
+        ENTITIES.put("quot", "\"");
+        ENTITIES.put("apos", "'");
+    }
+
+    private HighlightRewriter() {
+    }
+
+    public static byte[] apply(byte[] svg, DiagramHighlights highlights) {
+        if (!highlights.isRewritable()) {
+            return null;
+        }
+        StringBuilder doc = new StringBuilder(new String(svg, StandardCharsets.UTF_8));
+        for (Map.Entry<String, Integer> edge : highlights.edges().entrySet()) {
+            if (!colorEdges(doc, edge.getKey(), edge.getValue(), highlights.color())) {
+                return null;
+            }
+        }
+        for (String state : highlights.filled()) {
+            if (!rewriteState(doc, state, "rect", highlights.currentFill(), null, null)) {
+                return null;
+            }
+        }
+        for (String state : highlights.lined()) {
+            if (!rewriteState(doc, state, "rect", null, highlights.color(), BOLD_STROKE_WIDTH)) {
+                return null;
+            }
+        }
+        for (String state : highlights.texted()) {
+            if (!rewriteState(doc, state, "text", highlights.color(), null, null)) {
+                return null;
+            }
+        }
+        return doc.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 状態から出る遷移(<g class="link" data-entity-1="状態名">)の線(path)と矢印(polygon)に色を付ける
+    // 見つかった遷移の数がplantUMLに書き出した遷移の数と一致しなければ失敗とする
+    private static boolean colorEdges(StringBuilder doc, String from, int expected, String color) {
+        List<int[]> found = groups(doc, "link", "data-entity-1", from);
+        for (int i = found.size() - 1; i >= 0; i--) { // 後ろから書き換えて，前の遷移の位置がずれないようにする
+            int[] group = found.get(i);
+            int end = group[1];
+            end = rewriteAll(doc, group[0], end, "path", "stroke", color);
+            end = rewriteAll(doc, group[0], end, "polygon", "fill", color);
+            rewriteAll(doc, group[0], end, "polygon", "stroke", color);
+        }
+        return found.size() == expected;
+    }
+
+    // 状態の要素(<g>)の中の最初のelement(枠はrect・状態名はtext)の属性を書き換える
+    // 枠線を太くするときは，状態名と動作の間の区切り線(line)も同じにする
+    private static boolean rewriteState(StringBuilder doc, String state, String element,
+                                        String fill, String stroke, String strokeWidth) {
+        int[] group = entity(doc, state);
+        if (group == null) {
+            return false;
+        }
+        int start = doc.indexOf("<" + element + " ", group[0]);
+        if (start < 0 || start > group[1]) {
+            return false;
+        }
+        int end = doc.indexOf(">", start) + 1;
+        String tag = doc.substring(start, end);
+        if (fill != null) {
+            tag = setStyle(tag, "fill", fill);
+        }
+        if (stroke != null) {
+            tag = setStyle(tag, "stroke", stroke);
+        }
+        if (strokeWidth != null) {
+            tag = setStyle(tag, "stroke-width", strokeWidth);
+        }
+        doc.replace(start, end, tag);
+        if (stroke != null) {
+            int groupEnd = group[1] + tag.length() - (end - start);
+            groupEnd = rewriteAll(doc, start + tag.length(), groupEnd, "line", "stroke", stroke);
+            rewriteAll(doc, start + tag.length(), groupEnd, "line", "stroke-width", strokeWidth);
+        }
+        return true;
+    }
+
+    // from〜endの範囲にあるelementの全てのタグのstyleの項目を書き換え，書き換えた後の範囲の終わりを返す
+    private static int rewriteAll(StringBuilder doc, int from, int end, String element, String property, String value) {
+        int start = doc.indexOf("<" + element + " ", from);
+        while (start >= 0 && start < end) {
+            int tagEnd = doc.indexOf(">", start) + 1;
+            String tag = setStyle(doc.substring(start, tagEnd), property, value);
+            doc.replace(start, tagEnd, tag);
+            end += tag.length() - (tagEnd - start);
+            start = doc.indexOf("<" + element + " ", start + tag.length());
+        }
+        return end;
+    }
+
+    // 状態名の要素の範囲を返す 見つからない・複数あるときはnull
+    // plantUMLの版・レイアウトエンジンによって，状態の<g>は次のどれかで状態名を持つ(ASCII以外の文字は&#数字;で書かれる)
+    //   <g class="entity" data-qualified-name="状態名" ...>  <g id="状態名">  <g id="elem_状態名">
+    private static int[] entity(StringBuilder doc, String state) {
+        List<int[]> found = groups(doc, null, "data-qualified-name", state);
+        if (found.isEmpty()) {
+            found = groups(doc, null, "id", state);
+        }
+        if (found.isEmpty()) {
+            found = groups(doc, null, "id", "elem_" + state);
+        }
+        return found.size() == 1 ? found.get(0) : null;
+    }
+
+    // classがcssClass(nullのときは問わない)で，attributeの値(文字参照を戻したもの)がvalueの<g>の範囲(開始タグの先頭〜対応する</g>)
+    private static List<int[]> groups(StringBuilder doc, String cssClass, String attribute, String value) {
+        List<int[]> result = new ArrayList<>();
+        Matcher tag = GROUP.matcher(doc);
+        while (tag.find()) {
+            String attributes = tag.group(1);
+            if (cssClass != null && !cssClass.equals(attribute(attributes, "class"))) {
+                continue;
+            }
+            String actual = attribute(attributes, attribute);
+            if (actual != null && value.equals(unescape(actual))) {
+                int end = groupEnd(doc, tag.end());
+                if (end < 0) {
+                    return Collections.emptyList();
+                }
+                result.add(new int[]{tag.start(), end});
+            }
+        }
+        return result;
+    }
+
+    private static String attribute(String attributes, String name) {
+        Matcher matcher = ATTRIBUTE.matcher(attributes);
+        while (matcher.find()) {
+            if (matcher.group(1).equals(name)) {
+                return matcher.group(2);
+            }
+        }
+        return null;
+    }
+
+    // fromから始まる<g>の中身の終わり(対応する</g>の位置)
+    private static int groupEnd(StringBuilder doc, int from) {
+        int depth = 1;
+        int at = from;
+        while (depth > 0) {
+            int open = doc.indexOf("<g", at);
+            int close = doc.indexOf("</g>", at);
+            if (close < 0) {
+                return -1;
+            }
+            if (open >= 0 && open < close && (doc.charAt(open + 2) == '>' || doc.charAt(open + 2) == ' ')) {
+                depth++;
+                at = open + 2;
+            } else {
+                depth--;
+                at = close + 4;
+            }
+        }
+        return at - 4;
+    }
+
+    // 属性の値の文字参照(&#数字; &#x16進数; &amp;など)を文字に戻す
+    static String unescape(String value) {
+        if (value.indexOf('&') < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            char c = value.charAt(i);
+            int semicolon = c == '&' ? value.indexOf(';', i) : -1;
+            if (semicolon < 0) {
+                result.append(c);
+                i++;
+                continue;
+            }
+            String name = value.substring(i + 1, semicolon);
+            try {
+                if (name.startsWith("#x") || name.startsWith("#X")) {
+                    result.appendCodePoint(Integer.parseInt(name.substring(2), 16));
+                } else if (name.startsWith("#")) {
+                    result.appendCodePoint(Integer.parseInt(name.substring(1)));
+                } else if (ENTITIES.containsKey(name)) {
+                    result.append(ENTITIES.get(name));
+                } else {
+                    result.append(c);
+                    i++;
+                    continue;
+                }
+            } catch (IllegalArgumentException e) {
+                result.append(c);
+                i++;
+                continue;
+            }
+            i = semicolon + 1;
+        }
+        return result.toString();
+    }
+
+    // タグのstyle属性の項目を書き換える(項目がなければ追加し，style属性がなければ作る)
+    private static String setStyle(String tag, String property, String value) {
+        Matcher style = STYLE.matcher(tag);
+        if (!style.find()) {
+            int close = tag.endsWith("/>") ? tag.length() - 2 : tag.length() - 1;
+            return tag.substring(0, close) + " style=\"" + property + ":" + value + ";\"" + tag.substring(close);
+        }
+        String declarations = style.group(1);
+        Matcher matcher = Pattern.compile("(^|;)\\s*" + Pattern.quote(property) + "\\s*:[^;]*").matcher(declarations);
+        String replaced;
+        if (matcher.find()) {
+            replaced = declarations.substring(0, matcher.start()) + matcher.group(1) + property + ":" + value
+                    + declarations.substring(matcher.end());
+        } else {
+            replaced = declarations + (declarations.isEmpty() || declarations.endsWith(";") ? "" : ";") + property + ":" + value + ";";
+        }
+        return tag.substring(0, style.start(1)) + replaced + tag.substring(style.end(1));
+    }
+}
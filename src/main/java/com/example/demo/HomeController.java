@@ -1,64 +1,175 @@
 // src/main/java/com/example/demo/HomeController.java
 package com.example.demo;
 
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.http.HttpHeaders;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.JsonNode;
+import org.springframework.http.CacheControl;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.springframework.http.ResponseEntity;
-import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Base64;
-import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 @RestController// このクラスがデータを返すと明示する つまり自動でjson形式で返してくれる
-@CrossOrigin(origins = "*")  // すべてのオリジンを許可
+@CrossOrigin(origins = "*", exposedHeaders = {HomeController.PLANTUML_HEADER, HomeController.PLANTUML_OMITTED_HEADER})  // すべてのオリジンを許可
 public class HomeController {
-    @GetMapping("/")
-    public ResponseEntity<JsonNode> home() {
-        String jsonDirPath = "./json"; // jsonファイルが入ったパスを指定
-        ObjectMapper objectMapper = new ObjectMapper();
-        File rootDir = new File(jsonDirPath); // ディレクトリ情報を表すオブジェクトを作成
-        File[] taskDirs = rootDir.listFiles(File::isDirectory); // ディレクトリ内にあるファイルを配列として返す
-        Arrays.sort(taskDirs, Comparator.comparing(File::getName));
-        ObjectNode mergedJson = objectMapper.createObjectNode(); // jsonファイルの中身をまとめて送るためのオブジェクト
+    public static final String PLANTUML_HEADER = "X-PlantUML-Value"; // SVGを直接返すときにplantUML記述を入れるヘッダー
+    public static final String PLANTUML_OMITTED_HEADER = "X-PlantUML-Omitted"; // plantUML記述が長すぎてヘッダーに入れなかったときにtrue
+    public static final String CLIENT_HEADER = "X-Diagram-Client"; // 差分で受け取りたいクライアントの識別子
+    public static final String BASE_HEADER = "X-Diagram-Base";     // クライアントが持っている図の版
+    private static final MediaType IMAGE_SVG = MediaType.valueOf("image/svg+xml");
+    private static final String SENDFILE = "org.apache.tomcat.sendfile"; // Tomcatにファイルから直接送ってもらうための属性
 
-        try {
-            // 各タスクごとにjsonファイルを確認
-            for (File taskDir : taskDirs) {
-                File[] jsonFile = taskDir.listFiles(file -> file.isFile() && file.getName().endsWith(".json")); // 各タスクファイル下のjsonファイルを取得
-                // jsonファイルが一つだけ存在するかを確認
-                if (jsonFile != null && jsonFile.length == 1) {
-                    JsonNode parsedJson = objectMapper.readTree(jsonFile[0]); // JSONファイルを直接JsonNodeとしてパース
-                    String taskName = taskDir.getName(); // タスクの名前(フォルダ名)を取得
-                    mergedJson.set(taskName, parsedJson); // jsonファイルの中身を結合
-                }
-                else{
-                    System.out.println("jsonファイルが一つだけでない可能性があります : " + taskDir.getName());
-                }
-            }
-            // パースしたJSONをレスポンスとして返す
-            return ResponseEntity.ok(mergedJson);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private final RenderCache renderCache;
+    private final DiskRenderCache diskCache;
+    private final DiagramRenderService renderService;
+    private final TaskCatalog taskCatalog;
+    private final GraphvizWatchdog graphvizWatchdog;
+    private final WorkspaceDecoder workspaceDecoder;
+    private final DiagramMetrics metrics;
+    private final EditSessionService sessionService;
+    private final DiagramDeltaService deltaService;
+    private final RenderAdmission admission;
+    private final TrafficCapture capture;
+    private final LayoutMode layout;
+    private final int partitionMinStates; // この数以上の状態がある図は部分ごとに分けて描画する
+    private final int plantUMLHeaderMaxBytes; // X-PlantUML-Valueに入れる(エンコードした)plantUML記述の上限
+
+    public HomeController(RenderCache renderCache, DiskRenderCache diskCache, DiagramRenderService renderService, TaskCatalog taskCatalog,
+                          GraphvizWatchdog graphvizWatchdog, WorkspaceDecoder workspaceDecoder, DiagramMetrics metrics,
+                          EditSessionService sessionService, DiagramDeltaService deltaService, RenderAdmission admission,
+                          TrafficCapture capture,
+                          @Value("${render.layout:graphviz}") String layout,
+                          @Value("${render.partition.min-states:200}") int partitionMinStates,
+                          @Value("${response.plantuml-header.max-bytes:4096}") int plantUMLHeaderMaxBytes) {
+        this.renderCache = renderCache;
+        this.diskCache = diskCache;
+        this.renderService = renderService;
+        this.taskCatalog = taskCatalog;
+        this.graphvizWatchdog = graphvizWatchdog;
+        this.workspaceDecoder = workspaceDecoder;
+        this.metrics = metrics;
+        this.sessionService = sessionService;
+        this.deltaService = deltaService;
+        this.admission = admission;
+        this.capture = capture;
+        this.layout = LayoutMode.from(layout);
+        this.partitionMinStates = partitionMinStates;
+        this.plantUMLHeaderMaxBytes = plantUMLHeaderMaxBytes;
+    }
+
+    // 課題一覧はメモリに保持しているものを返す(ETag/Last-Modifiedが一致すれば304を返す)
+    @GetMapping("/")
+    public ResponseEntity<byte[]> home() {
+        TaskCatalog.Snapshot catalog = taskCatalog.snapshot();
+        if (catalog == null) {
             return ResponseEntity.status(500).body(null);  // HTTP 500（内部サーバーエラー）を返す
         }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .cacheControl(CacheControl.noCache()) // ブラウザには毎回ETagで確認してもらう
+                .eTag(catalog.etag)
+                .lastModified(catalog.lastModified)
+                .body(catalog.body);
     }
 
+    // Acceptにimage/svg+xmlが指定されていればSVGをそのまま(Accept-Encodingにgzipがあれば圧縮済みのものを)返し，
+    // それ以外は従来どおりBase64のJSONを返す
+    // JSONで返すとき，X-Diagram-Clientを送ったクライアントには，X-Diagram-Baseの版との差分を返す(DiagramDeltaService)
     @PostMapping("/")
-    public ResponseEntity<DiagramResponse> postModelData(@RequestBody JsonNode data) throws IOException {
-        StmGenerator generator = new StmGenerator();
+    public CompletableFuture<ResponseEntity<?>> postModelData(InputStream body,
+                                                              @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                                              @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                                              @RequestHeader(value = CLIENT_HEADER, required = false) String clientId,
+                                                              @RequestHeader(value = BASE_HEADER, required = false) String baseVersion,
+                                                              HttpServletRequest request) throws IOException {
+        StmGenerator generator = new StmGenerator(layout, partitionMinStates);
+        long start = System.nanoTime();
+        InputStream recording = capture.tee(body); // capture.enabled=trueのときは本文を写し取る
+        CountingInputStream counted = new CountingInputStream(recording);
+        StateMachine data = workspaceDecoder.decode(counted); // 受け取ったワークスペースをJsonNodeを作らずに読み込む
+        metrics.record(DiagramMetrics.Stage.PARSE, start);
+        String renderClient = admission.clientOf(request);
+        capture.record(recording, start, accept, renderClient);
+        metrics.payload(counted.getCount());
+        metrics.validation(data.error());
 //        System.out.println(data); // 受け取ったワークスペースの情報
-        String plantUMLValue = generator.jsonToPlantUML(data); // plantUml形式に変換
+        start = System.nanoTime();
+        String plantUMLValue = generator.toPlantUML(data); // plantUml形式に変換(クライアントに返す記述)
+        String renderValue = generator.toRenderPlantUML(data, plantUMLValue); // 描画とキャッシュのキーに使う記述(大きな図は部分ごとに分ける)
+        DiagramHighlights highlights = generator.highlights(data); // クリック・現在の状態の色付け
+        String structural = highlights.isEmpty() || !renderService.isHighlightRewriteEnabled()
+                ? renderValue : generator.toStructuralPlantUML(data);
+        metrics.record(DiagramMetrics.Stage.GENERATE, start);
 //        System.out.println(plantUMLValue);
 //        System.out.println("");
-        byte[] imageBytes = generator.convertPumlToPngBytes(plantUMLValue);
+        boolean rawSvg = prefersSvg(accept);
+        boolean gzip = acceptsGzip(acceptEncoding);
+
+        // 描画は専用のスレッドプールで行い，終わったらレスポンスを返す(Tomcatのスレッドは待たせない)
+        // 描画はクライアントごとの割り当ての中で受け付ける(超えていれば429)
+        return renderService.render(renderValue, structural, highlights, renderClient).thenApply(rendered -> {
+            long encodeStart = System.nanoTime();
+            ResponseEntity<?> response;
+            if (rawSvg) {
+                response = svgResponse(plantUMLValue, rendered, gzip);
+            } else if (DiagramDeltaService.isValidClientId(clientId)) {
+                response = deltaResponse(plantUMLValue, rendered.svg, clientId, baseVersion);
+            } else {
+                response = base64Response(plantUMLValue, rendered.svg);
+            }
+            metrics.record(DiagramMetrics.Stage.ENCODE, encodeStart);
+            metrics.svg(rendered.svg.length);
+            return response;
+        });
+    }
 
-        // 画像をBase64(テキスト形式)に変換
+    // 描画せずにワークスペースのチェックだけを行い，エラーコードと問題のあるブロック・遷移の位置を返す
+    // ブロックをドラッグしている間など，図として表示できるかだけを知りたいときに使う
+    @PostMapping("/lint")
+    public WorkspaceLinter.Result lint(InputStream body) throws IOException {
+        long start = System.nanoTime();
+        StateMachine data = workspaceDecoder.decode(body);
+        WorkspaceLinter.Result result = WorkspaceLinter.lint(data);
+        metrics.record(DiagramMetrics.Stage.LINT, start);
+        return result;
+    }
+
+    // SVGをBase64に変換せず，そのままレスポンスの本文にする(plantUML記述はヘッダーに入れる)
+    // Tomcatはヘッダー全体を8KB(server.max-http-header-size)のバッファに書くので，エンコードした記述が上限を超えるときは
+    // ヘッダーに入れずにX-PlantUML-Omitted: trueをつける(記述が必要なクライアントはjsonで受け取り直す)
+    // gzipを受け付けるクライアントには，キャッシュに保持している圧縮済みのものを返す(Tomcatでは圧縮し直さない)
+    private ResponseEntity<?> svgResponse(String plantUMLValue, RenderedSvg rendered, boolean gzip) {
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .contentType(IMAGE_SVG)
+                .varyBy(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING);
+        String encoded = encodeHeaderValue(plantUMLValue);
+        if (encoded.length() <= plantUMLHeaderMaxBytes) {
+            builder.header(PLANTUML_HEADER, encoded);
+        } else {
+            builder.header(PLANTUML_OMITTED_HEADER, "true");
+        }
+        if (gzip) {
+            return builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(rendered.gzip);
+        }
+        return builder.body(rendered.svg);
+    }
+
+    // 従来のクライアント向けに，SVGをBase64(テキスト形式)に変換してJSONで返す
+    private ResponseEntity<?> base64Response(String plantUMLValue, byte[] imageBytes) {
         String base64Image = Base64.getEncoder().encodeToString(imageBytes);
         DiagramResponse response = new DiagramResponse(plantUMLValue, base64Image);
 
@@ -67,7 +178,164 @@ public class HomeController {
         // headers.setContentType(MediaType.IMAGE_PNG);
 
 //        return new ResponseEntity<>(imageBytes, headers, HttpStatus.OK);
-        return new ResponseEntity<>(response,HttpStatus.OK);
+        return ResponseEntity.ok().varyBy(HttpHeaders.ACCEPT).body(response);
+    }
+
+    // 差分で受け取るクライアント向けに，版と，基の版との差分(なければBase64のSVG)をJSONで返す
+    private ResponseEntity<?> deltaResponse(String plantUMLValue, byte[] imageBytes, String clientId, String baseVersion) {
+        String version = RenderCache.key(plantUMLValue); // 同じplantUML記述からは同じSVGができるので，そのハッシュを版とする
+        DiagramDeltaService.Delta delta = deltaService.delta(clientId, baseVersion, version, imageBytes);
+        DiagramResponse response = new DiagramResponse(plantUMLValue,
+                delta.patch == null ? Base64.getEncoder().encodeToString(imageBytes) : null);
+        response.version = version;
+        if (delta.patch != null) {
+            response.base = baseVersion;
+            response.patch = delta.patch;
+        }
+        return ResponseEntity.ok().varyBy(HttpHeaders.ACCEPT, CLIENT_HEADER, BASE_HEADER).body(response);
+    }
+
+    // 描画済みのSVGをキー(plantUML記述のSHA-256の16進数)で返す 内容は変わらないのでブラウザにも長く保持してもらう
+    // ディスクキャッシュにあるときは，Tomcatのsendfile(使えなければFileChannel.transferTo)でファイルからそのまま送る
+    @GetMapping("/svg/{key}")
+    public void cachedSvg(@PathVariable("key") String key, HttpServletRequest request,
+                          HttpServletResponse response) throws IOException {
+        if (!key.matches("[0-9a-f]{64}")) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        String etag = "\"" + key + "\"";
+        if (etag.equals(request.getHeader(HttpHeaders.IF_NONE_MATCH))) {
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+        RenderedSvg cached = renderCache.get(key);
+        DiskRenderCache.Region region = cached == null ? diskCache.locate(key) : null;
+        if (cached == null && region == null) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        response.setContentType(IMAGE_SVG.toString());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "public, max-age=31536000, immutable");
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (cached != null) {
+            byte[] body = cached.svg;
+            if (acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+                body = cached.gzip;
+            }
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
+            return;
+        }
+        response.setContentLengthLong(region.length);
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE + ".support"))) {
+            request.setAttribute(SENDFILE + ".filename", region.file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE + ".start", region.start);
+            request.setAttribute(SENDFILE + ".end", region.start + region.length);
+            return;
+        }
+        WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+        long position = region.start;
+        long end = region.start + region.length;
+        while (position < end) {
+            position += region.channel.transferTo(position, end - position, out);
+        }
+    }
+
+    // Acceptヘッダーでimage/svg+xmlがJSONより優先されているかを調べるメソッド
+    // */* やAcceptなしの場合は従来のクライアントとみなしてJSONを返す
+    static boolean prefersSvg(String accept) {
+        if (accept == null || accept.isEmpty()) {
+            return false;
+        }
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        } catch (IllegalArgumentException e) {
+            return false; // 解釈できないAcceptはJSONとして扱う
+        }
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+        for (MediaType mediaType : mediaTypes) {
+            if (mediaType.isWildcardType() || mediaType.isWildcardSubtype()) {
+                return false;
+            }
+            if (mediaType.includes(IMAGE_SVG)) {
+                return true;
+            }
+            if (mediaType.includes(MediaType.APPLICATION_JSON)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Accept-Encodingでgzipを受け付けているかを調べるメソッド(q=0は受け付けないとみなす)
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            String coding = params[0].trim();
+            if (!coding.equalsIgnoreCase("gzip") && !coding.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // 日本語や改行をヘッダーに入れられるようにパーセントエンコードする
+    private static String encodeHeaderValue(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8はどのJVMにも必ずある
+        }
+    }
+
+    // jsonとして読み込めないワークスペースには400を返す
+    @ExceptionHandler(JsonProcessingException.class)
+    public ResponseEntity<Void> invalidJson(JsonProcessingException e) {
+        return ResponseEntity.badRequest().build();
+    }
+
+    // 一つのクライアントが描画の割り当てを超えたときは429を返し，少し待ってから再送してもらう
+    @ExceptionHandler(ClientThrottledException.class)
+    public ResponseEntity<Void> clientThrottled(ClientThrottledException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .build();
+    }
+
+    // 描画待ちのキューがいっぱいのときは503を返し，少し待ってから再送してもらう
+    @ExceptionHandler(RenderRejectedException.class)
+    public ResponseEntity<Void> renderRejected(RenderRejectedException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .build();
+    }
+
+    // 描画キャッシュ(メモリ・ディスク)・描画スレッドプール・Graphvizのワーカー・編集セッション・記録の統計情報を返す
+    @GetMapping("/stats")
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("renderCache", renderCache.stats());
+        stats.put("diskCache", diskCache.stats());
+        stats.put("renderExecutor", renderService.stats());
+        stats.put("graphvizWatchdog", graphvizWatchdog.stats());
+        stats.put("editSessions", sessionService.stats());
+        stats.put("delta", deltaService.stats());
+        stats.put("capture", capture.stats());
+        return stats;
     }
 }
 
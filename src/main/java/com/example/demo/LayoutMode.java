@@ -0,0 +1,19 @@
+package com.example.demo;
+
+// 状態マシン図のレイアウトエンジン
+public enum LayoutMode {
+    GRAPHVIZ, // 外部のdotコマンドでレイアウトする(従来どおり)
+    SMETANA;  // plantUMLに内蔵されたJava実装でレイアウトする(dotのプロセスを起動しない)
+
+    public static final String SMETANA_PRAGMA = "!pragma layout smetana";
+
+    // 設定ファイルの値(graphviz / smetana)を変換するメソッド 大文字小文字は区別しない
+    public static LayoutMode from(String value) {
+        for (LayoutMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(value.trim())) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("不明なレイアウトエンジンです: " + value);
+    }
+}
@@ -0,0 +1,522 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 図として表示できるワークスペースを，状態・イベント・条件を番号に置き換えたグラフにして実行・解析するクラス
+// 遷移は状態ごとにCSR形式(始点ごとに遷移を並べた配列)で持ち，同じ状態の遷移はブロックの順番のまま並べる
+// 条件(ガード)は文字列なので評価できない 真になる条件の一覧を受け取り，一覧がないときは全ての条件を真とする
+public final class MachineEngine {
+    public static final int NO_STATE = -1;
+    public static final int COMPLETION = -1; // イベントのない遷移(完了遷移)のイベント番号
+    public static final int UNKNOWN_EVENT = -2; // どの遷移にもないイベント
+
+    private final StateMachine machine;
+    private final String[] states;
+    private final int finalState;      // 終了状態の番号(使われていなければNO_STATE)
+    private final int initial;         // 初期状態の次の状態(最初の初期状態ブロックのもの)
+    private final String initialEffect;
+    private final int[] initialTargets; // 全ての初期状態ブロックの次の状態(到達の起点)
+    private final boolean[] defined;   // ブロックで定義されている状態か
+    private final String[] entry;
+    private final String[] doActivity;
+    private final String[] exit;
+
+    // 遷移(CSR形式) 状態sの遷移はoffsets[s]からoffsets[s + 1]の手前まで
+    private final int[] offsets;
+    private final int[] targets;
+    private final int[] events;
+    private final int[] guards;        // 条件の番号(条件がなければ-1)
+    private final String[] effects;
+    private final int[] blockIndexes;  // 遷移を持つブロックがワークスペースの何番目の要素か
+    private final int[] positions;     // ブロックの中で何番目の「次の状態」ブロックか
+
+    private final String[] eventNames;
+    private final Map<String, Integer> eventIds;
+    private final String[] guardNames;
+    private final Map<String, Integer> guardIds;
+
+    // 実行中に呼ばれた振る舞い・遷移の動作(kindはexit・effect・entry・do)
+    public static final class Action {
+        public final String kind;
+        public final String state;
+        public final String action;
+
+        Action(String kind, String state, String action) {
+            this.kind = kind;
+            this.state = state;
+            this.action = action;
+        }
+    }
+
+    // 発火した遷移 blockとtransitionはWorkspaceLinter.Diagnosticと同じくワークスペース上の位置
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static final class Fired {
+        public final String from;
+        public final String to;
+        public final String event;
+        public final int block;
+        public final int transition;
+
+        Fired(String from, String to, String event, int block, int transition) {
+            this.from = from;
+            this.to = to;
+            this.event = event;
+            this.block = block;
+            this.transition = transition;
+        }
+    }
+
+    // イベント列を続けて受け取った結果
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static final class Simulation {
+        public String state;       // 最後の状態
+        public boolean terminated; // 終了状態に着いたか(着いたら残りのイベントは受け取らない)
+        public int consumed;       // 受け取ったイベントの数
+        public int fired;          // イベントで発火した遷移の数(完了遷移は含まない)
+        public int ignored;        // 発火できる遷移がなく捨てたイベントの数
+        public int visited;        // 一度でも入った状態の数
+        public List<String> trace; // イベントごとの状態(求められたときだけ)
+    }
+
+    // 解析の結果(状態名の一覧はワークスペースに現れた順)
+    public static final class Report {
+        public int states;
+        public int transitions;
+        public int events;
+        public int reachable;
+        public List<String> unreachableStates;  // 初期状態から到達できない状態
+        public List<String> deadEndStates;      // 到達でき，終了状態ではないのに出ていく遷移がない状態
+        public List<String> undefinedStates;    // 遷移先にあるがブロックで定義されていない状態
+        public List<String> cannotReachFinal;   // 到達できるが，そこから終了状態に行けない状態(終了状態がなければnull)
+        public List<String> neverEnabledEvents; // 到達できる状態の遷移に一度も現れないイベント
+        public List<Fired> shadowedTransitions; // 同じ状態・同じイベントの条件のない遷移が先にあるため発火しない遷移
+    }
+
+    private MachineEngine(StateMachine machine) {
+        this.machine = machine;
+        states = machine.states();
+        int stateCount = states.length;
+        finalState = machine.stateId(StateMachine.FINAL_STATE);
+        defined = new boolean[stateCount];
+        entry = new String[stateCount];
+        doActivity = new String[stateCount];
+        exit = new String[stateCount];
+        eventIds = new HashMap<>();
+        guardIds = new HashMap<>();
+        List<String> eventList = new ArrayList<>();
+        List<String> guardList = new ArrayList<>();
+
+        int total = machine.transitionCount();
+        int[] from = new int[total];
+        int[] to = new int[total];
+        int[] eventOf = new int[total];
+        int[] guardOf = new int[total];
+        String[] effectOf = new String[total];
+        int[] blockOf = new int[total];
+        int[] positionOf = new int[total];
+        int[] counts = new int[stateCount + 1];
+        List<Integer> initialList = new ArrayList<>();
+        int firstInitial = NO_STATE;
+        String firstInitialEffect = null;
+        int edges = 0;
+        for (StateMachine.Block block : machine.blocks()) {
+            if (block.isInitial()) {
+                int target = block.transitions.length > 0 ? id(machine, block.transitions[0].nextState) : NO_STATE;
+                if (target != NO_STATE) {
+                    initialList.add(target);
+                    if (firstInitial == NO_STATE) {
+                        firstInitial = target;
+                        firstInitialEffect = block.transitions[0].effect;
+                    }
+                }
+                continue;
+            }
+            int source = id(machine, block.state);
+            if (source == NO_STATE) {
+                continue;
+            }
+            if (!defined[source]) {
+                defined[source] = true;
+                entry[source] = block.entry;
+                doActivity[source] = block.doActivity;
+                exit[source] = block.exit;
+            }
+            for (int i = 0; i < block.transitions.length; i++) {
+                StateMachine.Transition transition = block.transitions[i];
+                int target = id(machine, transition.nextState);
+                if (target == NO_STATE) {
+                    continue;
+                }
+                from[edges] = source;
+                to[edges] = target;
+                eventOf[edges] = isCompletion(transition.event) ? COMPLETION : intern(transition.event, eventIds, eventList);
+                guardOf[edges] = transition.guard == null ? -1 : intern(transition.guard, guardIds, guardList);
+                effectOf[edges] = transition.effect;
+                blockOf[edges] = block.index;
+                positionOf[edges] = i;
+                counts[source + 1]++;
+                edges++;
+            }
+        }
+        initial = firstInitial;
+        initialEffect = firstInitialEffect;
+        initialTargets = new int[initialList.size()];
+        for (int i = 0; i < initialTargets.length; i++) {
+            initialTargets[i] = initialList.get(i);
+        }
+        eventNames = eventList.toArray(new String[0]);
+        guardNames = guardList.toArray(new String[0]);
+
+        // 始点ごとに数えてから並べる(同じ始点の中ではブロックの順番が保たれる)
+        for (int i = 0; i < stateCount; i++) {
+            counts[i + 1] += counts[i];
+        }
+        offsets = counts;
+        targets = new int[edges];
+        events = new int[edges];
+        guards = new int[edges];
+        effects = new String[edges];
+        blockIndexes = new int[edges];
+        positions = new int[edges];
+        int[] fill = offsets.clone();
+        for (int i = 0; i < edges; i++) {
+            int slot = fill[from[i]]++;
+            targets[slot] = to[i];
+            events[slot] = eventOf[i];
+            guards[slot] = guardOf[i];
+            effects[slot] = effectOf[i];
+            blockIndexes[slot] = blockOf[i];
+            positions[slot] = positionOf[i];
+        }
+    }
+
+    // 図として表示できない(error()がnullでない)ワークスペースは実行できないので，呼び出す前に確かめる
+    public static MachineEngine compile(StateMachine machine) {
+        if (machine.error() != null) {
+            throw new IllegalArgumentException("図として表示できないワークスペースは実行できません: " + machine.error().code());
+        }
+        return new MachineEngine(machine);
+    }
+
+    // ---- 番号と名前の変換 ----
+
+    public int stateCount() {
+        return states.length;
+    }
+
+    public String stateName(int state) {
+        return states[state];
+    }
+
+    // 状態名(#FF5555と前後の空白を除く)の番号 見つからないときはNO_STATE
+    public int stateId(String stateName) {
+        return id(machine, stateName);
+    }
+
+    public int eventId(String event) {
+        if (isCompletion(event)) {
+            return COMPLETION;
+        }
+        Integer id = eventIds.get(event);
+        return id == null ? UNKNOWN_EVENT : id;
+    }
+
+    public String eventName(int event) {
+        return event == COMPLETION ? null : eventNames[event];
+    }
+
+    // 真になる条件の一覧から，条件の番号ごとの値を作る(nullのときは全ての条件を真とする)
+    public boolean[] guardValues(Collection<String> trueGuards) {
+        boolean[] values = new boolean[guardNames.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = trueGuards == null || trueGuards.contains(guardNames[i]);
+        }
+        return values;
+    }
+
+    public int initialState() {
+        return initial;
+    }
+
+    public boolean isFinal(int state) {
+        return state == finalState;
+    }
+
+    // ---- 実行 ----
+
+    // 初期状態から最初の状態に入る(その後の完了遷移もたどる) 戻り値は入った状態
+    public int start(boolean[] guardValues, List<Action> actions, List<Fired> fired) {
+        if (initial == NO_STATE) {
+            return NO_STATE;
+        }
+        if (actions != null) {
+            addAction(actions, "effect", StateMachine.INITIAL_STATE, initialEffect);
+            enter(initial, actions);
+        }
+        if (fired != null) {
+            fired.add(new Fired(StateMachine.INITIAL_STATE, states[initial], null, -1, 0));
+        }
+        return complete(initial, guardValues, actions, fired);
+    }
+
+    // stateでeventを受け取ったときの次の状態 発火できる遷移がないときはイベントを捨ててstateのまま
+    // actions・firedがnullでなければ，呼ばれた振る舞いと発火した遷移を追加する
+    public int step(int state, int event, boolean[] guardValues, List<Action> actions, List<Fired> fired) {
+        int edge = enabled(state, event, guardValues);
+        if (edge < 0) {
+            return state;
+        }
+        return complete(fire(state, edge, actions, fired), guardValues, actions, fired);
+    }
+
+    // stateで発火できる最初の遷移(なければ-1)
+    public int enabled(int state, int event, boolean[] guardValues) {
+        if (state == NO_STATE || event == UNKNOWN_EVENT) {
+            return -1;
+        }
+        for (int i = offsets[state]; i < offsets[state + 1]; i++) {
+            if (events[i] == event && (guards[i] < 0 || guardValues[guards[i]])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 完了遷移(イベントのない遷移)を発火できる限りたどる
+    // 完了遷移だけの循環で止まらなくならないように，状態の数までで打ち切る
+    private int complete(int state, boolean[] guardValues, List<Action> actions, List<Fired> fired) {
+        for (int n = 0; n < states.length; n++) {
+            int edge = enabled(state, COMPLETION, guardValues);
+            if (edge < 0) {
+                break;
+            }
+            state = fire(state, edge, actions, fired);
+        }
+        return state;
+    }
+
+    private int fire(int state, int edge, List<Action> actions, List<Fired> fired) {
+        int target = targets[edge];
+        if (actions != null) {
+            addAction(actions, "exit", states[state], exit[state]);
+            addAction(actions, "effect", states[state], effects[edge]);
+            enter(target, actions);
+        }
+        if (fired != null) {
+            fired.add(fired(state, edge));
+        }
+        return target;
+    }
+
+    private void enter(int state, List<Action> actions) {
+        addAction(actions, "entry", states[state], entry[state]);
+        addAction(actions, "do", states[state], doActivity[state]);
+    }
+
+    private static void addAction(List<Action> actions, String kind, String state, String action) {
+        if (action != null) {
+            actions.add(new Action(kind, state, action));
+        }
+    }
+
+    private Fired fired(int state, int edge) {
+        return new Fired(states[state], states[targets[edge]], eventName(events[edge]), blockIndexes[edge], positions[edge]);
+    }
+
+    // startから始めてイベント列(番号)を順に受け取る 振る舞いは記録せず，状態の番号だけをたどる
+    public Simulation simulate(int start, int[] eventIds, boolean[] guardValues, boolean trace) {
+        Simulation result = new Simulation();
+        BitSet visited = new BitSet(states.length);
+        List<String> path = trace ? new ArrayList<>(eventIds.length) : null;
+        int state = start;
+        if (state != NO_STATE) {
+            visited.set(state);
+        }
+        for (int event : eventIds) {
+            if (state == finalState) {
+                result.terminated = true;
+                break;
+            }
+            result.consumed++;
+            int edge = enabled(state, event, guardValues);
+            if (edge < 0) {
+                result.ignored++;
+            } else {
+                result.fired++;
+                state = targets[edge];
+                visited.set(state);
+                for (int n = 0; n < states.length; n++) { // 完了遷移(completeと同じ)
+                    int next = enabled(state, COMPLETION, guardValues);
+                    if (next < 0) {
+                        break;
+                    }
+                    state = targets[next];
+                    visited.set(state);
+                }
+            }
+            if (path != null) {
+                path.add(state == NO_STATE ? null : states[state]);
+            }
+        }
+        result.terminated |= state != NO_STATE && state == finalState;
+        result.state = state == NO_STATE ? null : states[state];
+        result.visited = visited.cardinality();
+        result.trace = path;
+        return result;
+    }
+
+    // stateで発火できる遷移のイベント(重複なし，完了遷移は除く)
+    public List<String> enabledEvents(int state, boolean[] guardValues) {
+        List<String> names = new ArrayList<>();
+        if (state == NO_STATE) {
+            return names;
+        }
+        for (int i = offsets[state]; i < offsets[state + 1]; i++) {
+            int event = events[i];
+            if (event != COMPLETION && (guards[i] < 0 || guardValues[guards[i]]) && !names.contains(eventNames[event])) {
+                names.add(eventNames[event]);
+            }
+        }
+        return names;
+    }
+
+    // ---- 解析 ----
+
+    // 初期状態から遷移をたどって到達できる状態(条件はすべて真になりうるものとする)
+    public BitSet reachable() {
+        BitSet reached = new BitSet(states.length);
+        int[] queue = new int[states.length];
+        int tail = 0;
+        for (int target : initialTargets) {
+            if (!reached.get(target)) {
+                reached.set(target);
+                queue[tail++] = target;
+            }
+        }
+        for (int head = 0; head < tail; head++) {
+            int state = queue[head];
+            for (int i = offsets[state]; i < offsets[state + 1]; i++) {
+                if (!reached.get(targets[i])) {
+                    reached.set(targets[i]);
+                    queue[tail++] = targets[i];
+                }
+            }
+        }
+        return reached;
+    }
+
+    // 終了状態に行ける状態(終了状態から遷移を逆向きにたどる)
+    private BitSet canReachFinal() {
+        int stateCount = states.length;
+        int[] reverseOffsets = new int[stateCount + 1];
+        for (int target : targets) {
+            reverseOffsets[target + 1]++;
+        }
+        for (int i = 0; i < stateCount; i++) {
+            reverseOffsets[i + 1] += reverseOffsets[i];
+        }
+        int[] sources = new int[targets.length];
+        int[] fill = reverseOffsets.clone();
+        for (int state = 0; state < stateCount; state++) {
+            for (int i = offsets[state]; i < offsets[state + 1]; i++) {
+                sources[fill[targets[i]]++] = state;
+            }
+        }
+        BitSet reached = new BitSet(stateCount);
+        int[] queue = new int[stateCount];
+        int tail = 0;
+        reached.set(finalState);
+        queue[tail++] = finalState;
+        for (int head = 0; head < tail; head++) {
+            int state = queue[head];
+            for (int i = reverseOffsets[state]; i < reverseOffsets[state + 1]; i++) {
+                if (!reached.get(sources[i])) {
+                    reached.set(sources[i]);
+                    queue[tail++] = sources[i];
+                }
+            }
+        }
+        return reached;
+    }
+
+    public Report analyze() {
+        BitSet reached = reachable();
+        Report report = new Report();
+        report.states = states.length;
+        report.transitions = targets.length;
+        report.events = eventNames.length;
+        report.reachable = reached.cardinality();
+        report.unreachableStates = new ArrayList<>();
+        report.deadEndStates = new ArrayList<>();
+        report.undefinedStates = new ArrayList<>();
+        BitSet toFinal = finalState == NO_STATE ? null : canReachFinal();
+        report.cannotReachFinal = toFinal == null ? null : new ArrayList<>();
+        for (int state = 0; state < states.length; state++) {
+            if (state == finalState || states[state].equals(StateMachine.INITIAL_STATE)) {
+                continue;
+            }
+            if (!defined[state]) {
+                report.undefinedStates.add(states[state]);
+            }
+            if (!reached.get(state)) {
+                if (defined[state] && !states[state].contains(StateMachine.UNDEFINED_STATE)) {
+                    report.unreachableStates.add(states[state]);
+                }
+                continue;
+            }
+            if (offsets[state] == offsets[state + 1]) {
+                report.deadEndStates.add(states[state]);
+            }
+            if (toFinal != null && !toFinal.get(state)) {
+                report.cannotReachFinal.add(states[state]);
+            }
+        }
+
+        BitSet enabledEvents = new BitSet(eventNames.length);
+        report.shadowedTransitions = new ArrayList<>();
+        for (int state = 0; state < states.length; state++) {
+            for (int i = offsets[state]; i < offsets[state + 1]; i++) {
+                if (reached.get(state) && events[i] != COMPLETION) {
+                    enabledEvents.set(events[i]);
+                }
+                for (int j = offsets[state]; j < i; j++) {
+                    if (events[j] == events[i] && guards[j] < 0) {
+                        report.shadowedTransitions.add(fired(state, i));
+                        break;
+                    }
+                }
+            }
+        }
+        report.neverEnabledEvents = new ArrayList<>();
+        for (int event = enabledEvents.nextClearBit(0); event < eventNames.length; event = enabledEvents.nextClearBit(event + 1)) {
+            report.neverEnabledEvents.add(eventNames[event]);
+        }
+        return report;
+    }
+
+    private static int id(StateMachine machine, String stateName) {
+        return stateName == null ? NO_STATE : machine.stateId(StateMachine.stripMarker(stateName).trim());
+    }
+
+    // 完了イベント(図には書かれない)とイベントのない遷移
+    private static boolean isCompletion(String event) {
+        return event == null || "completeEvent".equals(event);
+    }
+
+    private static int intern(String name, Map<String, Integer> ids, List<String> names) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.demo;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// plantUML記述をSVGに描画するクラス(DiagramRenderServiceの描画スレッドから呼ばれる)
+// 大きな図を部分ごとに分けた記述(@startumlが複数ある記述)は，部分ごとに別のスレッドでレイアウトしてから一つのSVGにまとめる
+@Component
+public class PartitionedRenderer {
+    private final GraphvizWatchdog graphvizWatchdog;
+    private final ExecutorService partWorkers; // 二つ目以降の部分を描画するスレッド(一つ目は呼び出したスレッドで描画する)
+    private final LongAdder partitioned = new LongAdder(); // 部分ごとに分けて描画した図の数
+    private final LongAdder parts = new LongAdder(); // 描画した部分の数の合計
+
+    public PartitionedRenderer(GraphvizWatchdog graphvizWatchdog,
+                               @Value("${render.partition.parallelism:0}") int parallelism) {
+        this.graphvizWatchdog = graphvizWatchdog;
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors(); // 0のときはCPUのコア数
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.partWorkers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "render-part-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public byte[] render(String plantUMLStr) throws IOException {
+        List<String> sources = SvgStitcher.split(plantUMLStr);
+        if (sources.size() == 1) {
+            return renderOne(plantUMLStr);
+        }
+        List<Future<byte[]>> futures = new ArrayList<>(sources.size());
+        for (int i = 1; i < sources.size(); i++) {
+            String source = sources.get(i);
+            futures.add(partWorkers.submit(() -> renderOne(source)));
+        }
+        List<byte[]> svgs = new ArrayList<>(sources.size());
+        try {
+            svgs.add(renderOne(sources.get(0)));
+            for (Future<byte[]> future : futures) {
+                svgs.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("部分の図の描画が中断されました", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("部分の図を描画できませんでした", cause);
+        } finally {
+            for (Future<byte[]> future : futures) {
+                future.cancel(true); // 失敗したときは残りの部分を描画しない
+            }
+        }
+        partitioned.increment();
+        parts.add(sources.size());
+        return SvgStitcher.stitch(svgs);
+    }
+
+    private byte[] renderOne(String plantUMLStr) throws IOException {
+        return graphvizWatchdog.isEnabled()
+                ? graphvizWatchdog.render(plantUMLStr) // タイムアウトと死活監視をしながら描画する
+                : new StmGenerator().convertPumlToPngBytes(plantUMLStr);
+    }
+
+    public long partitionedCount() {
+        return partitioned.sum();
+    }
+
+    public long partCount() {
+        return parts.sum();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        partWorkers.shutdownNow();
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import javax.servlet.http.HttpServletRequest;
+
+// 描画を待つ間に簡易版の図を表示するためのコントローラー
+// 一つのレスポンスで，簡易版の図(PreviewRenderer)と本来の図をNDJSON(一行に一つのjson)で順に返す
+@RestController
+@CrossOrigin(origins = "*")  // すべてのオリジンを許可
+public class PreviewController {
+    private static final byte[] NEWLINE = {'\n'};
+
+    private final WorkspaceDecoder workspaceDecoder;
+    private final DiagramRenderService renderService;
+    private final DiagramMetrics metrics;
+    private final RenderAdmission admission;
+    private final LayoutMode layout;
+    private final int partitionMinStates;
+    private final long timeoutMillis;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public PreviewController(WorkspaceDecoder workspaceDecoder, DiagramRenderService renderService, DiagramMetrics metrics,
+                             RenderAdmission admission,
+                             @Value("${render.layout:graphviz}") String layout,
+                             @Value("${render.partition.min-states:200}") int partitionMinStates,
+                             @Value("${preview.timeout-millis:60000}") long timeoutMillis) {
+        this.workspaceDecoder = workspaceDecoder;
+        this.renderService = renderService;
+        this.metrics = metrics;
+        this.admission = admission;
+        this.layout = LayoutMode.from(layout);
+        this.partitionMinStates = partitionMinStates;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // POST /と同じワークスペースを受け取り，次の行を返す
+    // {"type":"preview","base64Image":...} 図として表示できるワークスペースで，キャッシュになく描画に時間がかかるときだけ，すぐに返す
+    // {"type":"diagram","plantUMLValue":...,"base64Image":...} 描画が終わったら返す
+    // {"type":"error","message":...} 描画できなかったとき(描画待ちのキューがいっぱいのときはretryAfterSecondsもつける)
+    @PostMapping("/preview")
+    public ResponseEntity<ResponseBodyEmitter> preview(InputStream body, HttpServletRequest request) throws IOException {
+        StateMachine data = workspaceDecoder.decode(body);
+        StmGenerator generator = new StmGenerator(layout, partitionMinStates);
+        String plantUMLValue = generator.toPlantUML(data);
+        DiagramHighlights highlights = generator.highlights(data);
+        String renderValue = generator.toRenderPlantUML(data, plantUMLValue); // 描画とキャッシュのキーに使う記述
+        String structural = highlights.isEmpty() || !renderService.isHighlightRewriteEnabled()
+                ? renderValue : generator.toStructuralPlantUML(data);
+        CompletableFuture<RenderedSvg> future;
+        try {
+            future = renderService.render(renderValue, structural, highlights, admission.clientOf(request));
+        } catch (RenderRejectedException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e); // 簡易版の図は返してから断る
+        }
+
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(timeoutMillis);
+        if ((!future.isDone() || future.isCompletedExceptionally()) && data.error() == null) {
+            long start = System.nanoTime();
+            Map<String, Object> preview = new LinkedHashMap<>();
+            preview.put("type", "preview");
+            preview.put("base64Image", Base64.getEncoder().encodeToString(PreviewRenderer.render(data)));
+            metrics.record(DiagramMetrics.Stage.PREVIEW, start);
+            send(emitter, preview);
+        }
+        future.whenComplete((rendered, error) -> {
+            Map<String, Object> line = new LinkedHashMap<>();
+            if (error == null) {
+                line.put("type", "diagram");
+                line.put("plantUMLValue", plantUMLValue);
+                line.put("base64Image", Base64.getEncoder().encodeToString(rendered.svg));
+                metrics.svg(rendered.svg.length);
+            } else {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                line.put("type", "error");
+                line.put("message", String.valueOf(cause.getMessage()));
+                if (cause instanceof RenderRejectedException) {
+                    line.put("retryAfterSeconds", ((RenderRejectedException) cause).getRetryAfterSeconds());
+                }
+            }
+            send(emitter, line);
+            emitter.complete();
+        });
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(emitter);
+    }
+
+    private void send(ResponseBodyEmitter emitter, Map<String, Object> line) {
+        try {
+            byte[] json = objectMapper.writeValueAsBytes(line);
+            synchronized (emitter) {
+                emitter.send(json, MediaType.APPLICATION_OCTET_STREAM);
+                emitter.send(NEWLINE, MediaType.APPLICATION_OCTET_STREAM);
+            }
+        } catch (IOException | IllegalStateException e) {
+            // クライアントが切断している
+        }
+    }
+
+    // jsonとして読み込めないワークスペースには400を返す
+    @ExceptionHandler(JsonProcessingException.class)
+    public ResponseEntity<Void> invalidJson(JsonProcessingException e) {
+        return ResponseEntity.badRequest().build();
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.demo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// plantUML・Graphvizを使わずに，状態マシンの中間表現から直接SVGを描く簡易版の描画クラス
+// 初期状態からの距離で段を決め(層別レイアウト)，段ごとに左から並べて線で結ぶだけなので数ミリ秒で終わる
+// 本来の図が描画されるまでの間に表示するためのもので，見た目は本来の図に合わせていない
+public final class PreviewRenderer {
+    private static final int MARGIN = 20;
+    private static final int NODE_HEIGHT = 32;
+    private static final int LAYER_GAP = 70;   // 段と段の間
+    private static final int NODE_GAP = 30;    // 同じ段の状態の間
+    private static final int PSEUDO_SIZE = 20; // 開始・終了の丸の直径
+    private static final String FONT = "font-family=\"sans-serif\"";
+
+    private PreviewRenderer() {
+    }
+
+    public static byte[] render(StateMachine machine) {
+        String[] states = machine.states();
+        int start = states.length;     // 開始の丸([*])の番号
+        int end = states.length + 1;   // 終了の丸の番号
+        int nodeCount = states.length + 2;
+
+        // 描く状態(初期状態・終了状態は丸で描く)
+        boolean[] used = new boolean[nodeCount];
+        for (int i = 0; i < states.length; i++) {
+            used[i] = !states[i].equals(StateMachine.INITIAL_STATE) && !states[i].equals(StateMachine.FINAL_STATE);
+        }
+
+        // 遷移を集め(状態名は番号に置き換える)，状態ごとの遷移先をCSR形式にする
+        List<int[]> edges = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        int[] offsets = new int[nodeCount + 1];
+        for (StateMachine.Block block : machine.blocks()) {
+            int source = block.isInitial() ? start : node(machine, block.state, end);
+            if (source < 0) {
+                continue;
+            }
+            // 初期状態は最初の遷移だけを描く(plantUMLの図と同じ)
+            for (int i = 0; i < block.transitions.length && (!block.isInitial() || i == 0); i++) {
+                StateMachine.Transition transition = block.transitions[i];
+                int target = transition.nextState == null ? -1 : node(machine, transition.nextState, end);
+                if (target < 0) {
+                    continue;
+                }
+                edges.add(new int[]{source, target});
+                labels.add(label(transition));
+                offsets[source + 1]++;
+                used[source] = true;
+                used[target] = true;
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] targets = new int[edges.size()];
+        int[] fill = offsets.clone();
+        for (int[] edge : edges) {
+            targets[fill[edge[0]]++] = edge[1];
+        }
+
+        // 段を決める 開始の丸から幅優先でたどり，たどれなかった状態はそこから改めてたどる
+        int[] layer = new int[nodeCount];
+        Arrays.fill(layer, -1);
+        int[] order = new int[nodeCount]; // 段を決めた順(同じ段ではこの順に左から並べる)
+        int ordered = 0;
+        int[] queue = new int[nodeCount];
+        for (int root = -1; root < nodeCount; root++) {
+            int first = root < 0 ? start : root;
+            if (!used[first] || layer[first] >= 0 || first == end) {
+                continue;
+            }
+            layer[first] = first == start ? 0 : 1;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = first;
+            while (head < tail) {
+                int current = queue[head++];
+                order[ordered++] = current;
+                for (int e = offsets[current]; e < offsets[current + 1]; e++) {
+                    int next = targets[e];
+                    if (next != end && layer[next] < 0) {
+                        layer[next] = layer[current] + 1;
+                        queue[tail++] = next;
+                    }
+                }
+            }
+        }
+        int maxLayer = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            maxLayer = Math.max(maxLayer, layer[i]);
+        }
+        if (used[end]) {
+            layer[end] = maxLayer + 1;
+            order[ordered++] = end;
+            maxLayer++;
+        }
+
+        // 段ごとに左から並べ，一番広い段に合わせて中央に寄せる
+        double[] width = new double[nodeCount];
+        double[] x = new double[nodeCount];
+        double[] layerWidth = new double[maxLayer + 1];
+        for (int k = 0; k < ordered; k++) {
+            int node = order[k];
+            width[node] = node >= states.length ? PSEUDO_SIZE : Math.max(60, textWidth(states[node], 13) + 24);
+            if (layerWidth[layer[node]] > 0) {
+                layerWidth[layer[node]] += NODE_GAP;
+            }
+            x[node] = layerWidth[layer[node]];
+            layerWidth[layer[node]] += width[node];
+        }
+        double totalWidth = 0;
+        for (double w : layerWidth) {
+            totalWidth = Math.max(totalWidth, w);
+        }
+        for (int k = 0; k < ordered; k++) {
+            int node = order[k];
+            x[node] += MARGIN + (totalWidth - layerWidth[layer[node]]) / 2;
+        }
+        double totalHeight = (maxLayer + 1) * NODE_HEIGHT + maxLayer * LAYER_GAP;
+
+        StringBuilder svg = new StringBuilder(256 + ordered * 160 + edges.size() * 200);
+        int svgWidth = (int) Math.ceil(totalWidth + MARGIN * 2);
+        int svgHeight = (int) Math.ceil(totalHeight + MARGIN * 2);
+        svg.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(svgWidth).append("px\" height=\"")
+                .append(svgHeight).append("px\" viewBox=\"0 0 ").append(svgWidth).append(' ').append(svgHeight)
+                .append("\" class=\"preview\"><defs><marker id=\"arrow\" viewBox=\"0 0 10 10\" refX=\"10\" refY=\"5\"")
+                .append(" markerWidth=\"8\" markerHeight=\"8\" orient=\"auto\"><path d=\"M0,0L10,5L0,10z\" fill=\"#181818\"/></marker></defs>");
+
+        // 遷移(先に描いて状態の下に隠れるようにする)
+        for (int i = 0; i < edges.size(); i++) {
+            int source = edges.get(i)[0];
+            int target = edges.get(i)[1];
+            double sx = x[source] + width[source] / 2;
+            double sy = top(layer[source]) + height(source, states.length);
+            double tx = x[target] + width[target] / 2;
+            double ty = top(layer[target]);
+            String d;
+            double lx;
+            double ly;
+            if (source == target) {
+                // 自己遷移は右側の輪にする
+                double right = x[source] + width[source];
+                double mid = top(layer[source]) + NODE_HEIGHT / 2.0;
+                d = "M" + number(right) + "," + number(mid - 8) + "C" + number(right + 30) + "," + number(mid - 20) + " "
+                        + number(right + 30) + "," + number(mid + 20) + " " + number(right) + "," + number(mid + 8);
+                lx = right + 32;
+                ly = mid;
+            } else {
+                if (layer[target] <= layer[source]) {
+                    // 上の段(か同じ段)への遷移は，状態の上から出て上の状態の下に入る
+                    sy = top(layer[source]);
+                    ty = top(layer[target]) + height(target, states.length);
+                    if (layer[target] == layer[source]) {
+                        ty = top(layer[target]);
+                    }
+                }
+                double cx = (sx + tx) / 2 + (layer[target] <= layer[source] ? 40 : 0);
+                double cy = (sy + ty) / 2;
+                d = "M" + number(sx) + "," + number(sy) + "Q" + number(cx) + "," + number(cy) + " " + number(tx) + "," + number(ty);
+                lx = cx + 4;
+                ly = cy;
+            }
+            svg.append("<path d=\"").append(d).append("\" fill=\"none\" stroke=\"#181818\" marker-end=\"url(#arrow)\"/>");
+            String label = labels.get(i);
+            if (!label.isEmpty()) {
+                svg.append("<text x=\"").append(number(lx)).append("\" y=\"").append(number(ly)).append("\" ").append(FONT)
+                        .append(" font-size=\"10\" fill=\"#444444\">");
+                escape(svg, label).append("</text>");
+            }
+        }
+
+        // 状態と開始・終了の丸
+        String current = machine.current() == null ? null : StateMachine.stripMarker(machine.current()).trim();
+        for (int k = 0; k < ordered; k++) {
+            int node = order[k];
+            double top = top(layer[node]);
+            if (node == start) {
+                svg.append("<circle cx=\"").append(number(x[node] + PSEUDO_SIZE / 2.0)).append("\" cy=\"")
+                        .append(number(top + PSEUDO_SIZE / 2.0)).append("\" r=\"").append(PSEUDO_SIZE / 2).append("\" fill=\"#222222\"/>");
+            } else if (node == end) {
+                svg.append("<circle cx=\"").append(number(x[node] + PSEUDO_SIZE / 2.0)).append("\" cy=\"")
+                        .append(number(top + PSEUDO_SIZE / 2.0)).append("\" r=\"").append(PSEUDO_SIZE / 2)
+                        .append("\" fill=\"#FFFFFF\" stroke=\"#222222\" stroke-width=\"2\"/><circle cx=\"")
+                        .append(number(x[node] + PSEUDO_SIZE / 2.0)).append("\" cy=\"").append(number(top + PSEUDO_SIZE / 2.0))
+                        .append("\" r=\"").append(PSEUDO_SIZE / 2 - 5).append("\" fill=\"#222222\"/>");
+            } else {
+                String name = states[node];
+                boolean undefined = name.contains(StateMachine.UNDEFINED_STATE);
+                svg.append("<rect x=\"").append(number(x[node])).append("\" y=\"").append(number(top))
+                        .append("\" width=\"").append(number(width[node])).append("\" height=\"").append(NODE_HEIGHT)
+                        .append("\" rx=\"10\" fill=\"").append(name.equals(current) ? StateMachine.CURRENT_MARKER : "#F1F1F1")
+                        .append("\" stroke=\"#181818\" stroke-width=\"0.5\"/><text x=\"").append(number(x[node] + width[node] / 2))
+                        .append("\" y=\"").append(number(top + NODE_HEIGHT / 2.0 + 5)).append("\" ").append(FONT)
+                        .append(" font-size=\"13\" text-anchor=\"middle\" fill=\"").append(undefined ? "#FF0000" : "#000000").append("\">");
+                escape(svg, name).append("</text>");
+            }
+        }
+        svg.append("</svg>");
+        return svg.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 状態名の番号(終了状態はend) 描かない名前のときは-1
+    private static int node(StateMachine machine, String stateName, int end) {
+        String cleaned = StateMachine.stripMarker(stateName).trim();
+        if (cleaned.equals(StateMachine.FINAL_STATE)) {
+            return end;
+        }
+        if (cleaned.equals(StateMachine.INITIAL_STATE)) {
+            return -1;
+        }
+        return machine.stateId(cleaned);
+    }
+
+    // 遷移のラベル(イベント [条件] / エフェクト) plantUMLの図と同じく完了イベントは書かない
+    private static String label(StateMachine.Transition transition) {
+        StringBuilder label = new StringBuilder();
+        if (transition.event != null && !"completeEvent".equals(transition.event)) {
+            label.append(transition.event);
+        }
+        if (transition.guard != null) {
+            label.append(label.length() > 0 ? " [" : "[").append(transition.guard).append(']');
+        }
+        if (transition.effect != null) {
+            label.append(label.length() > 0 ? " / " : "/ ").append(transition.effect);
+        }
+        return label.toString();
+    }
+
+    private static double top(int layer) {
+        return MARGIN + layer * (NODE_HEIGHT + LAYER_GAP);
+    }
+
+    private static double height(int node, int stateCount) {
+        return node >= stateCount ? PSEUDO_SIZE : NODE_HEIGHT;
+    }
+
+    // 文字の幅のおおよその値(全角は半角の二倍とする)
+    private static double textWidth(String text, int fontSize) {
+        double width = 0;
+        for (int i = 0; i < text.length(); i++) {
+            width += text.charAt(i) < 0x2E80 ? fontSize * 0.6 : fontSize;
+        }
+        return width;
+    }
+
+    private static StringBuilder escape(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                case '&': out.append("&amp;"); break;
+                case '"': out.append("&quot;"); break;
+                default: out.append(c);
+            }
+        }
+        return out;
+    }
+
+    private static String number(double value) {
+        double rounded = Math.round(value * 10) / 10.0;
+        return rounded == Math.rint(rounded) ? Long.toString((long) rounded) : Double.toString(rounded);
+    }
+}
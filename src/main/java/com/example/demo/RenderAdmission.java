@@ -0,0 +1,354 @@
+package com.example.demo;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// 描画(キャッシュになく，実際にGraphvizでレイアウトするもの)の受け付けを，クライアントごとに公平にするクラス
+// ・接続元のアドレスごとのトークンバケットで，一秒あたりの描画数(とまとめて送れる数)を制限する(外側の上限)
+//   学校などでは一つのアドレスの後ろに教室全体がいるので，この割り当ては教室一つ分の大きさにする
+// ・アドレスの中では，サーバーが発行した署名付きのクッキー(RenderClientFilter)でクライアントを区別し，
+//   クライアントごとのトークンバケットとキューで待てる数を制限する(一人で教室全体の割り当てを使い切れないようにする)
+//   クッキーを送らない要求は，アドレスごとに一つのクライアントとして扱い，割り当てはアドレスと同じ大きさにする
+// ・キューから取り出す順番は重み付き公平キューイング(WFQ)で決める
+//   描画の重さ(plantUML記述の長さ)をクライアントごとに積み上げた仮想の終了時刻が早い順に描画するので，
+//   大きな図を何度も送るクライアントがいても，他のクライアントの小さな図は先に描画される
+// キャッシュにある図や，描画中の図に相乗りする要求はここを通らない(トークンを使わない)
+// X-Diagram-Clientやセッションの識別子はクライアントが自由に変えられるので使わない
+// (クッキーを捨てて新しく発行させても，次の要求まではクッキーのない要求として扱われ，アドレスの上限も超えられない)
+@Component
+public class RenderAdmission implements MeterBinder {
+    private static final int COST_UNIT = 1000; // plantUML記述のこの文字数ごとに描画の重さを1増やす
+    private static final int STATS_CLIENTS = 20; // /statsに出すクライアントの数
+    private static final String IDENTITY_ATTRIBUTE = RenderAdmission.class.getName() + ".identity";
+    private static final String HMAC = "HmacSHA256";
+
+    private final boolean enabled;
+    private final double ratePerSecond; // アドレスごと
+    private final double burst;
+    private final double clientRatePerSecond; // アドレスの中のクライアントごと
+    private final double clientBurst;
+    private final int maxQueuedPerClient;
+    private final boolean trustForwardedFor;
+    private final SecretKeySpec secret; // クライアントの識別子に署名する鍵
+    private final SecureRandom random = new SecureRandom();
+    private final Cache<String, Client> clients;
+    private final Cache<String, Bucket> addresses;
+
+    private double virtualTime; // 最後に描画を始めた要求の仮想の開始時刻
+    private long sequence;      // 同じ仮想時刻の要求は来た順にする
+    private final LongAdder throttledRate = new LongAdder(); // クライアントのトークンがなくて断った数
+    private final LongAdder throttledAddress = new LongAdder(); // アドレスのトークンがなくて断った数
+    private final LongAdder throttledQueue = new LongAdder(); // クライアントのキューがいっぱいで断った数
+
+    // キューに入れた描画一つ分 finishが小さい順に取り出す
+    public static final class Ticket implements Comparable<Ticket> {
+        final Client client; // クライアントを区別しない描画(起動時の温めなど)ではnull
+        final Bucket address;
+        final double start;
+        final double finish;
+        final long sequence;
+        final long enqueuedAt = System.nanoTime();
+
+        Ticket(Client client, Bucket address, double start, double finish, long sequence) {
+            this.client = client;
+            this.address = address;
+            this.start = start;
+            this.finish = finish;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            int c = Double.compare(finish, other.finish);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // トークンバケット(RenderAdmissionのロックで守る)
+    static final class Bucket {
+        final double ratePerSecond;
+        final double burst;
+        double tokens;
+        long refilledAt;
+
+        Bucket(double ratePerSecond, double burst, long now) {
+            this.ratePerSecond = ratePerSecond;
+            this.burst = burst;
+            this.tokens = burst;
+            this.refilledAt = now;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * ratePerSecond);
+            refilledAt = now;
+        }
+
+        void refund() {
+            tokens = Math.min(burst, tokens + 1);
+        }
+
+        // トークンが一つたまるまでの秒数
+        int retryAfterSeconds() {
+            return Math.max(1, (int) Math.ceil((1 - tokens) / ratePerSecond));
+        }
+    }
+
+    // 一つのクライアントの状態(RenderAdmissionのロックで守る)
+    static final class Client {
+        final String id;
+        final Bucket bucket;
+        double lastFinish; // 最後にキューに入れた要求の仮想の終了時刻
+        int queued;
+        long admitted;
+        long throttled;
+        long totalWaitNanos;
+        long maxWaitNanos;
+
+        Client(String id, Bucket bucket) {
+            this.id = id;
+            this.bucket = bucket;
+        }
+    }
+
+    public RenderAdmission(@Value("${render.fair.enabled:true}") boolean enabled,
+                           @Value("${render.fair.rate-per-second:10}") double ratePerSecond,
+                           @Value("${render.fair.burst:50}") double burst,
+                           @Value("${render.fair.client-rate-per-second:3}") double clientRatePerSecond,
+                           @Value("${render.fair.client-burst:15}") double clientBurst,
+                           @Value("${render.fair.max-queued-per-client:16}") int maxQueuedPerClient,
+                           @Value("${render.fair.trust-forwarded-for:false}") boolean trustForwardedFor,
+                           @Value("${render.fair.client-secret:}") String clientSecret,
+                           @Value("${render.fair.max-clients:10000}") long maxClients,
+                           @Value("${render.fair.idle-timeout-millis:600000}") long idleTimeoutMillis) {
+        this.enabled = enabled;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.clientRatePerSecond = clientRatePerSecond;
+        this.clientBurst = clientBurst;
+        this.maxQueuedPerClient = maxQueuedPerClient;
+        this.trustForwardedFor = trustForwardedFor;
+        byte[] key;
+        if (clientSecret.isEmpty()) {
+            key = new byte[32]; // 指定がないときは起動ごとに作る(再起動すると発行し直す)
+            random.nextBytes(key);
+        } else {
+            key = clientSecret.getBytes(StandardCharsets.UTF_8);
+        }
+        this.secret = new SecretKeySpec(key, HMAC);
+        this.clients = Caffeine.newBuilder()
+                .maximumSize(maxClients)
+                .expireAfterAccess(idleTimeoutMillis, TimeUnit.MILLISECONDS)
+                .build();
+        this.addresses = Caffeine.newBuilder()
+                .maximumSize(maxClients)
+                .expireAfterAccess(idleTimeoutMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    // リクエストからクライアントを決める 接続元のIPアドレスに，RenderClientFilterが確かめた識別子があれば"#"でつなげる
+    // (プロキシの後ろにいるときはrender.fair.trust-forwarded-for=trueでX-Forwarded-Forの最初のアドレスを使う)
+    public String clientOf(HttpServletRequest request) {
+        if (request == null) {
+            return null;
+        }
+        String forwarded = trustForwardedFor ? request.getHeader("X-Forwarded-For") : null;
+        String address = forwarded != null && !forwarded.trim().isEmpty()
+                ? forwarded.split(",")[0].trim() : request.getRemoteAddr();
+        Object identity = request.getAttribute(IDENTITY_ATTRIBUTE);
+        return identity == null ? "ip:" + address : "ip:" + address + "#" + identity;
+    }
+
+    // クライアントの識別子の外側の上限に使うアドレス("batch:"などの前置きと"#"の後ろの識別子を除いたもの)
+    static String addressOf(String clientId) {
+        int start = clientId.indexOf("ip:");
+        int end = clientId.indexOf('#');
+        return clientId.substring(Math.max(0, start), end < 0 ? clientId.length() : end);
+    }
+
+    // 新しいクライアントの識別子を発行し，クッキーに入れる値(識別子.署名)を返す
+    String issueIdentity() {
+        byte[] id = new byte[16];
+        synchronized (random) {
+            random.nextBytes(id);
+        }
+        String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+        return encoded + "." + sign(encoded);
+    }
+
+    // クッキーの値の署名を確かめ，正しければ識別子を返す(正しくなければnull)
+    String verifyIdentity(String value) {
+        int dot = value == null ? -1 : value.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        String id = value.substring(0, dot);
+        byte[] expected = sign(id).getBytes(StandardCharsets.US_ASCII);
+        byte[] actual = value.substring(dot + 1).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, actual) ? id : null;
+    }
+
+    // 確かめた識別子をリクエストに記録する(clientOfが使う)
+    static void setIdentity(HttpServletRequest request, String identity) {
+        request.setAttribute(IDENTITY_ATTRIBUTE, identity);
+    }
+
+    private String sign(String id) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(secret);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(id.getBytes(StandardCharsets.US_ASCII)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // /statsや記録したファイルに出すクライアントの識別子(アドレスをそのまま出さないようにSHA-256の先頭だけにする)
+    public static String anonymize(String clientId) {
+        return clientId == null ? null : RenderCache.key(clientId).substring(0, 16);
+    }
+
+    // 描画をキューに入れてよいかを調べ，よければ取り出す順番を決めたTicketを返す
+    // clientIdがnull(クライアントを区別しない描画)のときは制限しない
+    // クライアントの割り当てとアドレスの割り当ての両方にトークンが残っているときだけ受け付ける
+    public synchronized Ticket admit(String clientId, String plantUMLStr) {
+        double cost = 1 + plantUMLStr.length() / COST_UNIT;
+        if (!enabled) {
+            return new Ticket(null, null, 0, 0, sequence++); // 来た順
+        }
+        if (clientId == null) {
+            return new Ticket(null, null, virtualTime, virtualTime + cost, sequence++);
+        }
+        long now = System.nanoTime();
+        boolean identified = clientId.indexOf('#') >= 0; // クッキーのない要求はアドレスと同じ大きさの割り当てにする
+        Client client = clients.get(clientId, id -> new Client(id, identified
+                ? new Bucket(clientRatePerSecond, clientBurst, now) : new Bucket(ratePerSecond, burst, now)));
+        Bucket address = addresses.get(addressOf(clientId), id -> new Bucket(ratePerSecond, burst, now));
+        client.bucket.refill(now);
+        address.refill(now);
+        if (client.queued >= maxQueuedPerClient) {
+            client.throttled++;
+            throttledQueue.increment();
+            throw new ClientThrottledException("描画待ちの図が多すぎます", 1);
+        }
+        if (client.bucket.tokens < 1) {
+            client.throttled++;
+            throttledRate.increment();
+            throw new ClientThrottledException("描画の要求が多すぎます", client.bucket.retryAfterSeconds());
+        }
+        if (address.tokens < 1) {
+            client.throttled++;
+            throttledAddress.increment();
+            throw new ClientThrottledException("このアドレスからの描画の要求が多すぎます", address.retryAfterSeconds());
+        }
+        client.bucket.tokens -= 1;
+        address.tokens -= 1;
+        client.queued++;
+        client.admitted++;
+        double start = Math.max(virtualTime, client.lastFinish);
+        client.lastFinish = start + cost;
+        return new Ticket(client, address, start, client.lastFinish, sequence++);
+    }
+
+    // 描画を始めたとき(キューから取り出されたとき)に呼ぶ
+    public synchronized void started(Ticket ticket) {
+        virtualTime = Math.max(virtualTime, ticket.start);
+        Client client = ticket.client;
+        if (client != null) {
+            long wait = System.nanoTime() - ticket.enqueuedAt;
+            client.queued--;
+            client.totalWaitNanos += wait;
+            client.maxWaitNanos = Math.max(client.maxWaitNanos, wait);
+        }
+    }
+
+    // 全体のキューがいっぱいでキューに入れられなかったときに呼ぶ(トークンは返す)
+    public synchronized void cancelled(Ticket ticket) {
+        Client client = ticket.client;
+        if (client != null) {
+            client.queued--;
+            client.admitted--;
+            client.bucket.refund();
+            ticket.address.refund();
+        }
+    }
+
+    // キューで待っている描画が一番多いクライアントの待ち数
+    public synchronized int maxQueued() {
+        int max = 0;
+        for (Client client : clients.asMap().values()) {
+            max = Math.max(max, client.queued);
+        }
+        return max;
+    }
+
+    // クライアントの数・断った数と，待ち数(同じなら断った数)の多いクライアントの状態
+    public synchronized Map<String, Object> stats() {
+        List<Client> list = new ArrayList<>(clients.asMap().values());
+        list.sort((a, b) -> a.queued != b.queued ? Integer.compare(b.queued, a.queued) : Long.compare(b.throttled, a.throttled));
+        List<Map<String, Object>> top = new ArrayList<>();
+        for (Client client : list.subList(0, Math.min(STATS_CLIENTS, list.size()))) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("client", anonymize(client.id));
+            item.put("queued", client.queued);
+            item.put("tokens", Math.floor(client.bucket.tokens * 10) / 10);
+            item.put("admitted", client.admitted);
+            item.put("throttled", client.throttled);
+            long started = client.admitted - client.queued;
+            item.put("avgWaitMillis", started <= 0 ? 0.0 : client.totalWaitNanos / 1_000_000.0 / started);
+            item.put("maxWaitMillis", client.maxWaitNanos / 1_000_000.0);
+            top.add(item);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("clients", list.size());
+        result.put("addresses", addresses.estimatedSize());
+        result.put("throttledRate", throttledRate.sum());
+        result.put("throttledAddress", throttledAddress.sum());
+        result.put("throttledQueue", throttledQueue.sum());
+        result.put("topClients", top);
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("diagram.render.clients", clients, Cache::estimatedSize)
+                .description("描画を要求したクライアントの数")
+                .register(registry);
+        Gauge.builder("diagram.render.client.queue.max", this, RenderAdmission::maxQueued)
+                .description("描画待ちの図が一番多いクライアントの待ち数")
+                .register(registry);
+        FunctionCounter.builder("diagram.render.throttled", throttledRate, LongAdder::sum)
+                .tag("reason", "rate")
+                .description("クライアントの割り当てを超えたため断った描画の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.render.throttled", throttledAddress, LongAdder::sum)
+                .tag("reason", "address")
+                .description("クライアントの割り当てを超えたため断った描画の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.render.throttled", throttledQueue, LongAdder::sum)
+                .tag("reason", "client-queue")
+                .description("クライアントの割り当てを超えたため断った描画の数")
+                .register(registry);
+    }
+}
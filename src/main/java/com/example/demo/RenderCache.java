@@ -0,0 +1,76 @@
+package com.example.demo;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// plantUML記述のハッシュをキーに，描画済みのSVG(とそのgzip圧縮版)を保持するキャッシュ
+// 同じ図を何度もGraphvizで描画しないようにする
+@Component
+public class RenderCache implements MeterBinder {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Cache<String, RenderedSvg> cache;
+
+    public RenderCache(@Value("${render.cache.max-bytes:67108864}") long maxBytes) {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes) // 保持するSVG(圧縮版を含む)の合計バイト数の上限
+                .weigher((String key, RenderedSvg svg) -> key.length() + svg.size())
+                .recordStats() // ヒット・ミス・追い出しの回数を記録する
+                .build();
+    }
+
+    // plantUML記述からキャッシュのキー(SHA-256)を作るメソッド
+    public static String key(String plantUMLStr) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(plantUMLStr.getBytes(StandardCharsets.UTF_8));
+            char[] chars = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                chars[i * 2] = HEX[(hash[i] >> 4) & 0x0F];
+                chars[i * 2 + 1] = HEX[hash[i] & 0x0F];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256はどのJVMにも必ずある
+        }
+    }
+
+    // キャッシュにあればそのSVGを，なければnullを返す
+    public RenderedSvg get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(String key, RenderedSvg svg) {
+        cache.put(key, svg);
+    }
+
+    // ヒット数・ミス数・追い出し数などをメトリクスとして公開する
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, cache, "render");
+    }
+
+    // キャッシュの統計情報(ヒット数・ミス数・追い出し数など)を返す
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("evictions", stats.evictionCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("entries", cache.estimatedSize());
+        return result;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.demo;
+
+import org.springframework.stereotype.Component;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+// 描画の割り当て(RenderAdmission)でアドレスの中のクライアントを区別するための，署名付きのクッキーを発行するフィルタ
+// 正しく署名されたクッキーが送られてきたときは識別子をリクエストに記録し，なければ新しく発行する
+// 発行した要求そのものと，クッキーを送らない要求(別のオリジンから呼ぶ古いフロントエンドなど)は，アドレスだけで区別される
+@Component
+public class RenderClientFilter implements Filter {
+    static final String COOKIE = "diagram-client";
+    private static final int MAX_AGE_SECONDS = 30 * 24 * 60 * 60;
+
+    private final RenderAdmission admission;
+
+    public RenderClientFilter(RenderAdmission admission) {
+        this.admission = admission;
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+        if (req instanceof HttpServletRequest && res instanceof HttpServletResponse) {
+            HttpServletRequest request = (HttpServletRequest) req;
+            String identity = admission.verifyIdentity(cookie(request));
+            if (identity != null) {
+                RenderAdmission.setIdentity(request, identity);
+            } else {
+                ((HttpServletResponse) res).addHeader("Set-Cookie", COOKIE + "=" + admission.issueIdentity()
+                        + "; Path=/; Max-Age=" + MAX_AGE_SECONDS + "; HttpOnly; SameSite=Lax"
+                        + (request.isSecure() ? "; Secure" : ""));
+            }
+        }
+        chain.doFilter(req, res);
+    }
+
+    private static String cookie(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (COOKIE.equals(cookie.getName())) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+}
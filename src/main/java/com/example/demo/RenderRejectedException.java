@@ -0,0 +1,15 @@
+package com.example.demo;
+
+// 描画待ちのキューがいっぱいで，描画を受け付けられないときに投げる例外
+public class RenderRejectedException extends RuntimeException {
+    private final int retryAfterSeconds; // クライアントが再送するまで待つ秒数
+
+    public RenderRejectedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// 描画したSVG(SvgMinifierで小さくしたもの)と，そのgzip圧縮版
+// 圧縮は一度だけ行い，キャッシュに一緒に保持してAccept-Encodingに応じて返す(要求ごとに圧縮しない)
+public final class RenderedSvg {
+    public final byte[] svg;
+    public final byte[] gzip;
+
+    private RenderedSvg(byte[] svg, byte[] gzip) {
+        this.svg = svg;
+        this.gzip = gzip;
+    }
+
+    public static RenderedSvg of(byte[] svg) {
+        return new RenderedSvg(svg, gzip(svg));
+    }
+
+    // キャッシュの重さ(バイト数)
+    public int size() {
+        return svg.length + gzip.length;
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION); // 一度しか圧縮しないので圧縮率を優先する
+            }
+        }) {
+            gzip.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // メモリ上の書き込みなので起きない
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// 起動時に課題一覧(jsonフォルダ)から代表的な図を作って描画し，plantUML・フォント・Graphvizの検出・JITを温めておくクラス
+// ApplicationRunnerはreadiness(/actuator/health/readiness)がACCEPTING_TRAFFICになる前に実行されるので，
+// オートスケールで増えたインスタンスにも温まってから要求が届く
+// warmup.exit=trueのときは温めた後に終了する(AppCDSのアーカイブを作るときの学習用の実行)
+@Component
+public class StartupWarmup implements ApplicationRunner {
+    private static final Logger log = LoggerFactory.getLogger(StartupWarmup.class);
+
+    private final TaskCatalog taskCatalog;
+    private final WorkspaceDecoder workspaceDecoder;
+    private final DiagramRenderService renderService;
+    private final ConfigurableApplicationContext context;
+    private final LayoutMode layout;
+    private final int partitionMinStates; // この数以上の状態がある図は部分ごとに分けて描画する
+    private final boolean enabled;
+    private final int iterations;
+    private final boolean exit;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public StartupWarmup(TaskCatalog taskCatalog, WorkspaceDecoder workspaceDecoder, DiagramRenderService renderService,
+                         ConfigurableApplicationContext context,
+                         @Value("${render.layout:graphviz}") String layout,
+                         @Value("${render.partition.min-states:200}") int partitionMinStates,
+                         @Value("${warmup.enabled:true}") boolean enabled,
+                         @Value("${warmup.iterations:3}") int iterations,
+                         @Value("${warmup.exit:false}") boolean exit) {
+        this.taskCatalog = taskCatalog;
+        this.workspaceDecoder = workspaceDecoder;
+        this.renderService = renderService;
+        this.context = context;
+        this.layout = LayoutMode.from(layout);
+        this.partitionMinStates = partitionMinStates;
+        this.enabled = enabled;
+        this.iterations = iterations;
+        this.exit = exit;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (enabled) {
+            warmUp();
+        }
+        if (exit) {
+            log.info("温め終わったので終了します(warmup.exit=true)");
+            System.exit(SpringApplication.exit(context, () -> 0));
+        }
+    }
+
+    private void warmUp() {
+        long start = System.nanoTime();
+        List<byte[]> workspaces = representativeWorkspaces();
+        int rendered = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] workspace : workspaces) {
+                try {
+                    StateMachine machine = workspaceDecoder.decode(new ByteArrayInputStream(workspace));
+                    StmGenerator generator = new StmGenerator(layout, partitionMinStates);
+                    String plantUMLValue = generator.toPlantUML(machine);
+                    byte[] svg;
+                    if (i == 0) {
+                        // 一回目はPOST /と同じ経路(スレッドプール・キャッシュ・色付けの書き換え)で描画する
+                        DiagramHighlights highlights = generator.highlights(machine);
+                        String renderValue = generator.toRenderPlantUML(machine, plantUMLValue);
+                        String structural = highlights.isEmpty() || !renderService.isHighlightRewriteEnabled()
+                                ? renderValue : generator.toStructuralPlantUML(machine);
+                        svg = renderService.render(renderValue, structural, highlights).get(60, TimeUnit.SECONDS).svg;
+                    } else {
+                        svg = generator.convertPumlToPngBytes(generator.toRenderPlantUML(machine, plantUMLValue)); // 二回目からはキャッシュを使わずに描画する
+                    }
+                    objectMapper.writeValueAsBytes(new DiagramResponse(plantUMLValue, Base64.getEncoder().encodeToString(svg)));
+                    rendered++;
+                } catch (Exception e) {
+                    log.warn("起動時の描画に失敗しました", e); // 温められなくても起動は続ける
+                }
+            }
+        }
+        log.info("起動時に{}件の図を描画しました({}ms)", rendered, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // 課題ごとに，その課題のイベント・振る舞い・条件・エフェクトを使ったワークスペースを作る
+    // 色付き(クリック・現在の状態)の図と，エラーのノートだけの図も作る
+    private List<byte[]> representativeWorkspaces() {
+        List<byte[]> workspaces = new ArrayList<>();
+        try {
+            TaskCatalog.Snapshot catalog = taskCatalog.snapshot();
+            if (catalog != null) {
+                Iterator<Map.Entry<String, JsonNode>> tasks = objectMapper.readTree(catalog.body).fields();
+                while (tasks.hasNext()) {
+                    JsonNode task = tasks.next().getValue();
+                    workspaces.add(objectMapper.writeValueAsBytes(workspace(task, false)));
+                    workspaces.add(objectMapper.writeValueAsBytes(workspace(task, true)));
+                }
+            }
+            if (workspaces.isEmpty()) {
+                workspaces.add(objectMapper.writeValueAsBytes(workspace(objectMapper.createObjectNode(), false)));
+            }
+            ArrayNode noInitialState = objectMapper.createArrayNode();
+            noInitialState.addObject().put("state", "状態1");
+            workspaces.add(objectMapper.writeValueAsBytes(noInitialState)); // 初期状態がない(エラーのノート)
+        } catch (Exception e) {
+            log.warn("起動時に描画する図を作れませんでした", e);
+        }
+        return workspaces;
+    }
+
+    private ArrayNode workspace(JsonNode task, boolean highlighted) {
+        List<String> events = texts(task.get("event"));
+        List<String> behaviors = texts(task.get("behavior"));
+        List<String> guards = texts(task.get("guard"));
+        List<String> effects = texts(task.get("effect"));
+        int states = Math.max(2, events.size());
+
+        ArrayNode workspace = objectMapper.createArrayNode();
+        ObjectNode initial = workspace.addObject();
+        initial.put("state", StateMachine.INITIAL_STATE);
+        initial.putObject("myself").put("condition", true);
+        initial.putArray("transition").addObject().put("nextState", "状態1");
+        initial.putObject("behavior");
+        for (int i = 0; i < states; i++) {
+            ObjectNode block = workspace.addObject();
+            block.put("state", "状態" + (i + 1));
+            ObjectNode transition = block.putArray("transition").addObject();
+            String next = "状態" + ((i + 1) % states + 1);
+            transition.put("nextState", highlighted && i == 0 ? next + StateMachine.CURRENT_MARKER : next);
+            if (!events.isEmpty()) {
+                transition.put("event", events.get(i % events.size()));
+            }
+            if (!guards.isEmpty()) {
+                transition.put("guard", guards.get(i % guards.size()));
+            }
+            if (!effects.isEmpty()) {
+                transition.put("effect", effects.get(i % effects.size()));
+            }
+            ObjectNode behavior = block.putObject("behavior");
+            if (!behaviors.isEmpty()) {
+                behavior.put(i % 3 == 0 ? "entry" : i % 3 == 1 ? "do" : "exit", behaviors.get(i % behaviors.size()));
+            }
+            if (highlighted && i == states - 1) {
+                block.putObject("click").put("type", "switchIfType");
+            }
+        }
+        return workspace;
+    }
+
+    private static List<String> texts(JsonNode array) {
+        List<String> texts = new ArrayList<>();
+        if (array != null) {
+            for (JsonNode item : array) {
+                texts.add(item.asText());
+            }
+        }
+        return texts;
+    }
+}
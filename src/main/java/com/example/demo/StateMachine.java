@@ -0,0 +1,257 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// ワークスペース(ブロックの並び)を一度だけ読み込んで作る，状態マシンの中間表現
+// 読み込みながら全てのチェック(初期状態・初期状態からの遷移・状態名・重複)を行う
+public final class StateMachine {
+    public static final String INITIAL_STATE = "初期状態";
+    public static final String FINAL_STATE = "終了状態";
+    public static final String UNDEFINED_STATE = "未定義";
+    public static final String CURRENT_MARKER = "#FF5555"; // 現在の状態の時に状態名の後ろにつく
+
+    // 遷移(「次の状態」ブロック) 値がないものはnull
+    public static final class Transition {
+        public final String nextState; // #FF5555がついたままの状態名
+        public final String event;
+        public final String guard;
+        public final String effect;
+
+        public Transition(String nextState, String event, String guard, String effect) {
+            this.nextState = nextState;
+            this.event = event;
+            this.guard = guard;
+            this.effect = effect;
+        }
+    }
+
+    // 一つの状態の定義(ワークスペースの配列の要素一つ分)
+    public static final class Block {
+        public final int index;              // ワークスペースの何番目の要素か
+        public final String state;           // #FF5555がついたままの状態名
+        public final Transition[] transitions;
+        public final String entry;           // 振る舞い 値がないものはnull
+        public final String doActivity;
+        public final String exit;
+        public final boolean myself;         // 「初めは初期状態とする」ブロックがあるか(初期状態のみ)
+        public final boolean invalid;        // 同じ状態が複数回定義されているか
+        public final String clickType;       // クリックされているブロックのタイプ(なければnull)
+        public final String clickNumber;     // クリックされている「次の状態」ブロックの番号(なければnull)
+
+        public Block(int index, String state, Transition[] transitions, String entry, String doActivity, String exit,
+                     boolean myself, boolean invalid, String clickType, String clickNumber) {
+            this.index = index;
+            this.state = state;
+            this.transitions = transitions;
+            this.entry = entry;
+            this.doActivity = doActivity;
+            this.exit = exit;
+            this.myself = myself;
+            this.invalid = invalid;
+            this.clickType = clickType;
+            this.clickNumber = clickNumber;
+        }
+
+        public boolean isInitial() {
+            return INITIAL_STATE.equals(state);
+        }
+    }
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<String> stateNames = new ArrayList<>();     // 定義された状態名(ブロック順)
+    private final List<String> nextStateNames = new ArrayList<>(); // 遷移先の状態名(ブロック順)
+    private String[] states;                                       // 全ての状態名(#FF5555を除き，重複なし)
+    private Map<String, Integer> stateIds;                         // 状態名から状態の番号を引く
+
+    private boolean containInitialState;           // 「初めは初期状態とする」ブロックがあるか
+    private boolean stateAfterInitial;             // 初期状態の次の状態が定義されているか
+    private boolean hasInvalid;                    // 数字・アルファベット・ひらがな・カタカナ・漢字以外を含む状態名があるか
+    private boolean hasMultipleInitialTransitions; // 初期状態が複数の遷移を持つか
+    private boolean hasDuplicateState;             // 状態が複数定義されているか
+    private String current;                        // 現在の状態(#FF5555がついた最初の次の状態)
+    private String clickedNextState;               // クリックされている「次の状態」ブロックの状態名
+
+    // jsonのワークスペースから中間表現を作るメソッド
+    public static StateMachine compile(JsonNode data) {
+        StateMachine machine = new StateMachine();
+        int index = 0;
+        for (JsonNode item : data) {
+            machine.add(toBlock(index++, item));
+        }
+        return machine.finish();
+    }
+
+    private static Block toBlock(int index, JsonNode item) {
+        JsonNode transitionNode = item.get("transition");
+        Transition[] transitions = new Transition[transitionNode == null ? 0 : transitionNode.size()];
+        for (int i = 0; i < transitions.length; i++) {
+            JsonNode child = transitionNode.get(i);
+            transitions[i] = new Transition(text(child, "nextState"), text(child, "event"), text(child, "guard"), text(child, "effect"));
+        }
+        JsonNode behavior = item.get("behavior");
+        JsonNode myself = item.get("myself"); // 初期状態のみ持つことができるプロパティ　それ以外ではnullとなる
+        JsonNode invalid = item.get("invalid");
+        JsonNode click = item.get("click"); // クリックされているかを確認するプロパティ
+        return new Block(index,
+                item.has("state") ? item.get("state").asText() : "",
+                transitions,
+                text(behavior, "entry"), text(behavior, "do"), text(behavior, "exit"),
+                myself != null && myself.has("condition") && myself.get("condition").asBoolean(),
+                invalid != null && invalid.has("condition") && invalid.get("condition").asText().equals("true"),
+                text(click, "type"),
+                click != null && click.has("type") ? text(click, "number") : null);
+    }
+
+    private static String text(JsonNode node, String field) {
+        if (node == null) {
+            return null;
+        }
+        JsonNode value = node.get(field);
+        return value == null ? null : value.asText();
+    }
+
+    // ブロックを一つ追加し，そのブロックについてのチェックを行うメソッド
+    public void add(Block block) {
+        blocks.add(block);
+        String stateName = block.state;
+        if (block.isInitial()) {
+            if (block.myself) {
+                containInitialState = true;
+            }
+            // 開始疑似状態に複数の遷移があるか
+            if (block.transitions.length >= 2) {
+                hasMultipleInitialTransitions = true;
+            }
+        }
+        if (!isValidStateName(stateName)) {
+            hasInvalid = true;
+        }
+        if (block.invalid) {
+            hasDuplicateState = true;
+        }
+        stateNames.add(stateName);
+
+        for (Transition transition : block.transitions) {
+            String nextState = transition.nextState;
+            if (nextState == null) {
+                continue;
+            }
+            if (block.isInitial()) {
+                stateAfterInitial = true; // 初期状態が次の状態を持っていた時
+            }
+            if (!isValidStateName(nextState)) {
+                hasInvalid = true;
+            }
+            nextStateNames.add(nextState);
+            // 現在の状態が「次の状態」であるときはcurrentに追加
+            if (current == null && nextState.contains(CURRENT_MARKER)) {
+                current = nextState;
+            }
+        }
+
+        // クリックされている「次の状態」ブロックを記録(numberを持つのは「次の状態」ブロックのみ)
+        if (block.clickNumber != null) {
+            int number = Integer.parseInt(block.clickNumber);
+            if (number >= 0 && number < block.transitions.length && block.transitions[number].nextState != null) {
+                clickedNextState = block.transitions[number].nextState;
+            }
+        }
+    }
+
+    // 全てのブロックを追加した後に，状態名の一覧を作るメソッド
+    public StateMachine finish() {
+        stateIds = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        for (List<String> source : Arrays.asList(stateNames, nextStateNames)) {
+            for (String name : source) {
+                String cleaned = stripMarker(name).trim(); // #FF5555と前後の空白を削除
+                if (!cleaned.isEmpty() && !stateIds.containsKey(cleaned)) {
+                    stateIds.put(cleaned, names.size());
+                    names.add(cleaned);
+                }
+            }
+        }
+        states = names.toArray(new String[0]);
+        return this;
+    }
+
+    // 状態名が命名規則(数字・アルファベット・ひらがな・カタカナ・漢字のみ)に従っているか
+    // 現在の状態の時#FF5555がつくときがあるがこれは無視
+    public static boolean isValidStateName(String stateName) {
+        int length = stateName.length();
+        int markerAt = stateName.indexOf(CURRENT_MARKER);
+        for (int i = 0; i < length; i++) {
+            if (i == markerAt) {
+                i += CURRENT_MARKER.length() - 1;
+                markerAt = stateName.indexOf(CURRENT_MARKER, i + 1);
+                continue;
+            }
+            if (!isValidNameChar(stateName.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidNameChar(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')
+                || (c >= 'Ａ' && c <= 'Ｚ') || (c >= 'ａ' && c <= 'ｚ') || (c >= '０' && c <= '９')
+                || (c >= 'ぁ' && c <= 'ん') || (c >= 'ァ' && c <= 'ヶ') || (c >= '一' && c <= '龥')
+                || c == '々' || c == 'ー' || c == '〇';
+    }
+
+    // 状態名から#FF5555を取り除くメソッド(ほとんどの状態名にはついていないので，そのときは何もしない)
+    public static String stripMarker(String stateName) {
+        return stateName.indexOf(CURRENT_MARKER) < 0 ? stateName : stateName.replace(CURRENT_MARKER, "");
+    }
+
+    // 図として表示できないときのエラー(表示できるときはnull)
+    public DiagramError error() {
+        if (!containInitialState) {
+            return DiagramError.INITIAL_STATE_DEFINITION;
+        } else if (hasInvalid) {
+            return DiagramError.STATE_NAME_NAMING;
+        } else if (hasMultipleInitialTransitions) {
+            return DiagramError.INVALID_STATE_TRANSITION;
+        } else if (hasDuplicateState) {
+            return DiagramError.DUPLICATE_STATE_DEFINITION;
+        } else if (!stateAfterInitial) {
+            return DiagramError.INITIAL_STATE_TRANSITION;
+        }
+        return null;
+    }
+
+    public List<Block> blocks() {
+        return blocks;
+    }
+
+    // 全ての状態名(#FF5555を除き，定義された状態・次の状態の順で重複なし)
+    public String[] states() {
+        return states;
+    }
+
+    // 状態名(#FF5555を除いたもの)の番号 見つからないときは-1
+    public int stateId(String stateName) {
+        Integer id = stateIds.get(stateName);
+        return id == null ? -1 : id;
+    }
+
+    public String current() {
+        return current;
+    }
+
+    public String clickedNextState() {
+        return clickedNextState;
+    }
+
+    // 遷移の数の合計
+    public int transitionCount() {
+        return nextStateNames.size();
+    }
+}
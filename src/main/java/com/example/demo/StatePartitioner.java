@@ -0,0 +1,111 @@
+package com.example.demo;
+
+// 大きな図を，遷移でつながっていない部分(弱連結成分)ごとに分けるクラス
+// 分けた部分はそれぞれ別にGraphvizでレイアウトし，SvgStitcherで一つのSVGにまとめる
+// 初期状態・終了状態([*])はどの部分にも属さない(終了状態への遷移は部分ごとに[*]として描かれる)
+public final class StatePartitioner {
+    private StatePartitioner() {
+    }
+
+    // 状態の番号(StateMachine.stateId)ごとに，その状態を描く部分の番号を返す
+    // 小さな部分はminPartStates以上になるまで次の部分とまとめる 部分が一つにしかならないときはnull
+    public static int[] partition(StateMachine machine, int minPartStates) {
+        String[] states = machine.states();
+        int[] parent = new int[states.length];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        for (StateMachine.Block block : machine.blocks()) {
+            int source = block.isInitial() ? -1 : drawnId(machine, block.state);
+            if (source < 0) {
+                continue;
+            }
+            for (StateMachine.Transition transition : block.transitions) {
+                int target = transition.nextState == null ? -1 : drawnId(machine, transition.nextState);
+                if (target >= 0) {
+                    union(parent, source, target);
+                }
+            }
+        }
+
+        // 成分ごとの状態の数を数え，番号の小さい状態を含む成分から順に部分へ詰める
+        int[] size = new int[states.length];
+        for (int i = 0; i < states.length; i++) {
+            if (isDrawn(states[i])) {
+                size[find(parent, i)]++;
+            }
+        }
+        int[] componentPart = new int[states.length];
+        int parts = 0;
+        int filled = 0;
+        for (int i = 0; i < states.length; i++) {
+            if (size[i] == 0) {
+                continue; // 成分の代表ではない
+            }
+            if (filled >= minPartStates) {
+                parts++;
+                filled = 0;
+            }
+            componentPart[i] = parts;
+            filled += size[i];
+        }
+        if (parts > 0 && filled < minPartStates) {
+            // 最後の部分が小さいときは一つ前の部分にまとめる
+            for (int i = 0; i < states.length; i++) {
+                if (size[i] > 0 && componentPart[i] == parts) {
+                    componentPart[i] = parts - 1;
+                }
+            }
+            parts--;
+        }
+        if (parts == 0) {
+            return null;
+        }
+
+        int[] result = new int[states.length];
+        for (int i = 0; i < states.length; i++) {
+            result[i] = isDrawn(states[i]) ? componentPart[find(parent, i)] : -1;
+        }
+        return result;
+    }
+
+    // 部分の数
+    public static int count(int[] parts) {
+        int max = -1;
+        for (int part : parts) {
+            max = Math.max(max, part);
+        }
+        return max + 1;
+    }
+
+    // 状態名(#FF5555がついたままのもの)を描く部分の番号 どの部分にも属さないときは最初の部分
+    public static int partOf(StateMachine machine, int[] parts, String stateName) {
+        int id = stateName == null ? -1 : machine.stateId(StateMachine.stripMarker(stateName).trim());
+        return id < 0 || parts[id] < 0 ? 0 : parts[id];
+    }
+
+    private static boolean isDrawn(String stateName) {
+        return !stateName.equals(StateMachine.INITIAL_STATE) && !stateName.equals(StateMachine.FINAL_STATE);
+    }
+
+    private static int drawnId(StateMachine machine, String stateName) {
+        String cleaned = StateMachine.stripMarker(stateName).trim();
+        return isDrawn(cleaned) ? machine.stateId(cleaned) : -1;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) {
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB); // 番号の小さい状態を代表にする
+        }
+    }
+}
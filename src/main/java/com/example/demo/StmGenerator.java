@@ -1,26 +1,60 @@
 package com.example.demo;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import net.sourceforge.plantuml.FileFormat;
 import net.sourceforge.plantuml.FileFormatOption;
 import net.sourceforge.plantuml.core.DiagramDescription;
 import net.sourceforge.plantuml.SourceStringReader;
-import net.sourceforge.plantuml.json.Json;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class StmGenerator {
     public String color = "orange";
+    private final LayoutMode layout; // 図のレイアウトに使うエンジン
+    private final int partitionMinStates; // この数以上の状態がある図は，つながっていない部分ごとに分けて描く(0のときは分けない)
+    private final StringBuilder buffer = new StringBuilder(1024); // plantUML形式の言語を組み立てる(呼び出すたびに使い回す)
+    private boolean structural; // 色付け(クリック・現在の状態)を除いた記述を作っているか
+
+    public StmGenerator() {
+        this(LayoutMode.GRAPHVIZ);
+    }
+
+    public StmGenerator(LayoutMode layout) {
+        this(layout, 0);
+    }
+
+    public StmGenerator(LayoutMode layout, int partitionMinStates) {
+        this.layout = layout;
+        this.partitionMinStates = partitionMinStates;
+    }
 
     // webサイトから受け取ったデータを画像に変換し返すメソッド
+    // 部分ごとに分けた図(@startumlが複数ある記述)は順番に描画して一つのSVGにまとめる
     public byte[] convertPumlToPngBytes(String plantUMLStr) throws IOException {
+        List<String> parts = SvgStitcher.split(plantUMLStr);
+        if (parts.size() > 1) {
+            List<byte[]> svgs = new ArrayList<>(parts.size());
+            for (String part : parts) {
+                svgs.add(convertPumlToPngBytes(part));
+            }
+            return SvgStitcher.stitch(svgs);
+        }
+        try {
+            return renderSvg(plantUMLStr);
+        } catch (IOException | RuntimeException e) {
+            // smetanaでレイアウトできなかった図は，pragmaを外してGraphvizで描画し直す
+            if (plantUMLStr.contains(LayoutMode.SMETANA_PRAGMA)) {
+                return renderSvg(plantUMLStr.replace(LayoutMode.SMETANA_PRAGMA + "\n", ""));
+            }
+            throw e;
+        }
+    }
+
+    private byte[] renderSvg(String plantUMLStr) throws IOException {
         SourceStringReader reader = new SourceStringReader(plantUMLStr);
         try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
 
@@ -33,109 +67,76 @@ public class StmGenerator {
 
     // jsonのデータをplantUML記述に変換する関数
     public String jsonToPlantUML(JsonNode data) {
-        StringBuilder result = new StringBuilder(); // plantUML形式の言語を入れる
-        List<String> stateList = new ArrayList<>();
-        List<String> nextStateList = new ArrayList<>();
-        Set<String> allStateSet = new LinkedHashSet<>(); // 全「状態名」を保持するセット関数
-        StringBuilder current = new StringBuilder();
-        ObjectMapper mapper = new ObjectMapper();
-        ObjectNode clickNode = mapper.createObjectNode(); // 今の状態がクリックされている時にそのブロックの名前とタイプを入れる
-        ObjectNode clickedState = mapper.createObjectNode(); // 次の状態がクリックされている時にそのブロックの次の状態とタイプを入れる
-        result.append("@startuml" + "\n" + "skinparam defaultFontName \"Noto Sans JP\"" + "\n");
+        return toPlantUML(StateMachine.compile(data)); // 一度だけ読み込んで中間表現にし，そこからplantUMLを作る
+    }
 
-        
-        // 「初めは初期状態とする」ブロックが設置されているかを確認し，なければノートのみをreslutに代入する
-        AtomicBoolean containInitialState = new AtomicBoolean(false); // はじめは「初期状態」とするブロックががあるかどうかを確認する
-        AtomicBoolean stateAfterInitial = new AtomicBoolean(false); // 次の状態が定義されているかを確認する
-        AtomicBoolean hasInvalid = new AtomicBoolean(false); // 数字・アルファベット・ひらがな・カタカナ・漢字以外を検出
-        AtomicBoolean hasMultipleInitialTransitions = new AtomicBoolean(false); // 初期状態が複数の遷移を持つかを調べる
-        AtomicBoolean hasDuplicateState = new AtomicBoolean(false); // 状態が複数定義されているかを調べる
-
-        // 受け取ったデータからplantUMLに変換できるかを確認する
-        data.forEach(item -> {
-            String stateName = item.get("state").asText();
-            JsonNode transition = item.get("transition");
-
-            checkInitialTransitionCount(stateName, transition, hasMultipleInitialTransitions); // 初期状態からの遷移が複数あるか調べる
-            checkInitialState(stateName, item, transition, containInitialState,stateAfterInitial); // 初期状態内のmyselfとnextstateのプロパティを確認する
-            validateStateNames(stateName, transition, hasInvalid); // 状態名が命名規則に従っている調べる
-            checkDuplicateState(item, hasDuplicateState); // 状態が複数回定義されているか調べる
-            stateList.add(stateName); // 全ての状態名を取得
-            collectNextStates(transition, nextStateList, current); // 全ての次の状態を取得
-            getNextStateOnClick(clickedState,item); // クリックされている次の状態を記録
-        });
-
-        // 全ての状態をallStateSetに追加
-        allStateSet.addAll(stateList);
-        allStateSet.addAll(nextStateList);
-        allStateSet = allStateSet.stream()
-                .map(s -> s.replace("#FF5555", "")) // #FF5555 を削除
-                .map(String::trim)                  // 前後の空白を削除（任意）
-                .filter(s -> !s.isEmpty())          // 空文字は除外
-                .collect(Collectors.toCollection(LinkedHashSet::new)); // 順序保持
-
-        // 初期状態がないとそもそも図として表示させないようにする
-        if (!containInitialState.get()) {
-            result.append("note as InitialStateDefinitionError\n <b><color:red>\"初めは「初期状態」としてください\"\n end note\n");
-        }
-        // 状態名が命名規則に従っていない場合は図として表示させないようにする
-        else if(hasInvalid.get()) {
-            result.append("note as stateNameNamingError\n <b><color:red>\"「状態名」には数字・日本語・アルファベットのみ使用できます\"\n end note\n");
+    // 状態マシンの中間表現をplantUML記述に変換する関数
+    // クライアントに返す記述なので，大きな図でも部分ごとに分けない(貼り付けるとそのまま一つの図として描画できる)
+    public String toPlantUML(StateMachine machine) {
+        return generate(machine, false, null);
+    }
+
+    // 描画とキャッシュのキーに使うplantUML記述に変換する関数(plantUMLValueはtoPlantUMLの結果)
+    // partitionMinStates以上の状態がある図は，つながっていない部分ごとに別の図(@startuml～@enduml)にした記述を返す
+    // 分けないときはplantUMLValueをそのまま返す
+    public String toRenderPlantUML(StateMachine machine, String plantUMLValue) {
+        int[] parts = partition(machine);
+        return parts == null ? plantUMLValue : generate(machine, false, parts);
+    }
+
+    // クリック・現在の状態による色付けを全て除いたplantUML記述(図の構造だけ)に変換する関数
+    // 色付けだけが違う図はレイアウトが同じなので，この記述で描画したSVGを書き換えて使い回す(描画にだけ使うので部分ごとに分ける)
+    public String toStructuralPlantUML(StateMachine machine) {
+        return generate(machine, true, partition(machine));
+    }
+
+    // 大きな図を部分ごとに分けるときは，状態ごとの部分の番号を返す(分けないときはnull)
+    private int[] partition(StateMachine machine) {
+        if (partitionMinStates <= 0 || machine.error() != null || machine.states().length < partitionMinStates) {
+            return null;
         }
-        // 初期状態からの遷移が複数ある場合は，意味論に反するので警告を出す．
-        else if(hasMultipleInitialTransitions.get()){
-            result.append("note as InvalidStateTransitionError\n <b><color:red>\"「初期状態」から到達できるのは一つの状態だけです\"\n<b><color:red>\"「初期状態」には「イベント」を設定できません\"\n end note\n");
+        int[] parts = StatePartitioner.partition(machine, Math.max(1, partitionMinStates / 4));
+        return StatePartitioner.count(parts) > 1 ? parts : null;
+    }
+
+    // エラーのときのplantUML記述(ノートだけ) ワークスペースの中身によらずエラーの種類だけで決まる
+    public String toErrorPlantUML(DiagramError error) {
+        StringBuilder result = buffer;
+        result.setLength(0);
+        appendHeader(result);
+        error.appendNote(result);
+        return result.append("@enduml").toString();
+    }
+
+    private void appendHeader(StringBuilder result) {
+        result.append("@startuml" + "\n" + "skinparam defaultFontName \"Noto Sans JP\"" + "\n");
+        if (layout == LayoutMode.SMETANA) {
+            result.append(LayoutMode.SMETANA_PRAGMA + "\n"); // dotを使わずにJavaだけでレイアウトする
         }
-        // 状態が複数定義されている場合
-        else if(hasDuplicateState.get()){
-            result.append("note as DuplicateStateDefinitionError\n <b><color:red>\"同じ状態は複数回定義できません\"\n end note\n");
+    }
+
+    private String generate(StateMachine machine, boolean structural, int[] parts) {
+        this.structural = structural;
+        StringBuilder result = buffer; // plantUML形式の言語を入れる
+        result.setLength(0);
+        appendHeader(result);
+
+        // 初期状態がない・状態名が命名規則に従っていない・初期状態からの遷移が複数ある・状態が複数定義されている・
+        // 初期状態からの遷移がない場合は，図として表示させずにノートのみを追加する
+        DiagramError error = machine.error();
+        if (error != null) {
+            error.appendNote(result);
         }
-        // 初期状態があるとき
+        // 初期状態からの遷移があるとき
         else {
-            // 初期状態からの遷移がない時はそもそも図として表示させないようにする
-            if (!stateAfterInitial.get()) {
-                result.append("note as InitialStateTransitionError\n <b><color:red>\"「初期状態」の次の状態を決めてください\"\n end note\n");
-            }
-            // 初期状態からの遷移があるとき
-            else {
-                // 全状態を定義する(plantUMLに追加)
-                createTemporaryState(allStateSet,result);
-
-                // 各状態に関しての遷移・振る舞いを定義
-                data.forEach(item -> {
-                    String state = item.get("state").asText();
-                    JsonNode transition = item.get("transition");
-                    JsonNode behavior = item.get("behavior");
-                    JsonNode myself = item.get("myself"); // 初期状態のみ持つことができるプロパティ　それ以外ではnullとなる
-                    JsonNode currentNode = item.get("current"); // 現在の状態とitemの状態が同じときtrueとなる
-                    JsonNode click = item.get("click"); // クリックされているかを確認するプロパティ
-                    if (click != null && click.has("type")){
-//                        System.out.println("あああああああ" + click.get("type").asText());
-                        clickNode.put("type",click.get("type").asText());
-                        clickNode.put("stateName",state);
-                    }
-
-                    if ("初期状態".equals(state)) {
-                        // 初期状態の処理
-                        result.append(firstStateToPlantUML(state, myself, transition.get(0),click));
-                    }
-                    else if (state != null && !state.isEmpty()) {
-                        // transitionの要素があればplantUmlを追加する
-                        if (transition != null && !transition.isEmpty()) {
-                            transition.forEach(child -> {
-//                                JsonNode nextState = child.get("nextState");
-                                if (child.has("nextState")) {
-                                    result.append(transitionToPlantUML(state, child, click));
-                                }
-                            });
-                        }
-                        // behaviorの要素を持っているとき
-                        if(!behavior.isEmpty()){
-                            result.append(behaviorToPlantUML(state, behavior,click)); // behaviorの中身をplantUmlに追加する
-                        }
-                    }
-                });
-                updateStateColor(clickNode, current, result, clickedState); // 状態の色付けを行う
+            // partsがあるときはつながっていない部分ごとに別の図(@startuml～@enduml)にし，別々にレイアウトする
+            int partCount = parts == null ? 1 : StatePartitioner.count(parts);
+            for (int part = 0; part < partCount; part++) {
+                if (part > 0) {
+                    result.append("@enduml\n");
+                    appendHeader(result);
+                }
+                appendDiagram(result, machine, parts, part);
             }
         }
         result.append("@enduml");
@@ -143,153 +144,85 @@ public class StmGenerator {
         return result.toString();
     }
 
-
-    // 初期状態かどうかを確認するメソッド
-    private void checkInitialState(String stateName, JsonNode item, Iterable<JsonNode> transition, AtomicBoolean containInitialState, AtomicBoolean stateAfterInitial) {
-        if ("初期状態".equals(stateName)) {
-            JsonNode myself = item.get("myself");
-            boolean condition = myself != null && myself.has("condition") && myself.get("condition").asBoolean();
-            String nextState = "未定義";
-
-            // 初期状態のmyself=trueの時
-            if (condition) {
-                containInitialState.set(true);
+    // 状態の定義・遷移・振る舞い・色付けを追加するメソッド
+    // partsがnullでないときは，その部分(part)に属する状態についてのものだけを追加する
+    private void appendDiagram(StringBuilder result, StateMachine machine, int[] parts, int part) {
+        // 全状態を定義する(plantUMLに追加)
+        createTemporaryState(machine, parts, part, result);
+
+        // 各状態に関しての遷移・振る舞いを定義
+        String clickType = null; // クリックされているブロックのタイプ
+        String clickStateName = null; // クリックされているブロックを持つ状態
+        for (StateMachine.Block block : machine.blocks()) {
+            String state = block.state;
+            if (block.clickType != null) {
+                clickType = block.clickType;
+                clickStateName = state;
             }
-
-            // 初期状態が次の状態を持っていた時
-            for (JsonNode t : transition) {
-                if (t.has("nextState")) {
-                    // nextState = t.get("nextState").asText();
-                    stateAfterInitial.set(true);
-                }
+            if (parts != null && blockPart(machine, parts, block) != part) {
+                continue;
             }
-        }
-    }
 
-    // 次の状態が現在の状態と一致するか，またリストに追加するメソッド
-    private void collectNextStates(JsonNode transition, List<String> nextStateList, StringBuilder current) {
-        if (transition != null) {
-            transition.forEach(tra -> {
-                JsonNode nextStateNode = tra.get("nextState");
-                if (nextStateNode != null) {
-                    String nextState = nextStateNode.asText();
-                    nextStateList.add(nextState); // 次の状態のリストに追加
-
-                    // 現在の状態が「次の状態」であるときはcurrentに追加
-                    if (nextState.contains("#FF5555") && current.length() == 0) {
-                        current.append(nextState);
+            if (block.isInitial()) {
+                // 初期状態の処理
+                firstStateToPlantUML(result, block.transitions.length > 0 ? block.transitions[0] : null, block.clickType);
+            }
+            else if (!state.isEmpty()) {
+                // transitionの要素があればplantUmlを追加する
+                for (StateMachine.Transition transition : block.transitions) {
+                    if (transition.nextState != null) {
+                        transitionToPlantUML(result, state, transition, block.clickType);
                     }
                 }
-            });
-        }
-    }
-
-
-    // 状態が複数回定義されているかを調べるメソッド
-    private void checkDuplicateState(JsonNode item, AtomicBoolean hasDuplicateState){
-        JsonNode invalid = item.get("invalid");
-        if (invalid != null) {
-            JsonNode condition = invalid.get("condition");
-            if (condition != null && condition.asText().equals("true")) {
-                hasDuplicateState.set(true);
+                // behaviorの中身をplantUmlに追加する
+                behaviorToPlantUML(result, block);
             }
         }
-    }
-
-
-    // 開始疑似状態に複数の遷移があるかを調べるメソッド
-    public void checkInitialTransitionCount(String stateName, JsonNode transition, AtomicBoolean hasMultipleInitialTransitions) {
-        if (stateName.equals("初期状態")){
-            if (transition.size() >= 2){
-                hasMultipleInitialTransitions.set(true);
-            }
+        if (!structural) {
+            updateStateColor(result, machine, clickType, clickStateName, parts, part); // 状態の色付けを行う
         }
     }
 
-
-    // 状態名が命名規則に従っているか確認するメソッド
-    private void validateStateNames(String stateName, JsonNode transition, AtomicBoolean hasInvalid) {
-
-        // 共通の命名規則チェック
-        final String INVALID_PATTERN = ".*[^0-9A-Za-zＡ-Ｚａ-ｚ０-９ぁ-んァ-ヶ一-龥々ー〇].*";
-
-
-        String cleanedStateName = stateName.replace("#FF5555", ""); // 現在の状態の時#FF5555がつくときがあるがこれは無視
-        // stateName のチェック
-        if (cleanedStateName != null && cleanedStateName.matches(INVALID_PATTERN)) {
-            hasInvalid.set(true);
+    // ブロックの遷移・振る舞いを描く部分(初期状態は次の状態の部分)
+    private static int blockPart(StateMachine machine, int[] parts, StateMachine.Block block) {
+        if (block.isInitial()) {
+            return StatePartitioner.partOf(machine, parts, block.transitions.length > 0 ? block.transitions[0].nextState : null);
         }
-
-        // nextState のチェック
-        transition.forEach(child -> {
-            if (child.has("nextState")) {
-                String nextState = child.get("nextState").asText();
-                String cleanednextState = nextState.replace("#FF5555", ""); // 現在の状態の時#FF5555がつくときがあるがこれは無視
-                if (cleanednextState.matches(INVALID_PATTERN)) {
-                    hasInvalid.set(true);
-                }
-            }
-        });
+        return StatePartitioner.partOf(machine, parts, block.state);
     }
 
 
     // 初期状態の時に呼び出されるメソッド
-    public String firstStateToPlantUML(String state, JsonNode myself, JsonNode transition, JsonNode click) {
-        String result = ""; // 返り値を代入する変数
-        // そもそも初期状態のtransitionに何も入っていない場合(JsonNode next = transition.get("nextState")がエラーとなる可能性があるため)
-        if(transition != null) {
-            JsonNode next = transition.get("nextState");
-            // 次の状態が存在しない限り初期状態を定義できない(そうなるとステートマシン図とも認識されない)
-            if (next != null) {
-                if(next.asText().equals("終了状態")){
-                    result += "[*] " + transitionColor(click) + " [*]" ; // 次の状態が存在する場合
-                }
-                else {
-                    result += "[*] " + transitionColor(click) + " " + next.asText(); // 次の状態が存在する場合
-                }
-            }
-//            else {
-//                result += "state 未定義 #text:red\n" + "[*] " + transitionColor(click) + " 未定義"; // 次の状態を未定義として無理やり定義
-//            }
-
-            // 初期状態にevent,guard,effectがあれば追加
-            // ただしeventとguardは初期状態にあってはならないので赤色で追加
-            String effectPart = "";
-            if (transition.get("effect") != null) {
-                effectPart = " / " + transition.get("effect").asText();
-            }
-            // イベント,ガード,エフェクトのいずれかがある場合
-            if (!effectPart.isEmpty()) {
-                result += " :" + effectPart;
-            }
-            result += "\n"; // event,guard,effectがある場合も考えられるため，ここで改行する
+    private void firstStateToPlantUML(StringBuilder result, StateMachine.Transition transition, String clickType) {
+        // そもそも初期状態のtransitionに何も入っていない場合
+        if (transition == null) {
+            return;
+        }
+        String next = transition.nextState;
+        // 次の状態が存在しない限り初期状態を定義できない(そうなるとステートマシン図とも認識されない)
+        if (next != null) {
+            result.append("[*] ").append(transitionColor(clickType)).append(' ')
+                    .append(StateMachine.FINAL_STATE.equals(next) ? "[*]" : name(next)); // 次の状態が存在する場合
+        }
 
-//            // 状態名に未定義が含まれている場合は赤色にする
-//            if(next.asText().contains("未定義")){
-//                result += undifinedStateToRed(next.asText()) + "\n";
-//            }
+        // 初期状態にevent,guard,effectがあれば追加
+        // ただしeventとguardは初期状態にあってはならないので赤色で追加
+        if (transition.effect != null) {
+            result.append(" : / ").append(transition.effect);
+        }
+        result.append('\n'); // event,guard,effectがある場合も考えられるため，ここで改行する
 
-            // 初期状態はイベントとガードを持てないため，持っていたらエラーを出す
-            if (transition.get("event") != null || transition.get("guard") != null) {
-                result += "note on link #FFF8DC\n" ;
-                if (transition.get("event") != null) {
-                    result += " 'InitialStateEventError\n <b><color:red> 「初期状態」には「イベント」を設定できません\n";
-                }
-                if (transition.get("guard") != null) {
-                    result += " 'InitialStateConditionError\n <b><color:red> 「初期状態」には「条件」を設定できません\n";
-                }
-                result += "end note\n";
+        // 初期状態はイベントとガードを持てないため，持っていたらエラーを出す
+        if (transition.event != null || transition.guard != null) {
+            result.append("note on link #FFF8DC\n");
+            if (transition.event != null) {
+                result.append(" 'InitialStateEventError\n <b><color:red> 「初期状態」には「イベント」を設定できません\n");
+            }
+            if (transition.guard != null) {
+                result.append(" 'InitialStateConditionError\n <b><color:red> 「初期状態」には「条件」を設定できません\n");
             }
+            result.append("end note\n");
         }
-//        else {
-//            result += "state 未定義 #text:red\n" + "[*] --> 未定義\n"; // 次の状態を未定義として無理やり定義
-//        }
-
-//        // 「初めは初期状態とする」ブロックが配置されていない場合はノートを付ける
-//        if (!(myself.get("condition")).asBoolean()) {
-//            result += "note on link #FFF8DC\n" + " <b><color:red>「初めは初期状態とする」ブロックを置いてください</color></b>\n" + "end note\n";
-//        }
-        return result;
     }
 
 //    // 次の状態もresultに追加する
@@ -302,110 +235,76 @@ public class StmGenerator {
 //    }
 
 
-    // 次の状態がクリックされているときに用いる関数
-    public ObjectNode getNextStateOnClick (ObjectNode result, JsonNode item){
-        JsonNode click = item.get("click");
-        // クリックされているブロックがあるか調べる(numberを持つのは「次の状態」ブロックのみ)
-        if(click != null && click.has("type") && click.has("number")){
-            String clickValue = click.get("type").asText();
-            int index = Integer.parseInt(click.get("number").asText());
-            JsonNode transition = item.get("transition");
-            JsonNode transitionIndex = transition.get(index);
-            if(transitionIndex != null) {
-                JsonNode nextState = transitionIndex.get("nextState");
-                if (nextState != null) {
-                    result.put("nextState", nextState.asText()); // 次の状態の名前を追加
-                    if ("changeStateType".equals(clickValue)) {
-                        result.put("type", "changeStateType");  // 「～という状態に変わる」ブロック
-                    } else if ("stateDefinitionType".equals(clickValue)) {
-                        result.put("type", "stateDefinitionType");  // 「状態名」ブロック
-                    }
-                }
-            }
-        }
-        return  result;
-    }
-
-
      // 遷移についてplantUMLに変換するメソッド
-     public String transitionToPlantUML(String state,JsonNode transition,JsonNode click){
-         String result = "";
-         String eventPart = "";
-         String guardPart = "";
-         String effectPart = "";
-         String nextState = transition.get("nextState").asText();
-         if (transition.get("event") != null && !"completeEvent".equals(transition.get("event").asText())) {
-             eventPart = " " + transition.get("event").asText();
-         }
-         if (transition.get("guard") != null) {
-             guardPart = " [" + transition.get("guard").asText() + "]";
-         }
-         if (transition.get("effect") != null) {
-             effectPart = " / " + transition.get("effect").asText();
-         }
-         if (nextState.equals("終了状態")){
+     private void transitionToPlantUML(StringBuilder result, String state, StateMachine.Transition transition, String clickType) {
+         String nextState = transition.nextState;
+         if (nextState.equals(StateMachine.FINAL_STATE)) {
              nextState = "[*]";
          }
+         result.append(name(state)).append(transitionColor(clickType)).append(name(nextState));
+         boolean hasEvent = transition.event != null && !"completeEvent".equals(transition.event);
          // イベント,ガード,エフェクトのいずれかがある場合
-         if (!eventPart.isEmpty() || !guardPart.isEmpty() || !effectPart.isEmpty()) {
-             result = state + transitionColor(click) + nextState + " :" + eventPart + guardPart + effectPart + "\n";
-         }
-         // イベント,ガード,エフェクトのいずれもない場合
-         else {
-             result = state + transitionColor(click) + nextState + "\n";
+         if (hasEvent || transition.guard != null || transition.effect != null) {
+             result.append(" :");
+             if (hasEvent) {
+                 result.append(' ').append(transition.event);
+             }
+             if (transition.guard != null) {
+                 result.append(" [").append(transition.guard).append(']');
+             }
+             if (transition.effect != null) {
+                 result.append(" / ").append(transition.effect);
+             }
          }
-//         if (state.contains("未定義")){
-//             result += undifinedStateToRed(state);
-//         }
-         return result;
+         result.append('\n');
      }
 
 
      // クリック時，遷移に色づける関数
-     public String transitionColor(JsonNode click){
-         if (click == null || !click.has("type")) {
+     private String transitionColor(String clickType) {
+         if (structural) {
              return "-->";
          }
-         String clickVaule = click.get("type").asText();
-         if (clickVaule.equals("switchIfType") || clickVaule.equals("switchElseIfType")){
-            return "-[#" + color +"]->";
+         if ("switchIfType".equals(clickType) || "switchElseIfType".equals(clickType)) {
+            return "-[#" + color + "]->";
          }
          return "-->";
      }
 
 
+    // 構造だけの記述を作っているときは，状態名から現在の状態の印(#FF5555)を外す
+    private String name(String stateName) {
+        return structural ? StateMachine.stripMarker(stateName) : stateName;
+    }
+
+
     // 振る舞いについてplantUMLに変換するメソッド
-     public String behaviorToPlantUML(String state,JsonNode behavior,JsonNode click) {
-         String result = "";
+     private void behaviorToPlantUML(StringBuilder result, StateMachine.Block block) {
          // エントリがある場合
-         if (behavior.get("entry") != null ) {
-             result += state + " : " + behaviorRuleColor("entry",click) + " / " + behavior.get("entry").asText() + "\n";
+         if (block.entry != null) {
+             result.append(name(block.state)).append(" : ").append(behaviorRuleColor("entry", block.clickType)).append(" / ").append(block.entry).append('\n');
          }
          // ドウがある場合
-         if (behavior.get("do") != null ) {
-             result += state + " : " + behaviorRuleColor("do",click) + " / " + behavior.get("do").asText() + "\n";
+         if (block.doActivity != null) {
+             result.append(name(block.state)).append(" : ").append(behaviorRuleColor("do", block.clickType)).append(" / ").append(block.doActivity).append('\n');
          }
          // イグジットがある場合
-         if (behavior.get("exit") != null ) {
-             result += state + " : " + behaviorRuleColor("exit",click) + " / " + behavior.get("exit").asText() + "\n";
+         if (block.exit != null) {
+             result.append(name(block.state)).append(" : ").append(behaviorRuleColor("exit", block.clickType)).append(" / ").append(block.exit).append('\n');
          }
-         return result;
      }
 
 
     // クリック時，behaviorRuleに色付けを行う関数
-    public String behaviorRuleColor(String behaviorRule, JsonNode click) {
-        // clickがnull または typeが無ければそのまま返す
-        if (click == null || !click.has("type")) {
+    private String behaviorRuleColor(String behaviorRule, String clickType) {
+        // クリックされていなければそのまま返す
+        if (clickType == null) {
             return behaviorRule;
         }
 
-        // typeを取り出す
-        String type = click.get("type").asText();
-
         // typeをルール名にマッピング
         String mapped = null;
-        switch (type) {
+        switch (clickType) {
             case "entryType":        mapped = "entry"; break;
             case "doContinuousType":
             case "doOnetimeType":    mapped = "do";    break;
@@ -483,60 +382,134 @@ public class StmGenerator {
 //     }
 
      // 初めに状態名(次の状態も含む)を全て追加するメソッド
-     public StringBuilder createTemporaryState(Set<String> allStateSet, StringBuilder result){
+     private void createTemporaryState(StateMachine machine, int[] parts, int part, StringBuilder result){
+        String[] states = machine.states();
         // 初期状態か終了状態でなければ状態名を追加する
-        for (String stateName : allStateSet) {
-             if (!stateName.equals("初期状態") && !stateName.equals("終了状態")) {
+        for (int i = 0; i < states.length; i++) {
+             String stateName = states[i];
+             if (parts != null && parts[i] != part) {
+                 continue;
+             }
+             if (!stateName.equals(StateMachine.INITIAL_STATE) && !stateName.equals(StateMachine.FINAL_STATE)) {
+                 result.append("state ").append(stateName);
                  // 状態名に「未定義」を含む場合は赤色で定義する
-                 if (stateName.contains("未定義")) {
-                     result.append("state " + stateName + "#text:red\n");
-                 } else {
-                     result.append("state " + stateName + "\n");
+                 if (stateName.contains(StateMachine.UNDEFINED_STATE)) {
+                     result.append("#text:red");
                  }
+                 result.append('\n');
              }
          }
-         return result;
      }
 
-    public StringBuilder updateStateColor(ObjectNode click, StringBuilder current, StringBuilder result, ObjectNode clickedState) {
-        String clickType = click.size() > 0 ? click.get("type").asText() : "";
+    // toPlantUMLが付ける色付け(toStructuralPlantUMLで除いたもの)を，SVGを書き換えるための情報にまとめるメソッド
+    // 振る舞い(entry/do/exit)の色付けは文字の並びが変わるので構造に含めたままにする
+    public DiagramHighlights highlights(StateMachine machine) {
+        DiagramHighlights highlights = new DiagramHighlights(color);
+        if (machine.error() != null) {
+            return highlights; // ノートだけの図には色付けがない
+        }
+        String clickType = null;
+        String clickStateName = null;
+        for (StateMachine.Block block : machine.blocks()) {
+            if (block.clickType != null) {
+                clickType = block.clickType;
+                clickStateName = block.state;
+            }
+            boolean colored = "switchIfType".equals(block.clickType) || "switchElseIfType".equals(block.clickType);
+            if (block.isInitial()) {
+                StateMachine.Transition transition = block.transitions.length > 0 ? block.transitions[0] : null;
+                if (transition != null && transition.nextState != null) {
+                    if (colored) {
+                        highlights.edgesFrom(DiagramHighlights.START_ENTITY, 1);
+                    }
+                    if (!StateMachine.FINAL_STATE.equals(transition.nextState)) {
+                        highlights.marked(transition.nextState);
+                    }
+                }
+            }
+            else if (!block.state.isEmpty()) {
+                int edges = 0;
+                for (StateMachine.Transition transition : block.transitions) {
+                    if (transition.nextState != null) {
+                        edges++;
+                        highlights.marked(transition.nextState);
+                    }
+                }
+                if (colored && edges > 0) {
+                    highlights.edgesFrom(StateMachine.stripMarker(block.state), edges);
+                }
+                if (edges > 0 || block.entry != null || block.doActivity != null || block.exit != null) {
+                    highlights.marked(block.state);
+                }
+            }
+        }
+
+        // updateStateColorと同じ規則で，クリックされている状態を決める
+        String stateName = machine.clickedNextState() != null ? machine.clickedNextState() : clickStateName;
+        if (stateName == null || StateMachine.FINAL_STATE.equals(stateName)) {
+            return highlights;
+        }
+        boolean isCurrent = machine.current() != null && machine.current().equals(stateName);
+        if (!isCurrent && stateName.contains(StateMachine.CURRENT_MARKER)) {
+            highlights.notRewritable(); // updateStateColorが「state 状態名#FF5555 #line:...」(plantUMLの構文エラー)を書き出す
+        }
+        switch (clickType == null ? "" : clickType) {
+            case "changeStateType":
+                highlights.line(stateName);
+                break;
+            case "stateDefinitionType":
+                highlights.text(stateName);
+                break;
+            case "stateActionType":
+                highlights.line(stateName);
+                if (isCurrent) {
+                    highlights.fill(stateName);
+                }
+                break;
+        }
+        return highlights;
+    }
+
+    // クリックされている状態に色付けを行うメソッド
+    private void updateStateColor(StringBuilder result, StateMachine machine, String clickType, String clickStateName,
+                                  int[] parts, int part) {
+        if (clickType == null) {
+            clickType = "";
+        }
+        String current = machine.current();
         String stateName = null;
         boolean isCurrent = false;
 
         // 次の状態か今の状態かを判定
-        if (clickedState.size() > 0) {
-            stateName = clickedState.get("nextState").asText();
-            isCurrent = current.length() > 0 && current.toString().equals(stateName);
-        } else if (click.has("stateName")) {
-            stateName = click.get("stateName").asText();
-            isCurrent = current.length() > 0 && stateName.equals(current.toString());
+        if (machine.clickedNextState() != null) {
+            stateName = machine.clickedNextState();
+        } else if (clickStateName != null) {
+            stateName = clickStateName;
         }
+        if (stateName == null || StateMachine.FINAL_STATE.equals(stateName)) {
+            return; // 何も追加せずに返す
+        }
+        if (parts != null && StatePartitioner.partOf(machine, parts, stateName) != part) {
+            return; // 他の部分の状態
+        }
+        isCurrent = current != null && current.equals(stateName);
 
-        if (stateName != null) {
-            if ("終了状態".equals(stateName)) {
-                return result; // 何も追加せずに返す
-            }
-
-            boolean isUndefined = stateName.contains("未定義"); // 「未定義」の状態が含まれるかを確認する
+        boolean isUndefined = stateName.contains(StateMachine.UNDEFINED_STATE); // 「未定義」の状態が含まれるかを確認する
 
-            switch (clickType) {
-                case "changeStateType":
-                    result.append("state " + stateName + (isCurrent ? ";line:" : " #line:") + color
-                            + ";line.bold" + (isUndefined ? ";text:red" : "") + "\n");
-                    break;
+        switch (clickType) {
+            case "changeStateType":
+                result.append("state ").append(stateName).append(isCurrent ? ";line:" : " #line:").append(color)
+                        .append(";line.bold").append(isUndefined ? ";text:red" : "").append('\n');
+                break;
 
-                case "stateDefinitionType":
-                    result.append("state " + stateName + (isCurrent ? ";text:" : " #text:") + color + "\n");
-                    break;
+            case "stateDefinitionType":
+                result.append("state ").append(stateName).append(isCurrent ? ";text:" : " #text:").append(color).append('\n');
+                break;
 
-                case "stateActionType":
-                    result.append("state " + stateName + (isCurrent ? " #FF5555;line:" : " #line:") + color
-                            + ";line.bold" + (isUndefined ? ";text:red" : "") + "\n");
-                    break;
-            }
+            case "stateActionType":
+                result.append("state ").append(stateName).append(isCurrent ? " #FF5555;line:" : " #line:").append(color)
+                        .append(";line.bold").append(isUndefined ? ";text:red" : "").append('\n');
+                break;
         }
-
-        return result;
     }
 }
-
@@ -0,0 +1,144 @@
+package com.example.demo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 前に送ったSVG(基の版)から新しいSVGを組み立てるための差分(パッチ)を作るクラス
+// SVGは「<」の直前で区切った要素(タグとその後ろの文字列)の列として扱う
+// パッチはJSONの配列で，要素は次の二種類:
+//   [start, count]  基の版の要素start番目からcount個をそのまま使う
+//   "文字列"         新しい文字列をそのまま使う
+// クライアントは基の版を同じように区切り，パッチを先頭から順に連結すれば新しいSVGになる(apply参照)
+public final class SvgDelta {
+    private static final int MAX_CANDIDATES = 8; // 同じ要素が基の版に何度も現れるとき，続きを比べる位置の数
+
+    private SvgDelta() {
+    }
+
+    // 「<」の直前で区切る(最初の要素は先頭から最初の「<」の手前まで)
+    public static String[] tokenize(String svg) {
+        List<String> tokens = new ArrayList<>();
+        int start = 0;
+        int next = svg.indexOf('<', 1);
+        while (next >= 0) {
+            tokens.add(svg.substring(start, next));
+            start = next;
+            next = svg.indexOf('<', next + 1);
+        }
+        if (start < svg.length()) {
+            tokens.add(svg.substring(start));
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    // baseからtargetを作るパッチ
+    // 前の範囲の続きが一致する限りその範囲を伸ばし，一致しなくなったら同じ要素のある位置から一番長く続く所を探す
+    public static List<Object> diff(String[] base, String[] target) {
+        Map<String, List<Integer>> positions = new HashMap<>();
+        for (int i = 0; i < base.length; i++) {
+            List<Integer> list = positions.get(base[i]);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                positions.put(base[i], list);
+            }
+            if (list.size() < MAX_CANDIDATES) {
+                list.add(i);
+            }
+        }
+
+        List<Object> patch = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int copyStart = -1; // 今伸ばしている範囲(なければ-1)
+        int copyEnd = -1;
+        int i = 0;
+        while (i < target.length) {
+            if (copyStart >= 0 && copyEnd < base.length && base[copyEnd].equals(target[i])) {
+                copyEnd++;
+                i++;
+                continue;
+            }
+            int best = -1;
+            int bestLength = 0;
+            List<Integer> candidates = positions.get(target[i]);
+            if (candidates != null) {
+                for (int candidate : candidates) {
+                    int length = 1;
+                    while (candidate + length < base.length && i + length < target.length
+                            && base[candidate + length].equals(target[i + length])) {
+                        length++;
+                    }
+                    if (length > bestLength) {
+                        best = candidate;
+                        bestLength = length;
+                    }
+                }
+            }
+            // 一つだけ一致する短い要素(</g>など)は，範囲を書くより文字列のほうが短い
+            if (best >= 0 && (bestLength >= 2 || target[i].length() > 12)) {
+                closeCopy(patch, copyStart, copyEnd);
+                flushLiteral(patch, literal);
+                copyStart = best;
+                copyEnd = best;
+                continue; // 次の繰り返しで範囲を伸ばす
+            }
+            closeCopy(patch, copyStart, copyEnd);
+            copyStart = -1;
+            literal.append(target[i++]);
+        }
+        closeCopy(patch, copyStart, copyEnd);
+        flushLiteral(patch, literal);
+        return patch;
+    }
+
+    // パッチをbaseに当てて新しいSVGを作る(クライアントが行う処理と同じ)
+    public static String apply(String[] base, List<?> patch) {
+        StringBuilder result = new StringBuilder();
+        for (Object op : patch) {
+            if (op instanceof String) {
+                result.append((String) op);
+            } else {
+                int[] range = (int[]) op;
+                for (int i = range[0]; i < range[0] + range[1]; i++) {
+                    result.append(base[i]);
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    // パッチをJSONにしたときのおおよその長さ(文字列の中の「"」と「\」のエスケープを含む)
+    public static int jsonLength(List<Object> patch) {
+        int length = 2;
+        for (Object op : patch) {
+            if (op instanceof String) {
+                String text = (String) op;
+                length += text.length() + 3;
+                for (int i = 0; i < text.length(); i++) {
+                    char c = text.charAt(i);
+                    if (c == '"' || c == '\\' || c < 0x20) {
+                        length++;
+                    }
+                }
+            } else {
+                int[] range = (int[]) op;
+                length += Integer.toString(range[0]).length() + Integer.toString(range[1]).length() + 4;
+            }
+        }
+        return length;
+    }
+
+    private static void closeCopy(List<Object> patch, int start, int end) {
+        if (start >= 0 && end > start) {
+            patch.add(new int[]{start, end - start});
+        }
+    }
+
+    private static void flushLiteral(List<Object> patch, StringBuilder literal) {
+        if (literal.length() > 0) {
+            patch.add(literal.toString());
+            literal.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.demo;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// plantUMLが出力したSVGを小さくするクラス(convertPumlToPngBytesの後に行う)
+// ・コメント(<!--SRC=...-->など)とタグの間の空白を削除する
+// ・座標などの小数を指定した桁数に丸める
+// ・図形・文字の要素で2回以上使われているstyle・fill・フォントの指定を<style>のクラスにまとめる
+// 要素のid・data-*属性・<g>の構造はそのまま残すので，HighlightRewriterで書き換えられる
+@Component
+public class SvgMinifier {
+    // スタイルをクラスにまとめる要素(<g>などは子要素に影響するのでまとめない)
+    private static final Pattern LEAF = Pattern.compile("<(rect|ellipse|circle|polygon|polyline|path|line|text)\\b");
+    private static final Pattern ATTRIBUTE = Pattern.compile("\\s([\\w:.-]+)=\"([^\"]*)\"");
+    private static final Pattern DECIMAL = Pattern.compile("-?\\d+\\.\\d+");
+    // 小数を丸める属性
+    private static final String[] NUMERIC = {"x", "y", "x1", "y1", "x2", "y2", "cx", "cy", "r", "rx", "ry",
+            "width", "height", "textLength", "points", "d"};
+    // クラスにまとめる見た目の属性
+    private static final String[] PRESENTATION = {"fill", "stroke", "stroke-width", "font-family", "font-size",
+            "font-weight", "font-style", "text-decoration"};
+
+    private final boolean enabled;
+    private final int precision; // 小数点以下の桁数
+
+    public SvgMinifier(@Value("${render.svg.minify:true}") boolean enabled,
+                       @Value("${render.svg.precision:1}") int precision) {
+        this.enabled = enabled;
+        this.precision = precision;
+    }
+
+    // 小さくしたSVGを返す(SVGとして解釈できない形のときは受け取ったものをそのまま返す)
+    public byte[] minify(byte[] svg) {
+        if (!enabled) {
+            return svg;
+        }
+        try {
+            String minified = minify(new String(svg, StandardCharsets.UTF_8));
+            return minified == null ? svg : minified.getBytes(StandardCharsets.UTF_8);
+        } catch (RuntimeException e) {
+            return svg;
+        }
+    }
+
+    private String minify(String svg) {
+        List<String> tokens = tokenize(svg);
+        if (tokens == null) {
+            return null;
+        }
+
+        // 一回目: 要素ごとの見た目の指定を集め，使われた回数を数える
+        Map<String, Integer> counts = new HashMap<>();
+        List<String> declarations = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            String declaration = LEAF.matcher(token).lookingAt() ? declarations(token) : null;
+            declarations.add(declaration);
+            if (declaration != null) {
+                counts.merge(declaration, 1, Integer::sum);
+            }
+        }
+        Map<String, String> classes = new LinkedHashMap<>(); // 見た目の指定からクラス名
+        for (String declaration : declarations) {
+            if (declaration != null && counts.get(declaration) >= 2 && !classes.containsKey(declaration)) {
+                classes.put(declaration, "c" + Integer.toString(classes.size(), 36));
+            }
+        }
+
+        // 二回目: 要素を書き直して組み立てる
+        StringBuilder result = new StringBuilder(svg.length());
+        boolean styleInserted = classes.isEmpty();
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if (!token.startsWith("<")) {
+                if (!token.trim().isEmpty()) {
+                    result.append(token); // 文字の中身はそのまま(空白だけのものは削除)
+                }
+                continue;
+            }
+            if (token.startsWith("<!--") || token.startsWith("<?plantuml")) {
+                continue;
+            }
+            String declaration = declarations.get(i);
+            if (declaration != null) {
+                result.append(rewrite(token, classes.get(declaration)));
+            } else {
+                result.append(token);
+            }
+            if (!styleInserted && token.startsWith("<svg")) {
+                result.append("<style>");
+                for (Map.Entry<String, String> entry : classes.entrySet()) {
+                    result.append('.').append(entry.getValue()).append('{').append(entry.getKey()).append('}');
+                }
+                result.append("</style>");
+                styleInserted = true;
+            }
+        }
+        return styleInserted ? result.toString() : null;
+    }
+
+    // タグ(<...>，引用符の中の>は含めない)・コメント・CDATAと，その間の文字に分ける
+    private static List<String> tokenize(String svg) {
+        List<String> tokens = new ArrayList<>();
+        int position = 0;
+        int length = svg.length();
+        while (position < length) {
+            int open = svg.indexOf('<', position);
+            if (open < 0) {
+                tokens.add(svg.substring(position));
+                break;
+            }
+            if (open > position) {
+                tokens.add(svg.substring(position, open));
+            }
+            int close;
+            if (svg.startsWith("<!--", open)) {
+                close = svg.indexOf("-->", open);
+                close = close < 0 ? -1 : close + 2;
+            } else if (svg.startsWith("<![CDATA[", open)) {
+                close = svg.indexOf("]]>", open);
+                close = close < 0 ? -1 : close + 2;
+            } else {
+                close = -1;
+                char quote = 0;
+                for (int i = open + 1; i < length; i++) {
+                    char c = svg.charAt(i);
+                    if (quote != 0) {
+                        if (c == quote) {
+                            quote = 0;
+                        }
+                    } else if (c == '"' || c == '\'') {
+                        quote = c;
+                    } else if (c == '>') {
+                        close = i;
+                        break;
+                    }
+                }
+            }
+            if (close < 0) {
+                return null; // 閉じていないタグ
+            }
+            tokens.add(svg.substring(open, close + 1));
+            position = close + 1;
+        }
+        return tokens;
+    }
+
+    // 要素の見た目の指定(style属性と見た目の属性)をCSSの宣言にする 何もなければnull
+    private String declarations(String tag) {
+        StringBuilder css = new StringBuilder();
+        Matcher matcher = ATTRIBUTE.matcher(tag);
+        while (matcher.find()) {
+            String name = matcher.group(1);
+            String value = matcher.group(2);
+            if (name.equals("style")) {
+                for (String declaration : value.split(";")) {
+                    int colon = declaration.indexOf(':');
+                    if (colon > 0) {
+                        appendDeclaration(css, declaration.substring(0, colon).trim(), declaration.substring(colon + 1).trim());
+                    }
+                }
+            } else if (isPresentation(name)) {
+                appendDeclaration(css, name, cssValue(name, value));
+            }
+        }
+        return css.length() == 0 ? null : css.toString();
+    }
+
+    private void appendDeclaration(StringBuilder css, String property, String value) {
+        if (css.length() > 0) {
+            css.append(';');
+        }
+        css.append(property).append(':').append(round(value));
+    }
+
+    // 属性の値をCSSの値にする(font-sizeには単位をつけ，空白を含むフォント名は引用符で囲む)
+    private static String cssValue(String name, String value) {
+        if (name.equals("font-size") && value.matches("[\\d.]+")) {
+            return value + "px";
+        }
+        if (name.equals("font-family") && value.indexOf(' ') >= 0 && value.indexOf(',') < 0
+                && value.indexOf('\'') < 0 && value.indexOf('"') < 0) {
+            return "'" + value + "'";
+        }
+        return value;
+    }
+
+    // 見た目の属性とstyleをclassに置き換え，座標の小数を丸める
+    private String rewrite(String tag, String className) {
+        StringBuilder result = new StringBuilder(tag.length());
+        Matcher matcher = ATTRIBUTE.matcher(tag);
+        int last = 0;
+        String existingClass = null;
+        while (matcher.find()) {
+            result.append(tag, last, matcher.start());
+            last = matcher.end();
+            String name = matcher.group(1);
+            String value = matcher.group(2);
+            if (className != null && (name.equals("style") || isPresentation(name))) {
+                continue; // クラスにまとめた
+            }
+            if (className != null && name.equals("class")) {
+                existingClass = value;
+                continue;
+            }
+            if (name.equals("style")) {
+                value = round(value);
+            } else if (isNumeric(name)) {
+                value = round(value);
+            }
+            result.append(' ').append(name).append("=\"").append(value).append('"');
+        }
+        if (className != null) {
+            result.append(" class=\"").append(existingClass == null ? className : existingClass + " " + className).append('"');
+        }
+        result.append(tag, last, tag.length());
+        return result.toString();
+    }
+
+    // 文字列の中の小数を全て丸める
+    private String round(String value) {
+        if (value.indexOf('.') < 0) {
+            return value;
+        }
+        Matcher matcher = DECIMAL.matcher(value);
+        StringBuffer result = new StringBuffer(value.length());
+        while (matcher.find()) {
+            matcher.appendReplacement(result, format(Double.parseDouble(matcher.group())));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    private String format(double value) {
+        BigDecimal rounded = BigDecimal.valueOf(value).setScale(precision, RoundingMode.HALF_UP).stripTrailingZeros();
+        if (rounded.signum() == 0) {
+            return "0";
+        }
+        return rounded.toPlainString();
+    }
+
+    private static boolean isPresentation(String name) {
+        for (String presentation : PRESENTATION) {
+            if (presentation.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNumeric(String name) {
+        for (String numeric : NUMERIC) {
+            if (numeric.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.demo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// 部分ごとに分けて描画した図のSVGを，一つのSVGにまとめるクラス
+// 部分は棚詰め(左から右に並べ，幅を超えたら次の段)で並べ，全体がなるべく正方形に近くなるようにする
+public final class SvgStitcher {
+    private static final String NEXT = "\n@startuml"; // 二つ目からの図の始まり
+    private static final int GAP = 20; // 部分と部分の間の余白(px)
+    private static final Pattern ROOT = Pattern.compile("<svg\\b[^>]*>");
+    private static final Pattern VIEW_BOX = Pattern.compile("\\sviewBox=\"[-\\d.]+[ ,]+[-\\d.]+[ ,]+([\\d.]+)[ ,]+([\\d.]+)\"");
+    private static final Pattern WIDTH = Pattern.compile("\\swidth=\"([\\d.]+)(px)?\"");
+    private static final Pattern HEIGHT = Pattern.compile("\\sheight=\"([\\d.]+)(px)?\"");
+    private static final Pattern DEFS = Pattern.compile("<defs>(.*?)</defs>", Pattern.DOTALL);
+    private static final Pattern ID = Pattern.compile("\\sid=\"([^\"]+)\"");
+
+    private SvgStitcher() {
+    }
+
+    // 行の先頭に@startumlが複数ある記述を図ごとに分ける(一つのときはそのまま返す)
+    // イベント名などに@startumlが含まれていても，行の先頭にはならないので分けない
+    public static List<String> split(String plantUMLStr) {
+        List<String> parts = new ArrayList<>();
+        int next = plantUMLStr.indexOf(NEXT);
+        if (next < 0) {
+            parts.add(plantUMLStr);
+            return parts;
+        }
+        int start = 0;
+        while (next >= 0) {
+            parts.add(plantUMLStr.substring(start, next + 1));
+            start = next + 1;
+            next = plantUMLStr.indexOf(NEXT, start);
+        }
+        parts.add(plantUMLStr.substring(start));
+        return parts;
+    }
+
+    public static byte[] stitch(List<byte[]> svgs) throws IOException {
+        int count = svgs.size();
+        String[] bodies = new String[count];
+        double[] widths = new double[count];
+        double[] heights = new double[count];
+        String root = null;
+        double maxWidth = 0;
+        double area = 0;
+        for (int i = 0; i < count; i++) {
+            String svg = new String(svgs.get(i), StandardCharsets.UTF_8);
+            Matcher matcher = ROOT.matcher(svg);
+            int end = svg.lastIndexOf("</svg>");
+            if (!matcher.find() || end < matcher.end()) {
+                throw new IOException("部分の図のSVGを読み込めませんでした");
+            }
+            String tag = matcher.group();
+            if (root == null) {
+                root = tag;
+            }
+            double[] size = size(tag);
+            widths[i] = size[0];
+            heights[i] = size[1];
+            maxWidth = Math.max(maxWidth, size[0]);
+            area += size[0] * size[1];
+            bodies[i] = prefixDefinitions(svg.substring(matcher.end(), end), "p" + i + "-");
+        }
+
+        // 棚詰めで並べる位置を決める
+        double rowLimit = Math.max(maxWidth, Math.sqrt(area));
+        double x = 0;
+        double y = 0;
+        double rowHeight = 0;
+        double totalWidth = 0;
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (x > 0 && x + widths[i] > rowLimit) {
+                x = 0;
+                y += rowHeight + GAP;
+                rowHeight = 0;
+            }
+            content.append("<g transform=\"translate(").append(number(x)).append(',').append(number(y)).append(")\">")
+                    .append(bodies[i]).append("</g>");
+            totalWidth = Math.max(totalWidth, x + widths[i]);
+            rowHeight = Math.max(rowHeight, heights[i]);
+            x += widths[i] + GAP;
+        }
+        double totalHeight = y + rowHeight;
+
+        String prolog = new String(svgs.get(0), StandardCharsets.UTF_8);
+        prolog = prolog.substring(0, prolog.indexOf(root));
+        String width = number(totalWidth);
+        String height = number(totalHeight);
+        String outer = root
+                .replaceFirst("\\swidth=\"[^\"]*\"", " width=\"" + width + "px\"")
+                .replaceFirst("\\sheight=\"[^\"]*\"", " height=\"" + height + "px\"")
+                .replaceFirst("\\sviewBox=\"[^\"]*\"", " viewBox=\"0 0 " + width + " " + height + "\"")
+                .replaceFirst("width:[\\d.]+px;height:[\\d.]+px;", "width:" + width + "px;height:" + height + "px;");
+        return (prolog + outer + content + "</svg>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // ルート要素の幅と高さ(viewBoxがあればそれを使う)
+    private static double[] size(String tag) throws IOException {
+        Matcher viewBox = VIEW_BOX.matcher(tag);
+        if (viewBox.find()) {
+            return new double[]{Double.parseDouble(viewBox.group(1)), Double.parseDouble(viewBox.group(2))};
+        }
+        Matcher width = WIDTH.matcher(tag);
+        Matcher height = HEIGHT.matcher(tag);
+        if (width.find() && height.find()) {
+            return new double[]{Double.parseDouble(width.group(1)), Double.parseDouble(height.group(1))};
+        }
+        throw new IOException("部分の図の大きさが分かりませんでした");
+    }
+
+    // <defs>の中で定義されたid(影のfilterなど)は部分ごとに同じ名前になるので，部分ごとの接頭辞をつける
+    private static String prefixDefinitions(String body, String prefix) {
+        Matcher defs = DEFS.matcher(body);
+        if (!defs.find()) {
+            return body;
+        }
+        Matcher id = ID.matcher(defs.group(1));
+        while (id.find()) {
+            String name = id.group(1);
+            body = body.replace("id=\"" + name + "\"", "id=\"" + prefix + name + "\"")
+                    .replace("#" + name + ")", "#" + prefix + name + ")")
+                    .replace("\"#" + name + "\"", "\"#" + prefix + name + "\"");
+        }
+        return body;
+    }
+
+    private static String number(double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+}
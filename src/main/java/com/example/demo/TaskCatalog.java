@@ -0,0 +1,163 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+// jsonフォルダ内の課題をまとめたjsonを，送信できる形(バイト列)でメモリに保持するクラス
+// jsonフォルダを監視し，課題のファイルが追加・変更されたときだけ作り直す
+@Component
+public class TaskCatalog {
+    private static final Logger log = LoggerFactory.getLogger(TaskCatalog.class);
+
+    private final File rootDir;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private volatile Snapshot snapshot; // 最後に作ったカタログ(読み込みに失敗したときはnull)
+    private WatchService watchService;
+    private Thread watcher;
+
+    public TaskCatalog(@Value("${task.catalog.dir:./json}") String jsonDirPath) {
+        this.rootDir = new File(jsonDirPath); // jsonファイルが入ったパスを指定
+    }
+
+    // まとめたjsonとそのETag・更新日時
+    public static class Snapshot {
+        public final byte[] body;
+        public final String etag;
+        public final long lastModified;
+
+        Snapshot(byte[] body, String etag, long lastModified) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    @PostConstruct
+    public void start() {
+        rebuild();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            registerDirectories();
+        } catch (IOException e) {
+            log.warn("jsonフォルダを監視できません。課題の変更は再起動まで反映されません: {}", rootDir, e);
+            return;
+        }
+        watcher = new Thread(this::watch, "task-catalog-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (watchService != null) {
+            watchService.close(); // 監視スレッドはClosedWatchServiceExceptionで終了する
+        }
+    }
+
+    // jsonフォルダとその下の課題フォルダを監視対象にするメソッド(すでに登録済みのフォルダはそのまま)
+    // 登録できなかったフォルダ(登録する前に削除された・読めないなど)は飛ばし，次に変更があったときに登録し直す
+    private void registerDirectories() {
+        if (!rootDir.isDirectory()) {
+            return;
+        }
+        register(rootDir.toPath());
+        File[] taskDirs = rootDir.listFiles(File::isDirectory);
+        if (taskDirs != null) {
+            for (File taskDir : taskDirs) {
+                register(taskDir.toPath());
+            }
+        }
+    }
+
+    private void register(Path dir) {
+        try {
+            dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch (IOException e) {
+            log.warn("フォルダを監視できません: {} ({})", dir, e.toString());
+        }
+    }
+
+    // ファイルの変更を待ち，変更があればカタログを作り直す
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                // 保存時にはイベントが連続して届くので，少し待ってからまとめて処理する
+                do {
+                    key.pollEvents();
+                    key.reset();
+                } while ((key = watchService.poll(200, TimeUnit.MILLISECONDS)) != null);
+                registerDirectories(); // 新しく追加された課題フォルダも監視する
+                rebuild();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // アプリケーションの終了時
+        }
+    }
+
+    // jsonフォルダを読み込み，各課題のjsonを一つにまとめるメソッド
+    synchronized void rebuild() {
+        File[] taskDirs = rootDir.listFiles(File::isDirectory); // ディレクトリ内にあるファイルを配列として返す
+        if (taskDirs == null) {
+            log.warn("jsonフォルダが見つかりません: {}", rootDir);
+            return;
+        }
+        Arrays.sort(taskDirs, Comparator.comparing(File::getName));
+        ObjectNode mergedJson = objectMapper.createObjectNode(); // jsonファイルの中身をまとめて送るためのオブジェクト
+
+        try {
+            // 各タスクごとにjsonファイルを確認
+            for (File taskDir : taskDirs) {
+                File[] jsonFile = taskDir.listFiles(file -> file.isFile() && file.getName().endsWith(".json")); // 各タスクファイル下のjsonファイルを取得
+                // jsonファイルが一つだけ存在するかを確認
+                if (jsonFile != null && jsonFile.length == 1) {
+                    JsonNode parsedJson = objectMapper.readTree(jsonFile[0]); // JSONファイルを直接JsonNodeとしてパース
+                    String taskName = taskDir.getName(); // タスクの名前(フォルダ名)を取得
+                    mergedJson.set(taskName, parsedJson); // jsonファイルの中身を結合
+                }
+                else{
+                    System.out.println("jsonファイルが一つだけでない可能性があります : " + taskDir.getName());
+                }
+            }
+            byte[] body = objectMapper.writeValueAsBytes(mergedJson);
+            String etag = "\"" + RenderCache.key(new String(body, "UTF-8")) + "\"";
+            Snapshot previous = snapshot;
+            if (previous != null && previous.etag.equals(etag)) {
+                return; // 中身が変わっていなければ更新日時もそのままにする
+            }
+            // 秒より細かい時刻はLast-Modifiedで表せないので切り捨てる
+            long lastModified = System.currentTimeMillis() / 1000 * 1000;
+            snapshot = new Snapshot(body, etag, lastModified);
+        } catch (IOException e) {
+            // 書き込み途中のファイルなどで読み込みに失敗したときは，前回のカタログを使い続ける
+            log.warn("課題のjsonファイルを読み込めませんでした", e);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+// POST /で受け取ったワークスペースを，届いた時刻と一緒にファイルに記録するクラス(capture.enabled=trueのときだけ)
+// 記録したファイルはTrafficReplay(src/jmh)で再生し，実際の負荷での性能を手元で測るために使う
+// ファイルはgzip圧縮したNDJSON(一行に一つの要求)で，一定の大きさを超えたら次のファイルに切り替え，古いものから消す
+//   {"t":届いた時刻(エポックからのマイクロ秒),"accept":Acceptヘッダー,"client":クライアント(ハッシュ),"body":ワークスペース}
+// 書き込みは専用のスレッドで行い，キューがいっぱいのときは記録を捨てる(要求の処理は待たせない)
+@Component
+public class TrafficCapture implements MeterBinder {
+    private static final String PREFIX = "capture-";
+    private static final String SUFFIX = ".ndjson.gz";
+
+    private final boolean enabled;
+    private final Path dir;
+    private final long maxFileBytes; // 一つのファイルに書く(圧縮前の)バイト数の上限
+    private final int maxFiles;
+    private final BlockingQueue<Entry> queue;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final long startMillis = System.currentTimeMillis(); // nanoTimeからエポックの時刻を求めるための基準
+    private final long startNanos = System.nanoTime();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final LongAdder recorded = new LongAdder(); // ファイルに書いた要求の数
+    private final LongAdder dropped = new LongAdder(); // キューがいっぱいで捨てた要求の数
+    private final LongAdder invalid = new LongAdder(); // jsonとして読めず書かなかった要求の数
+
+    // 書き込みを待っている要求一つ分
+    private static final class Entry {
+        final long timeMicros;
+        final String accept;
+        final String client;
+        final byte[] body;
+
+        Entry(long timeMicros, String accept, String client, byte[] body) {
+            this.timeMicros = timeMicros;
+            this.accept = accept;
+            this.client = client;
+            this.body = body;
+        }
+    }
+
+    // 読み込んだバイトを写し取るInputStream(記録するときだけ使う)
+    private static final class Recording extends FilterInputStream {
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        Recording(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                copy.write(b, off, n);
+            }
+            return n;
+        }
+    }
+
+    public TrafficCapture(@Value("${capture.enabled:false}") boolean enabled,
+                          @Value("${capture.dir:./capture}") String dir,
+                          @Value("${capture.max-file-bytes:67108864}") long maxFileBytes,
+                          @Value("${capture.max-files:10}") int maxFiles,
+                          @Value("${capture.queue-capacity:10000}") int queueCapacity) {
+        this.enabled = enabled;
+        this.dir = Paths.get(dir);
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        if (enabled) {
+            writer = new Thread(this::writeLoop, "traffic-capture");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            writer = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // 記録するときはリクエストの本文を写し取るInputStreamを返す(記録しないときはそのまま返す)
+    public InputStream tee(InputStream body) {
+        return enabled ? new Recording(body) : body;
+    }
+
+    // tee()で包んだ本文を読み終えた後に呼ぶ 届いた時刻はarrivalNanos(System.nanoTime())
+    // クライアント(RenderAdmission.clientOf)はそのまま残さず，SHA-256の先頭だけを記録する(再生時にクライアントごとに分けるため)
+    public void record(InputStream body, long arrivalNanos, String accept, String clientId) {
+        if (!(body instanceof Recording)) {
+            return;
+        }
+        long timeMicros = startMillis * 1000 + (arrivalNanos - startNanos) / 1000;
+        String client = RenderAdmission.anonymize(clientId);
+        if (!queue.offer(new Entry(timeMicros, accept, client, ((Recording) body).copy.toByteArray()))) {
+            dropped.increment();
+        }
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        OutputStream file = null;
+        long written = 0;
+        try {
+            Files.createDirectories(dir);
+            while (running) {
+                Entry first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                for (Entry entry : batch) {
+                    if (file == null || written >= maxFileBytes) {
+                        if (file != null) {
+                            file.close();
+                        }
+                        file = openNext();
+                        written = 0;
+                    }
+                    written += write(file, entry);
+                }
+                batch.clear();
+                file.flush(); // 書いている途中のファイルも読めるように，まとめて書くたびに圧縮を区切る
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            running = false; // 書けなくなったら記録をやめる(要求の処理には影響させない)
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // 閉じられなくても記録済みの分は読める
+                }
+            }
+        }
+    }
+
+    // 一行書き，書いたバイト数(圧縮前)を返す
+    // ワークスペースは改行などを除いたjsonに書き直す(一行に一つの要求にするため)
+    private long write(OutputStream file, Entry entry) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(entry.body.length + 128);
+        try (JsonGenerator generator = jsonFactory.createGenerator(line, JsonEncoding.UTF8);
+             JsonParser parser = jsonFactory.createParser(entry.body)) {
+            generator.writeStartObject();
+            generator.writeNumberField("t", entry.timeMicros);
+            generator.writeStringField("accept", entry.accept);
+            generator.writeStringField("client", entry.client);
+            generator.writeFieldName("body");
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            invalid.increment();
+            return 0;
+        }
+        line.write('\n');
+        line.writeTo(file);
+        recorded.increment();
+        return line.size();
+    }
+
+    private OutputStream openNext() throws IOException {
+        String name = PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + SUFFIX;
+        OutputStream file = new GZIPOutputStream(Files.newOutputStream(dir.resolve(name)), 65536, true);
+        List<Path> files = files(dir);
+        for (int i = 0; i < files.size() - maxFiles; i++) {
+            Files.deleteIfExists(files.get(i)); // 古いファイルから消す
+        }
+        return file;
+    }
+
+    // 記録したファイル(名前の順が記録した順)
+    public static List<Path> files(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("recorded", recorded.sum());
+        result.put("dropped", dropped.sum());
+        result.put("invalid", invalid.sum());
+        result.put("queued", queue.size());
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("diagram.capture.recorded", recorded, LongAdder::sum)
+                .description("記録した要求の数")
+                .register(registry);
+        FunctionCounter.builder("diagram.capture.dropped", dropped, LongAdder::sum)
+                .description("書き込みが追いつかず記録しなかった要求の数")
+                .register(registry);
+    }
+
+    // 終了時はキューに残っている分を書いてからファイルを閉じる
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!queue.isEmpty() && System.nanoTime() < deadline && writer.isAlive()) {
+            Thread.sleep(10);
+        }
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(2));
+    }
+}
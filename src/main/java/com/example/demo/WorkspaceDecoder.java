@@ -0,0 +1,220 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// リクエストの本文(ワークスペースのjson配列)を，JsonNodeの木を作らずに直接StateMachineへ読み込むクラス
+// 状態数・遷移数・文字列の長さに上限を設け，超えたらその時点で読み込みをやめる
+@Component
+public class WorkspaceDecoder {
+    private static final StateMachine.Transition[] NO_TRANSITIONS = new StateMachine.Transition[0];
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final int maxStates;
+    private final int maxTransitions;
+    private final int maxStringLength;
+
+    public WorkspaceDecoder(@Value("${workspace.max-states:2000}") int maxStates,
+                            @Value("${workspace.max-transitions:10000}") int maxTransitions,
+                            @Value("${workspace.max-string-length:200}") int maxStringLength) {
+        this.maxStates = maxStates;
+        this.maxTransitions = maxTransitions;
+        this.maxStringLength = maxStringLength;
+    }
+
+    public StateMachine decode(InputStream in) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            parser.nextToken();
+            return decode(parser);
+        }
+    }
+
+    // parserが配列の先頭([)を指している状態から，配列の終わり(])までを読み込む
+    public StateMachine decode(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new JsonParseException(parser, "ワークスペースはjsonの配列である必要があります");
+        }
+        StateMachine machine = new StateMachine();
+        int index = 0;
+        int transitionCount = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (index >= maxStates) {
+                throw new WorkspaceTooLargeException("状態の数が上限(" + maxStates + ")を超えています");
+            }
+            StateMachine.Block block = readBlock(parser, index++, maxTransitions - transitionCount);
+            transitionCount += block.transitions.length;
+            machine.add(block);
+        }
+        return machine.finish();
+    }
+
+    // ワークスペースの要素(状態一つ分)を読み込むメソッド
+    private StateMachine.Block readBlock(JsonParser parser, int index, int remainingTransitions) throws IOException {
+        String state = "";
+        StateMachine.Transition[] transitions = NO_TRANSITIONS;
+        String entry = null, doActivity = null, exit = null;
+        boolean myself = false, invalid = false;
+        String clickType = null, clickNumber = null;
+
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren(); // オブジェクト以外の要素は空の状態として扱う
+            return new StateMachine.Block(index, state, transitions, null, null, null, false, false, null, null);
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "state":
+                    state = readText(parser);
+                    break;
+                case "transition":
+                    transitions = readTransitions(parser, remainingTransitions);
+                    break;
+                case "behavior":
+                    entry = doActivity = exit = null;
+                    if (parser.currentToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String rule = parser.getCurrentName();
+                            parser.nextToken();
+                            String value = readText(parser);
+                            if ("entry".equals(rule)) {
+                                entry = value;
+                            } else if ("do".equals(rule)) {
+                                doActivity = value;
+                            } else if ("exit".equals(rule)) {
+                                exit = value;
+                            }
+                        }
+                    } else {
+                        parser.skipChildren(); // オブジェクトでない値は読み飛ばす
+                    }
+                    break;
+                case "myself":
+                    myself = false;
+                    if (parser.currentToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            boolean isCondition = "condition".equals(parser.getCurrentName());
+                            parser.nextToken();
+                            boolean value = readBoolean(parser);
+                            if (isCondition) {
+                                myself = value;
+                            }
+                        }
+                    } else {
+                        parser.skipChildren(); // オブジェクトでない値は読み飛ばす
+                    }
+                    break;
+                case "invalid":
+                    invalid = false;
+                    if (parser.currentToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            boolean isCondition = "condition".equals(parser.getCurrentName());
+                            parser.nextToken();
+                            String value = readText(parser);
+                            if (isCondition) {
+                                invalid = "true".equals(value);
+                            }
+                        }
+                    } else {
+                        parser.skipChildren(); // オブジェクトでない値は読み飛ばす
+                    }
+                    break;
+                case "click":
+                    clickType = clickNumber = null;
+                    if (parser.currentToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String name = parser.getCurrentName();
+                            parser.nextToken();
+                            String value = readText(parser);
+                            if ("type".equals(name)) {
+                                clickType = value;
+                            } else if ("number".equals(name)) {
+                                clickNumber = value;
+                            }
+                        }
+                    } else {
+                        parser.skipChildren(); // オブジェクトでない値は読み飛ばす
+                    }
+                    break;
+                default:
+                    parser.skipChildren(); // 使わないプロパティ(currentなど)は読み飛ばす
+            }
+        }
+        return new StateMachine.Block(index, state, transitions, entry, doActivity, exit, myself, invalid,
+                clickType, clickType != null ? clickNumber : null); // numberはtypeがあるときだけ使う
+    }
+
+    // 遷移の配列を読み込むメソッド
+    private StateMachine.Transition[] readTransitions(JsonParser parser, int remainingTransitions) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return NO_TRANSITIONS;
+        }
+        List<StateMachine.Transition> transitions = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (transitions.size() >= remainingTransitions) {
+                throw new WorkspaceTooLargeException("遷移の数が上限(" + maxTransitions + ")を超えています");
+            }
+            String nextState = null, event = null, guard = null, effect = null;
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+            }
+            else {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    String value = readText(parser);
+                    switch (field) {
+                        case "nextState": nextState = value; break;
+                        case "event":     event = value;     break;
+                        case "guard":     guard = value;     break;
+                        case "effect":    effect = value;    break;
+                    }
+                }
+            }
+            transitions.add(new StateMachine.Transition(nextState, event, guard, effect));
+        }
+        return transitions.toArray(NO_TRANSITIONS);
+    }
+
+    // 値を文字列として読み込むメソッド(JsonNode.asText()と同じ変換をする)
+    private String readText(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return "";
+        }
+        if (parser.getTextLength() > maxStringLength) {
+            throw new WorkspaceTooLargeException("文字列の長さが上限(" + maxStringLength + ")を超えています");
+        }
+        return parser.getText();
+    }
+
+    // 値を真偽値として読み込むメソッド(JsonNode.asBoolean()と同じ変換をする)
+    private boolean readBoolean(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_TRUE:
+                return true;
+            case VALUE_NUMBER_INT:
+                String number = parser.getText();
+                return !"0".equals(number) && !"-0".equals(number);
+            case VALUE_STRING:
+                return "true".equals(readText(parser).trim());
+            case START_OBJECT:
+            case START_ARRAY:
+                parser.skipChildren();
+                return false;
+            default:
+                return false;
+        }
+    }
+}
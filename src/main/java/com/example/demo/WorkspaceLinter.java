@@ -0,0 +1,149 @@
+package com.example.demo;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// 図を描画せずに，ワークスペースのチェック(初期状態・初期状態からの遷移・状態名・重複)と
+// 初期状態から到達できない状態の検出だけを行うクラス
+// StateMachineのチェックは図として表示できるかどうかしか分からないので，ブロック・遷移の位置をここで調べ直す
+public final class WorkspaceLinter {
+    public static final String SEVERITY_ERROR = "error";     // 図の代わりにノートだけが表示される
+    public static final String SEVERITY_WARNING = "warning"; // 図は表示されるが直したほうがよい
+    public static final String INITIAL_STATE_EVENT = "InitialStateEventError";
+    public static final String INITIAL_STATE_CONDITION = "InitialStateConditionError";
+    public static final String UNREACHABLE_STATE = "UnreachableStateWarning";
+
+    // 一つの指摘 blockはワークスペースの何番目の要素か，transitionはその中の何番目の「次の状態」ブロックか
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static final class Diagnostic {
+        public final String code;
+        public final String severity;
+        public final Integer block;
+        public final Integer transition;
+        public final String state;
+
+        public Diagnostic(String code, String severity, Integer block, Integer transition, String state) {
+            this.code = code;
+            this.severity = severity;
+            this.block = block;
+            this.transition = transition;
+            this.state = state;
+        }
+    }
+
+    // validとerrorはPOST /で図の代わりにノートを表示するかどうか(とそのエラーコード)と同じになる
+    public static final class Result {
+        public final boolean valid;
+        public final String error;
+        public final List<Diagnostic> diagnostics;
+
+        public Result(boolean valid, String error, List<Diagnostic> diagnostics) {
+            this.valid = valid;
+            this.error = error;
+            this.diagnostics = diagnostics;
+        }
+    }
+
+    private WorkspaceLinter() {
+    }
+
+    public static Result lint(StateMachine machine) {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        List<StateMachine.Block> blocks = machine.blocks();
+        boolean containInitialState = false;
+        for (StateMachine.Block block : blocks) {
+            if (block.isInitial() && block.myself) {
+                containInitialState = true;
+            }
+        }
+
+        for (StateMachine.Block block : blocks) {
+            if (block.isInitial()) {
+                checkInitialState(block, containInitialState, diagnostics);
+            }
+            if (!StateMachine.isValidStateName(block.state)) {
+                diagnostics.add(error(DiagramError.STATE_NAME_NAMING, block.index, null, block.state));
+            }
+            for (int i = 0; i < block.transitions.length; i++) {
+                String nextState = block.transitions[i].nextState;
+                if (nextState != null && !StateMachine.isValidStateName(nextState)) {
+                    diagnostics.add(error(DiagramError.STATE_NAME_NAMING, block.index, i, nextState));
+                }
+            }
+            if (block.invalid) {
+                diagnostics.add(error(DiagramError.DUPLICATE_STATE_DEFINITION, block.index, null, block.state));
+            }
+        }
+        if (!containInitialState && !hasInitialBlock(blocks)) {
+            diagnostics.add(error(DiagramError.INITIAL_STATE_DEFINITION, null, null, null));
+        }
+
+        DiagramError error = machine.error();
+        if (error == null) {
+            checkReachability(machine, diagnostics); // 図として表示できるときだけ調べる
+        }
+        return new Result(error == null, error == null ? null : error.code(), diagnostics);
+    }
+
+    // 初期状態のブロックについてのチェック(「初めは初期状態とする」・遷移の数・次の状態・イベントと条件)
+    private static void checkInitialState(StateMachine.Block block, boolean containInitialState, List<Diagnostic> diagnostics) {
+        if (!containInitialState) {
+            diagnostics.add(error(DiagramError.INITIAL_STATE_DEFINITION, block.index, null, block.state));
+        }
+        boolean hasNextState = false;
+        for (int i = 0; i < block.transitions.length; i++) {
+            StateMachine.Transition transition = block.transitions[i];
+            if (transition.nextState != null) {
+                hasNextState = true;
+            }
+            if (i >= 1) {
+                diagnostics.add(error(DiagramError.INVALID_STATE_TRANSITION, block.index, i, transition.nextState));
+            }
+            if (transition.event != null) {
+                diagnostics.add(new Diagnostic(INITIAL_STATE_EVENT, SEVERITY_WARNING, block.index, i, transition.nextState));
+            }
+            if (transition.guard != null) {
+                diagnostics.add(new Diagnostic(INITIAL_STATE_CONDITION, SEVERITY_WARNING, block.index, i, transition.nextState));
+            }
+        }
+        if (!hasNextState) {
+            diagnostics.add(error(DiagramError.INITIAL_STATE_TRANSITION, block.index, null, block.state));
+        }
+    }
+
+    private static boolean hasInitialBlock(List<StateMachine.Block> blocks) {
+        for (StateMachine.Block block : blocks) {
+            if (block.isInitial()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 初期状態から遷移をたどり，到達できない状態(定義はあるが図では孤立する状態)を探す
+    private static void checkReachability(StateMachine machine, List<Diagnostic> diagnostics) {
+        BitSet reached = MachineEngine.compile(machine).reachable();
+        for (StateMachine.Block block : machine.blocks()) {
+            if (block.isInitial() || StateMachine.FINAL_STATE.equals(block.state)
+                    || block.state.contains(StateMachine.UNDEFINED_STATE)) {
+                continue;
+            }
+            int state = id(machine, block.state);
+            if (state >= 0 && !reached.get(state)) {
+                diagnostics.add(new Diagnostic(UNREACHABLE_STATE, SEVERITY_WARNING, block.index, null, block.state));
+            }
+        }
+    }
+
+    // 状態名(#FF5555と前後の空白を除く)の番号 空のときなどは-1
+    private static int id(StateMachine machine, String stateName) {
+        return machine.stateId(StateMachine.stripMarker(stateName).trim());
+    }
+
+    private static Diagnostic error(DiagramError error, Integer block, Integer transition, String state) {
+        return new Diagnostic(error.code(), SEVERITY_ERROR, block, transition, state);
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.demo;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+// ワークスペースが上限(状態数・遷移数・文字列の長さ)を超えているときに投げる例外
+@ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+public class WorkspaceTooLargeException extends RuntimeException {
+    public WorkspaceTooLargeException(String message) {
+        super(message);
+    }
+}